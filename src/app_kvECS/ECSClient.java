@@ -7,10 +7,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import app_kvServer.IKVServer;
 import ecs.ECSNode;
 import ecs.IECSNode;
+import ecs.TransferPlan;
 import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -23,18 +26,26 @@ import shared.Pair;
 
 public class ECSClient implements IECSClient {
     private static final Logger logger = Logger.getLogger(ECSClient.class);
+    // how many nodes move data at once during a topology change
+    private static final int MAX_PARALLEL_TRANSFERS = 4;
     private final String address;
     private final int port;
     private Metadata metadata;
     private Map<String, ECSNode> ecsNodes;
     private ServerSocket ecsSocket;
     private boolean running;
+    private final ExecutorService transferExecutor;
 
     public ECSClient(String address, int port) {
         this.address = address;
         this.port = port;
         this.metadata = new Metadata();
         this.ecsNodes = new HashMap<>();
+        this.transferExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_TRANSFERS, r -> {
+            Thread thread = new Thread(r, "ecs-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public Map getECSNode() {
@@ -121,11 +132,19 @@ public class ECSClient implements IECSClient {
         newNode.updateMetadata(metadata);
 
         if (metadata.getSize() == 2 || metadata.getSize() == 3) {
-            // transfer all data to new node
-            successorNode.transferKVPairs(newNode,
-                    new HashRange(
-                            new BigInteger("0", 16),
-                            new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16)));
+            // ship all data to new node as one snapshot
+            HashRange all = new HashRange(
+                    new BigInteger("0", 16),
+                    new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16));
+            if (!successorNode.bootstrapKVPairs(newNode, all)) {
+                logger.warn(String.format("Snapshot not installed on [%s], transferring the pairs instead",
+                        newNode.getNodeName()));
+                if (!successorNode.transferKVPairs(newNode, all)) {
+                    logger.error(String.format("ECSNode [%s] has no data, leaving it inactive",
+                            newNode.getNodeName()));
+                    return;
+                }
+            }
         }
 
         if (this.metadata.getSize() > 3) {
@@ -138,15 +157,27 @@ public class ECSClient implements IECSClient {
             HashRange range1 = new HashRange(sndPredecessor.getSecond().getStartIndex(),
                     newNode.getHashRange().getEndIndex());
 
-            successorNode.transferKVPairs(newNode, range1);
+            TransferPlan transfer = new TransferPlan("add " + newNode.getNodeName());
+            transfer.add(successorNode.getNodeName(), "transfer to " + newNode.getNodeName(),
+                    () -> successorNode.transferKVPairs(newNode, range1));
+
+            // the replicas the new node now holds are only dropped once it has them
+            TransferPlan cleanup = new TransferPlan("drop replicas moved to " + newNode.getNodeName());
 
             // successorNode no longer store replica of sndPredecessor
-            successorNode.deleteKVPairs(sndPredecessor.getSecond());
+            cleanup.add(successorNode.getNodeName(), "drop replica of " + sndPredecessor.getFirst(),
+                    () -> successorNode.deleteKVPairs(sndPredecessor.getSecond()));
 
             // similarly
-            sndSuccessor.deleteKVPairs(fstPredecessor.getSecond());
+            cleanup.add(sndSuccessor.getNodeName(), "drop replica of " + fstPredecessor.getFirst(),
+                    () -> sndSuccessor.deleteKVPairs(fstPredecessor.getSecond()));
+
+            cleanup.add(trdSuccessor.getNodeName(), "drop replica of " + newNode.getNodeName(),
+                    () -> trdSuccessor.deleteKVPairs(newNode.getHashRange()));
 
-            trdSuccessor.deleteKVPairs(newNode.getHashRange());
+            if (transfer.execute(transferExecutor)) {
+                cleanup.execute(transferExecutor);
+            }
         }
 
         for (ECSNode node : ecsNodes.values()) {
@@ -193,14 +224,22 @@ public class ECSClient implements IECSClient {
                     ECSNode sndPredecessor = ecsNodes.get(metadataBefore.getSuccessorAt(
                             removed_node.getNodeName(), -2).getFirst());
 
+                    // the three transfers come from different nodes and run at the same time
+                    TransferPlan plan = new TransferPlan("remove " + removed_node.getNodeName());
+
                     // transfer from successor to
                     // new replica data added to 2nd successor of removed_node's successor
-                    successorNode.transferKVPairs(trdSuccessor, removed_node.getHashRange());
+                    plan.add(successorNode.getNodeName(), "transfer to " + trdSuccessor.getNodeName(),
+                            () -> successorNode.transferKVPairs(trdSuccessor, removed_node.getHashRange()));
 
                     // new replica data added to 1st successor of removed_node's successor
-                    fstPredecessor.transferKVPairs(sndSuccessor, fstPredecessor.getHashRange());
+                    plan.add(fstPredecessor.getNodeName(), "transfer to " + sndSuccessor.getNodeName(),
+                            () -> fstPredecessor.transferKVPairs(sndSuccessor, fstPredecessor.getHashRange()));
+
+                    plan.add(sndPredecessor.getNodeName(), "transfer to " + successorNode.getNodeName(),
+                            () -> sndPredecessor.transferKVPairs(successorNode, sndPredecessor.getHashRange()));
 
-                    sndPredecessor.transferKVPairs(successorNode, sndPredecessor.getHashRange());
+                    plan.execute(transferExecutor);
                 }
 
 //                if (!isFailed) {
@@ -0,0 +1,18 @@
+package app_kvServer;
+
+/**
+ * How a KVServer serves its client connections.
+ */
+public enum FrontEndMode {
+    THREAD,     /* one blocking thread per connection */
+    VIRTUAL,    /* one blocking virtual thread per connection, platform threads before Java 21 */
+    NIO;        /* a few selector threads for all connections plus a worker pool */
+
+    public static FrontEndMode fromString(String mode) {
+        try {
+            return FrontEndMode.valueOf(mode.toUpperCase());
+        } catch (Exception e) {
+            return THREAD;
+        }
+    }
+}
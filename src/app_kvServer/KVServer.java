@@ -1,20 +1,41 @@
 package app_kvServer;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Predicate;
 
-import database.DatabaseManager;
+import cache.KVCache;
+import client.PipelinedConnection;
+import database.BitcaskDatabase;
+import database.FsyncPolicy;
+import database.IDatabase;
+import database.KVPair;
+import database.LogCompactor;
+import database.LogDatabase;
+import database.StripedLock;
 import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import shared.*;
+import shared.messages.BatchCodec;
 import shared.messages.KVMessage;
 import shared.messages.KVMessageEntity;
 
@@ -29,7 +50,23 @@ public class KVServer extends Thread implements IKVServer {
 	private String strategy;
 	private ServerSocket serverSocket;
 	private boolean running;
-	private final DatabaseManager dbManager;
+	private final IDatabase dbManager;
+	private KVCache cache;
+	private final RequestStats requestStats = new RequestStats();
+	private static final int REPLICA_FAILURE_LOG_INTERVAL = 1000;
+	private static final long DEFAULT_STATS_INTERVAL_S = 60;
+	private static final int TRANSFER_CHUNK_CHARS = 1024 * 1024; // pairs per chunk of a range handoff, before compression
+	private static final int TRANSFER_WINDOW = 8; // chunks on the way to the destination
+	private static final int SNAPSHOT_CHUNK_BYTES = 1024 * 1024; // bytes of a snapshot file per chunk, before compression
+	private FrontEndMode frontEndMode = FrontEndMode.THREAD;
+	private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private int workerThreads = Runtime.getRuntime().availableProcessors() * 4;
+	private NioFrontEnd nioFrontEnd;
+	// Thread.ofVirtual() is looked up at runtime so the server still runs on JDKs without it
+	private static final Object VIRTUAL_THREAD_BUILDER;
+	private static final Method VIRTUAL_THREAD_START;
+	// orders cache fills after a miss against writes of the same key so a stale value is never cached
+	private final StripedLock cacheLock = new StripedLock();
 	private String address = "localhost";
 	private String name;
 
@@ -38,14 +75,27 @@ public class KVServer extends Thread implements IKVServer {
 	private CommunicationModule ecsCommunication;
 	private Socket ecsSocket;
 	private Metadata serverMetadata;
+	private volatile int metadataVersion; // 0 until the first metadata arrives, sent with every binary reply
+	private final Set<MetadataSubscriber> metadataSubscribers = ConcurrentHashMap.newKeySet();
 	private HashRange responsibleRange = new HashRange();
 	private ServerStatus serverStatus;
 	Thread ecsThread;
 	ArrayList<String> transfer_keys = new ArrayList<>();
+	// keys written while a range is copied to another server, sent again at the handoff; null when none is
+	private volatile Set<String> trackedWrites;
+	// client writes hold it shared from their WRITE_LOCK check until stored, a migration takes it
+	// exclusively to start tracking and to hand over
+	private final ReentrantReadWriteLock handoffLock = new ReentrantReadWriteLock();
+	// snapshot files being received, by snapshot id
+	private final Map<String, File> incomingSnapshots = new ConcurrentHashMap<>();
 
 	/*M3*/
-	private List<CommunicationModule> successors = Collections.synchronizedList(
-			new ArrayList<>(0)); // coordinator connect with replica
+	private final Replicator replicator = new Replicator(this); // coordinator streams its writes to the replicas
+	private volatile ReplicationAck replicationAck = ReplicationAck.ALL;
+	// a key is written locally and queued for the replicas under its stripe, so they see the same order
+	private final StripedLock replicationOrder = new StripedLock();
+	// replica side: the last write applied from each coordinator's replication log
+	private final Map<String, AtomicLong> appliedSequences = new ConcurrentHashMap<>();
 	private HashRange replicaRange = new HashRange();
 
 	/*M4*/
@@ -66,13 +116,32 @@ public class KVServer extends Thread implements IKVServer {
 	 *           and "LFU".
 	 */
 
+	static {
+		Object builder = null;
+		Method start = null;
+		try {
+			start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// older JDK, connections fall back to platform threads
+		}
+		VIRTUAL_THREAD_BUILDER = builder;
+		VIRTUAL_THREAD_START = start;
+	}
+
 	public KVServer(int port, int cacheSize, String strategy, String dir, String name, String address,
 					String ecsAddress) {
+		this(port, cacheSize, strategy, new LogDatabase(dir, name), address, ecsAddress);
+	}
+
+	public KVServer(int port, int cacheSize, String strategy, IDatabase database, String address,
+					String ecsAddress) {
 		this.port = port;
 		this.cacheSize = cacheSize;
 		this.strategy = strategy;
-		this.dbManager = new DatabaseManager(dir, name);
-		this.tableManager = new TableManager(this.dbManager);
+		this.dbManager = database;
+		this.cache = KVCache.create(parseCacheStrategy(strategy), cacheSize);
+		this.tableManager = new TableManager(this);
 		this.address = address;
 		this.name = this.address + ":" + Integer.toString(port);
 		this.ecsAddress = ecsAddress;
@@ -91,7 +160,8 @@ public class KVServer extends Thread implements IKVServer {
 		this.port = port;
 		this.cacheSize = cacheSize;
 		this.strategy = strategy;
-		this.dbManager = new DatabaseManager("disk", "database");
+		this.dbManager = new LogDatabase("disk", "database");
+		this.cache = KVCache.create(parseCacheStrategy(strategy), cacheSize);
 
 		if (ecsAddress == null) {
 			this.serverStatus = ServerStatus.ACTIVE;
@@ -116,7 +186,23 @@ public class KVServer extends Thread implements IKVServer {
 
 	@Override
 	public CacheStrategy getCacheStrategy(){
-		return IKVServer.CacheStrategy.None; //incomplete
+		return cache == null ? CacheStrategy.None : parseCacheStrategy(strategy);
+	}
+
+	/**
+	 * @return the cache strategy with the given name, None if it is unknown
+	 */
+	public static CacheStrategy parseCacheStrategy(String strategy) {
+		for (CacheStrategy value : CacheStrategy.values()) {
+			if (value.name().equalsIgnoreCase(strategy)) {
+				return value;
+			}
+		}
+		return CacheStrategy.None;
+	}
+
+	public KVCache getCache() {
+		return cache;
 	}
 
 	@Override
@@ -135,76 +221,338 @@ public class KVServer extends Thread implements IKVServer {
 
 	@Override
 	public boolean inCache(String key){
-		return false;
+		return cache != null && cache.contains(key);
 	}
 
 	@Override
 	public String getKV(String key) throws Exception{
-		return dbManager.get(key);
+		if (cache == null) {
+			return dbManager.get(key);
+		}
+		String value = cache.get(key);
+		if (value != null) {
+			return value;
+		}
+		cacheLock.lock(key);
+		try {
+			value = dbManager.get(key);
+			if (value != null) {
+				cache.put(key, value);
+			}
+		} finally {
+			cacheLock.unlock(key);
+		}
+		return value;
+	}
+
+	/**
+	 * Get the encoded value associated with the key, served from the storage
+	 * engine's buffers when it keeps values on disk
+	 * @return value associated with key, null if not found
+	 */
+	public ByteBuffer getKVBuffer(String key) throws Exception {
+		if (cache == null) {
+			return dbManager.getValueBuffer(key);
+		}
+		String value = getKV(key);
+		return value == null ? null : ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Write a key-value pair to storage and keep the cache in sync with it
+	 */
+	private boolean storeKV(String key, String value) throws Exception {
+		trackWrite(key);
+		if (cache == null) {
+			return dbManager.put(key, value);
+		}
+		cacheLock.lock(key);
+		try {
+			boolean stored = dbManager.put(key, value);
+			if (stored) {
+				cache.put(key, value);
+			} else {
+				cache.remove(key);
+			}
+			return stored;
+		} finally {
+			cacheLock.unlock(key);
+		}
+	}
+
+	private void trackWrite(String key) {
+		Set<String> tracked = trackedWrites;
+		if (tracked != null) {
+			tracked.add(key);
+		}
+	}
+
+	/**
+	 * Apply a batch of writes to storage, a null value deleting its key, and
+	 * keep the cache in sync with it
+	 * @return for every pair whether it was applied
+	 * @throws IOException if the storage could not write the batch
+	 */
+	private boolean[] storeBatch(List<KVPair> pairs) throws Exception {
+		Set<String> tracked = trackedWrites;
+		if (tracked != null) {
+			for (KVPair pair : pairs) {
+				tracked.add(pair.getKey());
+			}
+		}
+		if (cache == null) {
+			return dbManager.writeBatch(pairs);
+		}
+		List<String> keys = new ArrayList<>(pairs.size());
+		for (KVPair pair : pairs) {
+			keys.add(pair.getKey());
+		}
+		cacheLock.lockAll(keys);
+		try {
+			boolean[] applied = dbManager.writeBatch(pairs);
+			for (int i = 0; i < applied.length; i++) {
+				KVPair pair = pairs.get(i);
+				if (applied[i] && pair.getValue() != null) {
+					cache.put(pair.getKey(), pair.getValue());
+				} else {
+					cache.remove(pair.getKey());
+				}
+			}
+			return applied;
+		} finally {
+			cacheLock.unlockAll(keys);
+		}
+	}
+
+	/**
+	 * Delete a key from storage and from the cache
+	 */
+	private boolean removeKV(String key) {
+		trackWrite(key);
+		if (cache == null) {
+			return dbManager.delete(key);
+		}
+		cacheLock.lock(key);
+		try {
+			cache.remove(key);
+			return dbManager.delete(key);
+		} finally {
+			cacheLock.unlock(key);
+		}
 	}
 
 	@Override
 	public void putKV(String key, String value) throws Exception {
-		int i = 1;
-		if (value == null || value.equals("null")) {
-			dbManager.delete(key);
+		List<CompletableFuture<KVMessage>> replies;
+		replicationOrder.lock(key);
+		try {
+			if (value == null || value.equals("null")) {
+				removeKV(key);
+				value = null;
+			}
+			else {
+				storeKV(key, value);
+			}
+			replies = replicator.replicate(Collections.singletonList(
+					new KVMessageEntity(KVMessage.StatusType.MPUT, key, value)));
+		} finally {
+			replicationOrder.unlock(key);
+		}
+		awaitReplicas(replies);
+	}
 
-			for (CommunicationModule module: successors) {
-				module.sendKVMessage(KVMessage.StatusType.REPLICA_DELETE, key, value);
-				KVMessage response = module.receiveKVMessage();
+	/**
+	 * Apply the writes of a batch with a single append to the storage log and
+	 * forward them to each replica in one message.
+	 * @param pairs writes in order, a null value deletes the key
+	 */
+	public boolean[] putKVBatch(List<KVPair> pairs) throws Exception {
+		List<String> keys = new ArrayList<>(pairs.size());
+		List<KVMessage> entries = new ArrayList<>(pairs.size());
+		for (KVPair pair : pairs) {
+			keys.add(pair.getKey());
+			entries.add(new KVMessageEntity(KVMessage.StatusType.MPUT, pair.getKey(), pair.getValue()));
+		}
+		boolean[] applied;
+		List<CompletableFuture<KVMessage>> replies;
+		replicationOrder.lockAll(keys);
+		try {
+			applied = storeBatch(pairs);
+			replies = replicator.replicate(entries);
+		} finally {
+			replicationOrder.unlockAll(keys);
+		}
+		awaitReplicas(replies);
+		return applied;
+	}
 
-				if (response.getStatus() != KVMessage.StatusType.DELETE_SUCCESS) {
-					logger.warn("Delete-update Replica Failed");
-				}
-				else {
-					logger.info(String.format("Delete-update replica at (%d)", i));
-				}
-				i += 1;
+	public boolean[] putKVBatchReplica(List<KVPair> pairs) throws Exception {
+		return storeBatch(pairs);
+	}
+
+	/**
+	 * Apply a numbered write from a coordinator's replication log. Writes are
+	 * applied in order: one applied before is skipped, one after a gap or
+	 * one the storage could not write is refused so that the coordinator
+	 * catches this replica up.
+	 * @return false if the write was refused
+	 */
+	public boolean putKVReplicated(String logId, long sequence, List<KVPair> pairs) throws Exception {
+		AtomicLong applied = appliedSequences.computeIfAbsent(logId, id -> new AtomicLong());
+		synchronized (applied) {
+			if (sequence <= applied.get()) {
+				return true;
+			}
+			if (sequence != applied.get() + 1) {
+				return false;
+			}
+			try {
+				storeBatch(pairs);
+			} catch (IOException e) {
+				// not stored, so the coordinator catches this replica up
+				logger.error("Cannot store write " + sequence + " of " + logId, e);
+				return false;
 			}
+			applied.set(sequence);
+			return true;
 		}
-		else {
-			dbManager.put(key, value);
+	}
+
+	/**
+	 * @return the number of the last write applied from the replication log, 0 if none
+	 */
+	public long getAppliedSequence(String logId) {
+		AtomicLong applied = appliedSequences.get(logId);
+		return applied == null ? 0 : applied.get();
+	}
+
+	/**
+	 * Drop the keys of a coordinator's range before it sends a full copy of
+	 * it, which brings this replica up to the given write of its log
+	 */
+	public void resetReplicated(String logId, long sequence, String range) {
+		AtomicLong applied = appliedSequences.computeIfAbsent(logId, id -> new AtomicLong());
+		synchronized (applied) {
+			deleteKVPairs(range);
+			applied.set(sequence);
+		}
+	}
+
+	/**
+	 * @return the stored pairs whose keys hash into the range
+	 */
+	List<KVPair> pairsInRange(HashRange range) throws Exception {
+		List<KVPair> pairs = new ArrayList<>();
+		for (String key : dbManager.keysInRange(range)) {
+			String value = dbManager.get(key);
+			if (value != null) {
+				pairs.add(new KVPair(key, value));
+			}
+		}
+		return pairs;
+	}
 
-			for (CommunicationModule module: successors) {
-				module.sendKVMessage(KVMessage.StatusType.REPLICA_PUT, key, value);
-				KVMessage response = module.receiveKVMessage();
+	/**
+	 * @return the writes this server sent to its replicas as coordinator
+	 */
+	public ReplicationLog getReplicationLog() {
+		return replicator.getLog();
+	}
 
-				if (response.getStatus() != KVMessage.StatusType.PUT_SUCCESS &&
-						response.getStatus() != KVMessage.StatusType.PUT_UPDATE) {
-					logger.warn("Put-update Replica Failed");
+	/**
+	 * Wait until as many replicas as the replication ack asks for have
+	 * acknowledged, or all of them have answered. A failed replica does not
+	 * fail the write, as before.
+	 */
+	private void awaitReplicas(List<CompletableFuture<KVMessage>> replies) {
+		int required = replicationAck.required(replies.size());
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		AtomicInteger acks = new AtomicInteger();
+		AtomicInteger left = new AtomicInteger(replies.size());
+		for (CompletableFuture<KVMessage> reply : replies) {
+			reply.whenComplete((response, e) -> {
+				boolean acknowledged = e == null && response.getStatus() == KVMessage.StatusType.BATCH_SUCCESS;
+				recordReplicaResponse(acknowledged);
+				if (acknowledged && acks.incrementAndGet() == required) {
+					done.complete(null);
 				}
-				else {
-					logger.info(String.format("Put-update replica at (%d)", i));
+				if (left.decrementAndGet() == 0) {
+					done.complete(null);
 				}
-				i += 1;
-			}
+			});
+		}
+		if (required > 0) {
+			done.join();
 		}
 	}
 
+	/**
+	 * Choose how many replicas acknowledge a write before the client gets
+	 * its reply
+	 */
+	public void setReplicationAck(ReplicationAck replicationAck) {
+		this.replicationAck = replicationAck;
+	}
+
+	public ReplicationAck getReplicationAck() {
+		return replicationAck;
+	}
+
+	/**
+	 * Count a replica response; failures are only logged now and then so a
+	 * lost replica does not add a log line to every write
+	 */
+	private void recordReplicaResponse(boolean acknowledged) {
+		if (acknowledged) {
+			requestStats.recordReplicaAck();
+			return;
+		}
+		long failures = requestStats.recordReplicaFailure();
+		if (failures % REPLICA_FAILURE_LOG_INTERVAL == 1) {
+			logger.warn(String.format("Update replica failed (%d failures so far)", failures));
+		}
+	}
+
+	public RequestStats getRequestStats() {
+		return requestStats;
+	}
+
 	public void putKVReplica(String key, String value) throws Exception {
 		if (value == null || value.equals("null")) {
-			dbManager.delete(key);
+			removeKV(key);
 		}
 		else {
-			dbManager.put(key, value);
+			storeKV(key, value);
 		}
 	}
 
 	@Override
 	public void clearCache(){
-		// TODO Auto-generated method stub
+		if (cache != null) {
+			cache.clear();
+		}
 	}
 
 	@Override
 	public void clearStorage(){
-		dbManager.eraseDisk();
+		cacheLock.lockExclusive();
+		try {
+			clearCache();
+			dbManager.eraseDisk();
+		} finally {
+			cacheLock.unlockExclusive();
+		}
 	}
 
 	private boolean initializeServer() {
 		logger.info("Initialize server ...");
 		try {
 			InetAddress inetAddress = InetAddress.getByName(this.address);
-			serverSocket = new ServerSocket(port, 50, inetAddress);
+			// channel-backed so replies can be written straight from mapped buffers
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			int backlog = frontEndMode == FrontEndMode.NIO ? 1024 : 50;
+			serverChannel.socket().bind(new InetSocketAddress(inetAddress, port), backlog);
+			serverSocket = serverChannel.socket();
 			logger.info("Server listening on " + address + ":" + port);
 			return true;
 
@@ -225,13 +573,24 @@ public class KVServer extends Thread implements IKVServer {
 			connect2ECS();
 		}
 
-		if(serverSocket != null) {
+		if (serverSocket != null && frontEndMode == FrontEndMode.NIO) {
+			try {
+				nioFrontEnd = new NioFrontEnd(this, serverSocket.getChannel(), ioThreads, workerThreads);
+				nioFrontEnd.run();
+			} catch (IOException e) {
+				logger.error("Error! Cannot start NIO front end", e);
+			}
+		} else if(serverSocket != null) {
+			if (frontEndMode == FrontEndMode.VIRTUAL && !isVirtualThreadSupported()) {
+				logger.warn("Virtual threads need Java 21 or later, using platform threads");
+			}
 			while(isRunning()){
 				try {
 					Socket client = serverSocket.accept();
+					// a reply must not wait for the ack of the one before it on a pipelined connection
+					client.setTcpNoDelay(true);
 					CommunicationModule communicationModule = new CommunicationModule(client, this);
-					Thread thread = new Thread(communicationModule);
-					thread.start();
+					startConnectionThread(communicationModule);
 
 					logger.info("Connected to "
 							+ client.getInetAddress().getHostAddress()
@@ -247,6 +606,22 @@ public class KVServer extends Thread implements IKVServer {
 		logger.info("Server stopped.");
 	}
 
+	private void startConnectionThread(Runnable connection) {
+		if (frontEndMode == FrontEndMode.VIRTUAL && isVirtualThreadSupported()) {
+			try {
+				VIRTUAL_THREAD_START.invoke(VIRTUAL_THREAD_BUILDER, connection);
+				return;
+			} catch (ReflectiveOperationException e) {
+				logger.error("Cannot start virtual thread", e);
+			}
+		}
+		new Thread(connection).start();
+	}
+
+	public static boolean isVirtualThreadSupported() {
+		return VIRTUAL_THREAD_BUILDER != null;
+	}
+
 	private boolean isRunning(){
 		return this.running;
 	}
@@ -254,6 +629,10 @@ public class KVServer extends Thread implements IKVServer {
 	@Override
 	public void kill(){
 		running = false;
+		requestStats.stopReporting();
+		if (nioFrontEnd != null) {
+			nioFrontEnd.stop();
+		}
 		try {
 			serverSocket.close();
 		} catch (IOException e) {
@@ -264,8 +643,11 @@ public class KVServer extends Thread implements IKVServer {
 
 	@Override
 	public void close(){
-		// TODO Auto-generated method stub
 		running = false;
+		requestStats.stopReporting();
+		if (nioFrontEnd != null) {
+			nioFrontEnd.stop();
+		}
 		try {
 			serverSocket.close();
 		} catch (IOException e) {
@@ -274,6 +656,26 @@ public class KVServer extends Thread implements IKVServer {
 		}
 	}
 
+	/**
+	 * Choose how client connections are served; takes effect when the server
+	 * is started.
+	 * @param ioThreads selector threads, only used by the NIO front end
+	 * @param workerThreads request threads, only used by the NIO front end
+	 */
+	public void setFrontEnd(FrontEndMode mode, int ioThreads, int workerThreads) {
+		this.frontEndMode = mode;
+		this.ioThreads = ioThreads;
+		this.workerThreads = workerThreads;
+	}
+
+	public FrontEndMode getFrontEndMode() {
+		return frontEndMode;
+	}
+
+	public NioFrontEnd getNioFrontEnd() {
+		return nioFrontEnd;
+	}
+
 	/* M2 */
 	public String getEcsAddress() {
 		return ecsAddress;
@@ -305,6 +707,15 @@ public class KVServer extends Thread implements IKVServer {
 		return serverStatus;
 	}
 
+	/**
+	 * Held by a client write from its WRITE_LOCK check until it is stored,
+	 * so setting WRITE_LOCK for a range handoff waits for the writes that
+	 * already got past the check
+	 */
+	public Lock getClientWriteLock() {
+		return handoffLock.readLock();
+	}
+
 	public void setServerStatus(String serverStatus) {
 		this.serverStatus = ServerStatus.valueOf(serverStatus);
 		logger.info("Server Status is set to " + serverStatus);
@@ -322,7 +733,7 @@ public class KVServer extends Thread implements IKVServer {
 	private void removeTransferKeyIfNeeded() {
 		if (!transfer_keys.isEmpty()) {
 			for (String key: transfer_keys) {
-				dbManager.delete(key);
+				removeKV(key);
 			}
 
 			transfer_keys = new ArrayList<>();
@@ -356,7 +767,17 @@ public class KVServer extends Thread implements IKVServer {
 	}
 
 	public boolean updateMetadata(String data) {
+		return updateMetadata(data, 0);
+	}
+
+	/**
+	 * @param version version the ECS gave the metadata; the local version
+	 *                is only ever raised, 0 just counts the update
+	 */
+	public boolean updateMetadata(String data, int version) {
 		this.serverMetadata = new Metadata(data);
+		this.metadataVersion = version > metadataVersion ? version : metadataVersion + 1;
+		pushMetadata();
 		HashRange range = this.serverMetadata.getHashRange(this.name);
 
 		if (range == null) {
@@ -370,12 +791,7 @@ public class KVServer extends Thread implements IKVServer {
 				this.responsibleRange.getStartIndex().toString(16),
 				this.responsibleRange.getEndIndex().toString(16)));
 
-		for (CommunicationModule module: this.successors) {
-			module.closeCommunicationModule();
-		}
-
-		this.successors = Collections.synchronizedList(
-				new ArrayList<>(0));
+		List<String> replicas = new ArrayList<>(2);
 
 		if (serverMetadata.getSize() == 1) {
 			this.replicaRange = this.responsibleRange;
@@ -389,15 +805,7 @@ public class KVServer extends Thread implements IKVServer {
 
 			fstAddress = fstSuccessor.getFirst().split(":");
 
-			try {
-				Socket fstSocket = new Socket(fstAddress[0], Integer.parseInt(fstAddress[1]));
-
-				CommunicationModule fstComm = new CommunicationModule(fstSocket, null);
-				fstComm.receiveKVMessage();
-				this.successors.add(fstComm);
-			} catch (Exception e) {
-				logger.error(String.format("Coordinator [%s] connect to replica failed", this.name));
-			}
+			replicas.add(fstAddress[0] + ":" + fstAddress[1]);
 
 			this.replicaRange.setStartIndex(serverMetadata.getSuccessorAt(this.name, -1).getSecond().getStartIndex());
 			this.replicaRange.setEndIndex(this.responsibleRange.getEndIndex());
@@ -410,15 +818,7 @@ public class KVServer extends Thread implements IKVServer {
 
 			String[] sndAddress = sndSuccessor.getFirst().split(":");
 
-			try {
-				Socket sndSocket = new Socket(sndAddress[0], Integer.parseInt(sndAddress[1]));
-
-				CommunicationModule sndComm = new CommunicationModule(sndSocket, null);
-				sndComm.receiveKVMessage();
-				this.successors.add(sndComm);
-			} catch (Exception e) {
-				logger.error(String.format("Coordinator [%s] connect to replica failed", this.name));
-			}
+			replicas.add(sndAddress[0] + ":" + sndAddress[1]);
 
 			this.replicaRange.setStartIndex(serverMetadata.getSuccessorAt(this.name, -2).getSecond().getStartIndex());
 			this.replicaRange.setEndIndex(this.responsibleRange.getEndIndex());
@@ -426,6 +826,8 @@ public class KVServer extends Thread implements IKVServer {
 			logger.info(String.format("Coordinator [%s] connect to replica [%s]!", this.name, sndSuccessor.getFirst()));
 		}
 
+		replicator.setReplicas(replicas);
+
 		logger.info(String.format("Server [%s] update its replica range to (%s, %s)", this.name,
 				this.replicaRange.getStartIndex().toString(16),
 				this.replicaRange.getEndIndex().toString(16)));
@@ -433,50 +835,57 @@ public class KVServer extends Thread implements IKVServer {
 		return true;
 	}
 
-	public boolean rebalance(String dstName, String range) {
-		logger.info(String.format("Server [%s] start rebalance, transfer key in range [%s] to server [%s].",
-				this.name, range, dstName));
+	public int getMetadataVersion() {
+		return metadataVersion;
+	}
 
+	/**
+	 * @return METADATA_UPDATE with the metadata and its version
+	 */
+	public KVMessage getMetadataUpdate() {
+		String metadata = serverMetadata == null ? null : getServerMetadata();
+		KVMessageEntity update = new KVMessageEntity(KVMessage.StatusType.METADATA_UPDATE, metadata,
+				Integer.toString(metadataVersion));
+		update.setMetadataVersion(metadataVersion);
+		return update;
+	}
 
-		// before rebalance, set to WRITE_LOCK
-		setServerStatus(ServerStatus.WRITE_LOCK);
+	public void subscribeMetadata(MetadataSubscriber subscriber) {
+		metadataSubscribers.add(subscriber);
+	}
 
-		// TODO: transfer data process
-		String[] tokens = dstName.split(":");
+	/**
+	 * Send the current metadata to every subscribed client, dropping the
+	 * subscriptions whose connection is gone
+	 */
+	private void pushMetadata() {
+		if (metadataSubscribers.isEmpty()) {
+			return;
+		}
+		KVMessage update = getMetadataUpdate();
+		for (MetadataSubscriber subscriber : metadataSubscribers) {
+			try {
+				subscriber.pushMetadata(update);
+			} catch (IOException e) {
+				metadataSubscribers.remove(subscriber);
+			}
+		}
+	}
 
-		String dst_address = tokens[0];
-		int dst_port = Integer.parseInt(tokens[1]);
-		HashRange transfer_range = new HashRange(range);
+	public boolean rebalance(String dstName, String range) {
+		logger.info(String.format("Server [%s] start rebalance, transfer key in range [%s] to server [%s].",
+				this.name, range, dstName));
 
-		Set<String> all_keys = dbManager.getALlKeys();
-		this.transfer_keys = new ArrayList<>();
+		HashRange transfer_range = new HashRange(range);
 
 		try {
-			Socket socket = new Socket(dst_address, dst_port);
-
-			// server to server
-			CommunicationModule communicationModule = new CommunicationModule(socket, null);
-			communicationModule.receiveKVMessage();
-
-			for (String key: all_keys) {
-				BigInteger keyHash = MD5Generator.generateHash(key);
-				if (transfer_range.isInRange(keyHash)) {
-					this.transfer_keys.add(key);
-				}
-			}
-
-			for (String key: transfer_keys) {
-				String value = dbManager.get(key);
-
-				communicationModule.sendKVMessage(KVMessage.StatusType.SERVER_PUT, key, value);
-				KVMessage reply = communicationModule.receiveKVMessage();
-				if (reply.getStatus() != KVMessage.StatusType.PUT_SUCCESS &&
-						reply.getStatus() != KVMessage.StatusType.PUT_UPDATE) {
-					logger.error("UNEXPECTED ERROR IN REBALANCE DATA!");
-				}
+			// ends in WRITE_LOCK, the moved keys are removed on the next status change
+			if (!migrate(dstName, transfer_range, false)) {
+				// nothing is removed, the keys stay here
+				logger.error("UNEXPECTED ERROR IN REBALANCE DATA!");
+				return false;
 			}
-
-			communicationModule.closeCommunicationModule();
+			this.transfer_keys = new ArrayList<>(dbManager.keysInRange(transfer_range));
 		} catch (Exception e) {
 			logger.error("REBALANCE DATA FAILED");
 			return false;
@@ -497,61 +906,249 @@ public class KVServer extends Thread implements IKVServer {
 		logger.info(String.format("Server [%s] start transfer key in range [%s] to server [%s].",
 				this.name, range, dstName));
 
-		setServerStatus(ServerStatus.WRITE_LOCK);
+		boolean moved;
+		try {
+			moved = migrate(dstName, new HashRange(range), false);
+			if (!moved) {
+				logger.error("UNEXPECTED ERROR IN TRANSFER DATA!");
+			}
+		} catch (Exception e) {
+			logger.error("TRANSFER DATA FAILED");
+			moved = false;
+		}
 
-		String[] tokens = dstName.split(":");
+		// the keys are still here either way, so writes go on
+		setServerStatus(ServerStatus.ACTIVE);
 
-		String dst_address = tokens[0];
-		int dst_port = Integer.parseInt(tokens[1]);
-		HashRange transfer_range = new HashRange(range);
+		return moved;
+	}
 
-		Set<String> all_keys = dbManager.getALlKeys();
+	/**
+	 * Like transferKVPairs, but the range is shipped to the new server as a
+	 * single snapshot file, which the destination's storage engine installs
+	 * as it is.
+	 */
+	public boolean bootstrapKVPairs(String dstName, String range) {
+		logger.info(String.format("Server [%s] start bootstrap of server [%s] with range [%s].",
+				this.name, dstName, range));
 
+		boolean installed;
 		try {
+			installed = migrate(dstName, new HashRange(range), true);
+			if (!installed) {
+				logger.error("BOOTSTRAP SNAPSHOT NOT INSTALLED");
+			}
+		} catch (Exception e) {
+			logger.error("BOOTSTRAP DATA FAILED", e);
+			installed = false;
+		}
 
-			Socket socket = new Socket(dst_address, dst_port);
+		// the keys are still here either way, so writes go on
+		setServerStatus(ServerStatus.ACTIVE);
 
-			// server to server
-			CommunicationModule communicationModule = new CommunicationModule(socket, null);
-			communicationModule.receiveKVMessage();
+		return installed;
+	}
 
-			for (String key: all_keys) {
-				BigInteger keyHash = MD5Generator.generateHash(key);
-				if (transfer_range.isInRange(keyHash)) {
-					String value = dbManager.get(key);
+	/**
+	 * Move a range to another server without stopping writes for the copy.
+	 * Once the client writes in progress are stored, the keys clients write
+	 * are tracked and the range is copied while they keep writing. Then
+	 * WRITE_LOCK is set, again once the writes in progress are stored, and
+	 * only the tracked keys are sent again, deletes included. Returns in
+	 * WRITE_LOCK unless the copy failed.
+	 * @param snapshot whether to copy the range as a snapshot file instead
+	 *                 of chunks of pairs
+	 * @return false if the destination did not store everything
+	 */
+	private boolean migrate(String dstName, HashRange range, boolean snapshot) throws Exception {
+		String[] tokens = dstName.split(":");
 
-					communicationModule.sendKVMessage(KVMessage.StatusType.SERVER_PUT, key, value);
-					KVMessage reply = communicationModule.receiveKVMessage();
-					if (reply.getStatus() != KVMessage.StatusType.PUT_SUCCESS &&
-							reply.getStatus() != KVMessage.StatusType.PUT_UPDATE) {
-						logger.error("UNEXPECTED ERROR IN TRANSFER DATA!");
-					}
+		String dst_address = tokens[0];
+		int dst_port = Integer.parseInt(tokens[1]);
+
+		Set<String> written = ConcurrentHashMap.newKeySet();
+		// client writes already past their check store before the copy starts, so none goes untracked
+		handoffLock.writeLock().lock();
+		try {
+			trackedWrites = written;
+		} finally {
+			handoffLock.writeLock().unlock();
+		}
+		try {
+			long start = System.currentTimeMillis();
+			boolean copied = snapshot ? shipSnapshot(dst_address, dst_port, range)
+					: streamPairs(dst_address, dst_port, dbManager.keysInRange(range), false);
+			if (!copied) {
+				return false;
+			}
+
+			long locked = System.currentTimeMillis();
+			handoffLock.writeLock().lock();
+			try {
+				setServerStatus(ServerStatus.WRITE_LOCK);
+			} finally {
+				handoffLock.writeLock().unlock();
+			}
+			List<String> delta = new ArrayList<>();
+			for (String key : written) {
+				if (range.isInRange(MD5Generator.generateHash(key))) {
+					delta.add(key);
 				}
 			}
+			boolean handedOver = streamPairs(dst_address, dst_port, delta, true);
+			logger.info(String.format("Moved range %s to %s: copied in %d ms, %d later writes handed over in %d ms",
+					range, dstName, locked - start, delta.size(), System.currentTimeMillis() - locked));
+			return handedOver;
+		} finally {
+			trackedWrites = null;
+		}
+	}
 
-			communicationModule.closeCommunicationModule();
-		} catch (Exception e) {
-			logger.error("TRANSFER DATA FAILED");
-			return false;
+	/**
+	 * Write the range to a snapshot file, send it in compressed chunks
+	 * without waiting for each one and have the destination install it once
+	 * all are sent
+	 * @return false if the destination did not install it
+	 */
+	private boolean shipSnapshot(String address, int port, HashRange range) throws Exception {
+		File snapshot = File.createTempFile("kv-snapshot-", ".records");
+		try {
+			int records = dbManager.exportSnapshot(range, snapshot);
+			logger.info(String.format("Shipping snapshot of %d records (%d bytes)", records, snapshot.length()));
+			return records == 0 || shipSnapshot(address, port, snapshot);
+		} finally {
+			snapshot.delete();
 		}
+	}
 
-		setServerStatus(ServerStatus.ACTIVE);
+	private boolean shipSnapshot(String address, int port, File snapshot) throws Exception {
+		String snapshotId = this.name + "-" + Long.toHexString(System.nanoTime());
+		PipelinedConnection connection = new PipelinedConnection(address, port, true, TRANSFER_WINDOW);
+		try (InputStream in = new FileInputStream(snapshot)) {
+			List<CompletableFuture<KVMessage>> replies = new ArrayList<>();
+			byte[] chunk = new byte[SNAPSHOT_CHUNK_BYTES];
+			long offset = 0;
+			int read;
+			while ((read = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+				replies.add(connection.send(KVMessage.StatusType.SNAPSHOT_CHUNK, snapshotId + ":" + offset,
+						BatchCodec.compress(chunk, 0, read)));
+				offset += read;
+			}
+			replies.add(connection.send(KVMessage.StatusType.SNAPSHOT_INSTALL, snapshotId, Long.toString(offset)));
+			boolean installed = true;
+			for (CompletableFuture<KVMessage> reply : replies) {
+				installed &= reply.get().getStatus() == KVMessage.StatusType.BATCH_SUCCESS;
+			}
+			return installed;
+		} finally {
+			connection.close();
+		}
+	}
 
+	/**
+	 * Append the next chunk of a snapshot another server is shipping
+	 * @return false if the chunk does not continue the file where it ends
+	 */
+	public boolean receiveSnapshotChunk(String snapshotId, long offset, byte[] bytes) throws IOException {
+		File file = incomingSnapshots.get(snapshotId);
+		if (file == null) {
+			if (offset != 0) {
+				return false;
+			}
+			file = File.createTempFile("kv-snapshot-", ".records");
+			incomingSnapshots.put(snapshotId, file);
+		}
+		if (file.length() != offset) {
+			return false;
+		}
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(bytes);
+		}
 		return true;
 	}
 
+	/**
+	 * Hand a received snapshot to the storage engine, which takes its
+	 * records over as they are
+	 * @return the number of records installed, -1 if the file is incomplete
+	 */
+	public int installSnapshot(String snapshotId, long size) throws Exception {
+		File file = incomingSnapshots.remove(snapshotId);
+		if (file == null) {
+			return -1;
+		}
+		try {
+			if (file.length() != size) {
+				logger.error(String.format("Snapshot %s has %d of %d bytes", snapshotId, file.length(), size));
+				return -1;
+			}
+			cacheLock.lockExclusive();
+			try {
+				int records = dbManager.installSnapshot(file);
+				clearCache();
+				logger.info(String.format("Installed snapshot %s with %d records", snapshotId, records));
+				return records;
+			} finally {
+				cacheLock.unlockExclusive();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Send the pairs of the keys to another server in compressed chunks of
+	 * about TRANSFER_CHUNK_CHARS. Chunks are sent without waiting for the
+	 * one before, the destination stores each with one batch write, and the
+	 * replies are only checked once all chunks are sent.
+	 * @param deletes whether a key without a value is sent as a delete
+	 * @return false if the destination did not store every chunk
+	 */
+	private boolean streamPairs(String address, int port, Collection<String> keys, boolean deletes)
+			throws Exception {
+		PipelinedConnection connection = new PipelinedConnection(address, port, true, TRANSFER_WINDOW);
+		try {
+			List<CompletableFuture<KVMessage>> replies = new ArrayList<>();
+			List<KVMessage> chunk = new ArrayList<>();
+			long chars = 0;
+			for (String key : keys) {
+				String value = dbManager.get(key);
+				if (value == null && !deletes) {
+					continue;
+				}
+				chunk.add(new KVMessageEntity(KVMessage.StatusType.MPUT, key, value));
+				chars += key.length() + (value == null ? 0 : value.length());
+				if (chars >= TRANSFER_CHUNK_CHARS) {
+					replies.add(sendChunk(connection, chunk));
+					chunk = new ArrayList<>();
+					chars = 0;
+				}
+			}
+			if (!chunk.isEmpty()) {
+				replies.add(sendChunk(connection, chunk));
+			}
+			boolean stored = true;
+			for (CompletableFuture<KVMessage> reply : replies) {
+				stored &= reply.get().getStatus() == KVMessage.StatusType.BATCH_SUCCESS;
+			}
+			return stored;
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static CompletableFuture<KVMessage> sendChunk(PipelinedConnection connection, List<KVMessage> chunk) {
+		return connection.send(KVMessage.StatusType.TRANSFER_CHUNK, Integer.toString(chunk.size()),
+				BatchCodec.encodeCompressed(chunk));
+	}
+
 	public void deleteKVPairs(String range) {
 		HashRange transfer_range = new HashRange(range);
 
 		logger.info("Delete all data in range " + range);
 
-		Set<String> all_keys = dbManager.getALlKeys();
-
-		for (String key: all_keys) {
-			BigInteger keyHash = MD5Generator.generateHash(key);
-			if (transfer_range.isInRange(keyHash)) {
-				this.dbManager.delete(key);
-			}
+		for (String key: dbManager.keysInRange(transfer_range)) {
+			removeKV(key);
 		}
 	}
 
@@ -583,7 +1180,7 @@ public class KVServer extends Thread implements IKVServer {
 			logger.debug("Last node in ECS");
 		} else {
 			logger.debug("Deleting all keys from db");
-			dbManager.eraseDisk();
+			clearStorage();
 		}
 	}
 
@@ -652,12 +1249,22 @@ public class KVServer extends Thread implements IKVServer {
 	public static void main(String[] args) {
 		int port=-1;
 		int cacheSize = 100;
-		String strategy = "unkwown";
+		String strategy = "None";
 		String address = "localhost";
 		String dir = "disk";
 		String logdir = "logs/server.log";
 		Level logLevel = Level.ALL;
 		String ECSAddress = null;
+		String engine = "log";
+		FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+		long fsyncInterval = LogDatabase.DEFAULT_FSYNC_INTERVAL_MS;
+		double compactionRatio = LogCompactor.DEFAULT_DEAD_RATIO;
+		long compactionLogBytes = LogCompactor.DEFAULT_MAX_LOG_BYTES;
+		long statsInterval = DEFAULT_STATS_INTERVAL_S;
+		FrontEndMode frontEndMode = FrontEndMode.THREAD;
+		ReplicationAck replicationAck = ReplicationAck.ALL;
+		int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		int workerThreads = Runtime.getRuntime().availableProcessors() * 4;
 		try {
 			for (int i = 0; i < args.length; i++) {
 				switch (args[i]) {
@@ -676,6 +1283,42 @@ public class KVServer extends Thread implements IKVServer {
 					case "-b":
 						ECSAddress = args[++i];
 						break;
+					case "-c":
+						cacheSize = Integer.parseInt(args[++i]);
+						break;
+					case "-s":
+						strategy = args[++i];
+						break;
+					case "-si":
+						statsInterval = Long.parseLong(args[++i]);
+						break;
+					case "-m":
+						frontEndMode = FrontEndMode.fromString(args[++i]);
+						break;
+					case "-ra":
+						replicationAck = ReplicationAck.fromString(args[++i]);
+						break;
+					case "-iot":
+						ioThreads = Integer.parseInt(args[++i]);
+						break;
+					case "-wt":
+						workerThreads = Integer.parseInt(args[++i]);
+						break;
+					case "-e":
+						engine = args[++i];
+						break;
+					case "-fs":
+						fsyncPolicy = FsyncPolicy.fromString(args[++i]);
+						break;
+					case "-fi":
+						fsyncInterval = Long.parseLong(args[++i]);
+						break;
+					case "-cr":
+						compactionRatio = Double.parseDouble(args[++i]);
+						break;
+					case "-cl":
+						compactionLogBytes = Long.parseLong(args[++i]);
+						break;
 					case "-ll":
 						String levelString = args[++i];
 						if(levelString.equals(Level.ALL.toString())) {
@@ -707,7 +1350,21 @@ public class KVServer extends Thread implements IKVServer {
 			new LogSetup(logdir, logLevel);
 
 			String dbName = "database_" + address + "_" + port;
-			KVServer server = new KVServer(port, cacheSize, strategy, dir, dbName, address, ECSAddress);
+			IDatabase database;
+			if (engine.equals("bitcask")) {
+				BitcaskDatabase bitcask = new BitcaskDatabase(dir, dbName, fsyncPolicy, fsyncInterval,
+						BitcaskDatabase.DEFAULT_SEGMENT_BYTES);
+				bitcask.startCompactor(compactionRatio);
+				database = bitcask;
+			} else {
+				LogDatabase logDatabase = new LogDatabase(dir, dbName, fsyncPolicy, fsyncInterval);
+				logDatabase.startCompactor(compactionRatio, compactionLogBytes);
+				database = logDatabase;
+			}
+			KVServer server = new KVServer(port, cacheSize, strategy, database, address, ECSAddress);
+			server.getRequestStats().startReporting(statsInterval * 1000);
+			server.setFrontEnd(frontEndMode, ioThreads, workerThreads);
+			server.setReplicationAck(replicationAck);
 
 			server.start();
 		} catch (IOException e) {
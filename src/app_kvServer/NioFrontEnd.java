@@ -0,0 +1,351 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.CommunicationModule;
+import shared.MetadataSubscriber;
+import shared.messages.BinaryFrame;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageEntity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event driven front end of a KVServer. A few I/O threads multiplex all
+ * client connections with Selectors and a fixed worker pool runs the
+ * requests, so the number of threads does not grow with the number of
+ * connections. The requests of one connection are handled one after the
+ * other in arrival order; requests of different connections run in parallel.
+ */
+public class NioFrontEnd {
+    private static Logger logger = Logger.getLogger(NioFrontEnd.class);
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_MESSAGE_SIZE = BinaryFrame.HEADER_SIZE + 2 * BinaryFrame.MAX_FIELD_SIZE;
+
+    private final KVServer kvServer;
+    private final ServerSocketChannel serverChannel;
+    private final CommunicationModule handler;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean running;
+
+    public NioFrontEnd(KVServer kvServer, ServerSocketChannel serverChannel, int ioThreads, int workerThreads)
+            throws IOException {
+        this.kvServer = kvServer;
+        this.serverChannel = serverChannel;
+        this.handler = new CommunicationModule(kvServer);
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+        }
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), r -> {
+            Thread thread = new Thread(r, "kv-worker-" + workerId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Accept connections on the calling thread until the server channel is
+     * closed, handing every connection to the I/O threads in turn.
+     */
+    public void run() {
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "kv-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        logger.info(String.format("NIO front end started with %d I/O threads", loops.length));
+
+        int next = 0;
+        try {
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connections.incrementAndGet();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Connected to " + channel.getRemoteAddress());
+                }
+                loops[next].add(new Connection(channel));
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            if (running && serverChannel.isOpen()) {
+                logger.error("Error! Unable to establish connection.", e);
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdown();
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void add(Connection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.error("Selector failed", e);
+                    break;
+                }
+                Connection connection;
+                while ((connection = registrations.poll()) != null) {
+                    connection.register(selector);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("Cannot close selector", e);
+            }
+        }
+    }
+
+    private class Connection implements MetadataSubscriber {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer[]> writeQueue = new ArrayDeque<>();
+        private boolean binary;
+        private boolean busy; // a request of this connection is being handled
+        private boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized void register(Selector selector) {
+            try {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+                KVMessage greeting = new KVMessageEntity(StatusType.CONNECTED, "status", "successful");
+                write(new ByteBuffer[]{ByteBuffer.wrap(greeting.toByteArray())});
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        synchronized void onReadable() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                if (busy) {
+                    // a whole request is waiting, stop reading until it is taken
+                    setInterest(SelectionKey.OP_READ, false);
+                    return;
+                }
+                grow();
+            }
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            schedule();
+        }
+
+        synchronized void onWritable() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer[] frame = writeQueue.peek();
+                channel.write(frame);
+                if (CommunicationModule.hasRemaining(frame)) {
+                    return;
+                }
+                writeQueue.poll();
+            }
+            setInterest(SelectionKey.OP_WRITE, false);
+        }
+
+        /**
+         * Hand the next buffered request to a worker unless one is running.
+         */
+        private synchronized void schedule() {
+            if (busy || closed) {
+                return;
+            }
+            KVMessage message;
+            try {
+                message = decode();
+            } catch (IOException e) {
+                logger.warn("Dropping connection: " + e.getMessage());
+                close();
+                return;
+            }
+            if (message == null || readBuffer.hasRemaining()) {
+                // a partial request in a full buffer makes the next read grow it
+                setInterest(SelectionKey.OP_READ, true);
+            }
+            if (message == null) {
+                return;
+            }
+            busy = true;
+            try {
+                workers.execute(() -> serve(message));
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        private void serve(KVMessage message) {
+            try {
+                KVMessage reply = handler.handleRequest(message, this);
+                kvServer.getRequestStats().recordReply(reply.getStatus());
+                synchronized (this) {
+                    write(CommunicationModule.encode(reply, binary));
+                    if (reply.getStatus() == StatusType.PROTOCOL_UPGRADE_SUCCESS) {
+                        // the reply itself still goes out as text
+                        binary = true;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            } catch (Exception e) {
+                // same as the threaded front end: no reply, keep the connection
+                logger.error(e);
+            } finally {
+                synchronized (this) {
+                    busy = false;
+                }
+                schedule();
+            }
+        }
+
+        private KVMessage decode() throws IOException {
+            readBuffer.flip();
+            try {
+                return binary ? BinaryFrame.decode(readBuffer) : decodeLine();
+            } finally {
+                readBuffer.compact();
+            }
+        }
+
+        private KVMessage decodeLine() throws IOException {
+            for (int i = readBuffer.position(); i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    byte[] line = new byte[i - readBuffer.position()];
+                    readBuffer.get(line);
+                    readBuffer.get();
+                    if (line.length < 2) {
+                        i = readBuffer.position() - 1;
+                        continue;
+                    }
+                    return new KVMessageEntity(line);
+                }
+            }
+            return null;
+        }
+
+        private void grow() throws IOException {
+            if (readBuffer.capacity() >= MAX_MESSAGE_SIZE) {
+                throw new IOException("Message exceeds " + MAX_MESSAGE_SIZE + " bytes");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_MESSAGE_SIZE));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+
+        /**
+         * Write a frame right away if nothing is queued; whatever the socket
+         * does not take now is sent by the I/O thread once it is writable.
+         */
+        private synchronized void write(ByteBuffer[] frame) throws IOException {
+            if (closed) {
+                return;
+            }
+            if (writeQueue.isEmpty()) {
+                channel.write(frame);
+                if (!CommunicationModule.hasRemaining(frame)) {
+                    return;
+                }
+            }
+            writeQueue.add(frame);
+            setInterest(SelectionKey.OP_WRITE, true);
+        }
+
+        @Override
+        public synchronized void pushMetadata(KVMessage update) throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            write(CommunicationModule.encode(update, binary));
+        }
+
+        private void setInterest(int op, boolean enabled) {
+            int ops = key.interestOps();
+            int updated = enabled ? ops | op : ops & ~op;
+            if (updated != ops) {
+                key.interestOps(updated);
+                key.selector().wakeup();
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.decrementAndGet();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Cannot close connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package app_kvServer;
+
+/**
+ * How many replicas must acknowledge a write before the coordinator answers
+ * the client. Writes are sent to all replicas in any case.
+ */
+public enum ReplicationAck {
+    NONE,   /* answer right after the local write */
+    ONE,    /* wait for the first replica */
+    ALL;    /* wait for every replica */
+
+    public static ReplicationAck fromString(String ack) {
+        try {
+            return ReplicationAck.valueOf(ack.toUpperCase());
+        } catch (Exception e) {
+            return ALL;
+        }
+    }
+
+    /**
+     * @return the number of acknowledgements to wait for out of the given replicas
+     */
+    int required(int replicas) {
+        switch (this) {
+            case NONE:
+                return 0;
+            case ONE:
+                return Math.min(1, replicas);
+            default:
+                return replicas;
+        }
+    }
+}
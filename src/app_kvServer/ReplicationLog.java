@@ -0,0 +1,100 @@
+package app_kvServer;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The writes a coordinator sent to its replicas, numbered in the order they
+ * were sent. The newest ones are kept up to a number of records and bytes,
+ * so a replica that missed a few can be caught up from the last number it
+ * applied instead of getting a full copy of the range.
+ */
+public class ReplicationLog {
+    public static final int DEFAULT_MAX_RECORDS = 16384;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * One replicated write request, a single write or a batch
+     */
+    public static class Record {
+        final long sequence;
+        final String entries; // encoded by BatchCodec
+        final long bytes;
+
+        Record(long sequence, String entries) {
+            this.sequence = sequence;
+            this.entries = entries;
+            this.bytes = entries.length(); // chars, the bytes of ASCII values
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    // lets replicas tell the numbers of this run from those of an earlier one
+    private final String id = Long.toHexString(new SecureRandom().nextLong());
+    private final ArrayDeque<Record> records = new ArrayDeque<>();
+    private long lastSequence;
+    private long bytes;
+    private int maxRecords = DEFAULT_MAX_RECORDS;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Number a write and keep it, dropping the oldest records over the limits
+     */
+    public synchronized Record append(String entries) {
+        Record record = new Record(++lastSequence, entries);
+        records.addLast(record);
+        bytes += record.bytes;
+        trim();
+        return record;
+    }
+
+    /**
+     * @return the records after the given sequence number in order, or null
+     *         if some of them were already dropped
+     */
+    public synchronized List<Record> since(long sequence) {
+        if (sequence >= lastSequence) {
+            return new ArrayList<>(0);
+        }
+        Record oldest = records.peekFirst();
+        if (oldest == null || oldest.sequence > sequence + 1) {
+            return null;
+        }
+        List<Record> missed = new ArrayList<>((int) (lastSequence - sequence));
+        for (Record record : records) {
+            if (record.sequence > sequence) {
+                missed.add(record);
+            }
+        }
+        return missed;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    public synchronized void setLimits(int maxRecords, long maxBytes) {
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    private void trim() {
+        while (!records.isEmpty() && (records.size() > maxRecords || bytes > maxBytes)) {
+            bytes -= records.removeFirst().bytes;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package app_kvServer;
+
+import client.PipelinedConnection;
+import database.KVPair;
+import org.apache.log4j.Logger;
+import shared.HashRange;
+import shared.messages.BatchCodec;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageEntity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the writes of a coordinator to its replicas. Every write is
+ * numbered in a ReplicationLog and sent on one pipelined connection per
+ * replica. When a connection fails or a replica refuses a write, the
+ * replica is asked for the last number it applied and is sent the writes
+ * after it from the log; only if the log no longer reaches back that far
+ * does it get a full copy of the coordinator's range.
+ */
+public class Replicator {
+    private static Logger logger = Logger.getLogger(Replicator.class);
+    static final int WINDOW = 4096; // writes on the way to one replica
+    private static final int RESYNC_BATCH = 256;
+    private static final long SYNC_TIMEOUT_MS = 5000;
+    private static final long MIN_RECONNECT_DELAY_MS = 100;
+    private static final long MAX_RECONNECT_DELAY_MS = 5000;
+
+    // one daemon thread reconnects the replicas of all servers in this process
+    private static final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "kv-replica-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final KVServer server;
+    private final ReplicationLog log = new ReplicationLog();
+    private volatile List<Stream> streams = Collections.emptyList();
+
+    /**
+     * The connection to one replica. Writes are only sent while it is live,
+     * the ones in between are sent from the log when it catches up.
+     */
+    private class Stream {
+        final String replica;
+        volatile PipelinedConnection connection;
+        volatile boolean live;
+        volatile boolean closed;
+        long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+
+        Stream(String replica) {
+            this.replica = replica;
+        }
+    }
+
+    Replicator(KVServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Replace the replicas, connecting to the new ones and catching them up
+     * @param replicas "address:port" of each replica
+     */
+    void setReplicas(List<String> replicas) {
+        for (Stream stream : streams) {
+            stream.closed = true;
+            stream.live = false;
+            if (stream.connection != null) {
+                stream.connection.close();
+            }
+        }
+        List<Stream> created = new ArrayList<>(replicas.size());
+        for (String replica : replicas) {
+            created.add(new Stream(replica));
+        }
+        streams = created;
+        for (Stream stream : created) {
+            connect(stream);
+        }
+    }
+
+    /**
+     * Number the writes and send them to every live replica without waiting.
+     * Numbering and sending happen under the log's lock, so the replicas get
+     * the writes in the order of their numbers.
+     * @return the replies of the live replicas
+     */
+    List<CompletableFuture<KVMessage>> replicate(List<KVMessage> entries) {
+        String encoded = BatchCodec.encode(entries);
+        List<CompletableFuture<KVMessage>> replies = new ArrayList<>(2);
+        synchronized (log) {
+            ReplicationLog.Record record = log.append(encoded);
+            for (Stream stream : streams) {
+                if (stream.live) {
+                    replies.add(send(stream, stream.connection, record));
+                }
+            }
+        }
+        return replies;
+    }
+
+    private CompletableFuture<KVMessage> send(Stream stream, PipelinedConnection connection,
+                                              ReplicationLog.Record record) {
+        CompletableFuture<KVMessage> reply = connection.send(StatusType.REPLICA_APPEND,
+                log.getId() + ":" + record.sequence, record.entries);
+        reply.whenComplete((response, e) -> {
+            if (e != null || response.getStatus() != StatusType.BATCH_SUCCESS) {
+                lost(stream, connection);
+            }
+        });
+        return reply;
+    }
+
+    /**
+     * Stop sending to a replica that missed a write and catch it up on a
+     * new connection
+     */
+    private void lost(Stream stream, PipelinedConnection connection) {
+        synchronized (stream) {
+            if (stream.connection != connection || !stream.live || stream.closed) {
+                return;
+            }
+            stream.live = false;
+        }
+        logger.warn("Replica " + stream.replica + " missed writes, catching it up");
+        connection.close();
+        reconnector.schedule(() -> connect(stream), MIN_RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ask the replica for the last write it applied and send it the ones after
+     */
+    private void connect(Stream stream) {
+        if (stream.closed) {
+            return;
+        }
+        PipelinedConnection connection = null;
+        try {
+            String[] address = stream.replica.split(":");
+            connection = new PipelinedConnection(address[0], Integer.parseInt(address[1]), true, WINDOW);
+            KVMessage reply = connection.send(StatusType.REPLICA_SYNC, log.getId(), null)
+                    .get(SYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (reply.getStatus() != StatusType.REPLICA_SYNC_SUCCESS) {
+                throw new IOException("Replica answered " + reply.getStatus());
+            }
+            long applied = Long.parseLong(reply.getKey());
+            synchronized (log) {
+                synchronized (stream) {
+                    if (stream.closed) {
+                        connection.close();
+                        return;
+                    }
+                    stream.connection = connection;
+                    stream.live = true; // before sending, so a failed write is caught up again
+                }
+                List<ReplicationLog.Record> missed = log.since(applied);
+                if (missed == null) {
+                    resync(stream, connection);
+                } else {
+                    for (ReplicationLog.Record record : missed) {
+                        send(stream, connection, record);
+                    }
+                    if (!missed.isEmpty()) {
+                        server.getRequestStats().recordReplicaCatchUp(missed.size());
+                        logger.info(String.format("Caught up replica %s with %d writes", stream.replica,
+                                missed.size()));
+                    }
+                }
+                stream.reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+            }
+        } catch (Exception e) {
+            if (connection != null) {
+                synchronized (stream) {
+                    if (stream.connection == connection) {
+                        stream.live = false;
+                    }
+                }
+                connection.close();
+            }
+            logger.warn("Cannot connect to replica " + stream.replica + ", retrying in "
+                    + stream.reconnectDelayMs + " ms");
+            reconnector.schedule(() -> connect(stream), stream.reconnectDelayMs, TimeUnit.MILLISECONDS);
+            stream.reconnectDelayMs = Math.min(MAX_RECONNECT_DELAY_MS, stream.reconnectDelayMs * 2);
+        }
+    }
+
+    /**
+     * Replace the replica's copy of the coordinator's range with the current
+     * one. Runs under the log's lock, so writes wait and every write numbered
+     * later reaches the replica after the copy.
+     */
+    private void resync(Stream stream, PipelinedConnection connection) throws Exception {
+        HashRange range = server.getResponsibleRange();
+        logger.warn("Replica " + stream.replica + " missed more writes than the replication log holds, copying "
+                + range);
+        server.getRequestStats().recordReplicaResync();
+        List<CompletableFuture<KVMessage>> replies = new ArrayList<>();
+        replies.add(connection.send(StatusType.REPLICA_RESYNC, log.getId() + ":" + log.getLastSequence(),
+                range.toString()));
+        List<KVMessage> batch = new ArrayList<>(RESYNC_BATCH);
+        for (KVPair pair : server.pairsInRange(range)) {
+            batch.add(new KVMessageEntity(StatusType.MPUT, pair.getKey(), pair.getValue()));
+            if (batch.size() == RESYNC_BATCH) {
+                replies.add(sendBatch(connection, batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            replies.add(sendBatch(connection, batch));
+        }
+        for (CompletableFuture<KVMessage> reply : replies) {
+            reply.whenComplete((response, e) -> {
+                if (e != null || (response.getStatus() != StatusType.BATCH_SUCCESS
+                        && response.getStatus() != StatusType.REPLICA_SYNC_SUCCESS)) {
+                    lost(stream, connection);
+                }
+            });
+        }
+    }
+
+    private static CompletableFuture<KVMessage> sendBatch(PipelinedConnection connection, List<KVMessage> batch) {
+        return connection.send(StatusType.REPLICA_BATCH, Integer.toString(batch.size()), BatchCodec.encode(batch));
+    }
+
+    /**
+     * Stop replicating and close the connections
+     */
+    void close() {
+        setReplicas(Collections.emptyList());
+    }
+
+    ReplicationLog getLog() {
+        return log;
+    }
+}
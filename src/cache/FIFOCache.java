@@ -0,0 +1,59 @@
+package cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts the entry that was inserted first.
+ */
+public class FIFOCache extends KVCache {
+    private final Map<String, String> entries;
+
+    public FIFOCache(int capacity) {
+        this(capacity, false);
+    }
+
+    protected FIFOCache(int capacity, boolean accessOrder) {
+        super(capacity);
+        this.entries = new LinkedHashMap<String, String>(16, 0.75f, accessOrder) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > FIFOCache.this.capacity) {
+                    recordEviction();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    protected synchronized String lookup(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        entries.put(key, value);
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+}
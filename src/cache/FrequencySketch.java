@@ -0,0 +1,90 @@
+package cache;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often a key was seen
+ * recently. Every counter is halved once the number of recorded accesses
+ * reaches the sample size, so the estimate follows a changing workload.
+ * Not thread safe, the owning cache guards it.
+ */
+public class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    public FrequencySketch(int capacity) {
+        int counters = Integer.highestOneBit(Math.max(16, capacity * 4 - 1)) << 1;
+        // 16 counters of 4 bits per long
+        this.table = new long[counters / 16];
+        this.mask = counters - 1;
+        this.sampleSize = Math.max(10 * capacity, 16);
+    }
+
+    /**
+     * @return the estimated number of recent accesses of the key, at most 15
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counter(indexOf(hash, i)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an access of the key.
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            added |= incrementAt(indexOf(hash, i));
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int counter(int index) {
+        int shift = (index & 15) << 2;
+        return (int) ((table[index >>> 4] >>> shift) & 0xF);
+    }
+
+    private boolean incrementAt(int index) {
+        int shift = (index & 15) << 2;
+        int slot = index >>> 4;
+        if (((table[slot] >>> shift) & 0xF) == MAX_COUNT) {
+            return false;
+        }
+        table[slot] += 1L << shift;
+        return true;
+    }
+
+    /**
+     * Halve every counter so old accesses weigh less than recent ones.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+        additions /= 2;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xED5AD4BB;
+        hash ^= hash >>> 11;
+        return hash;
+    }
+}
@@ -0,0 +1,103 @@
+package cache;
+
+import app_kvServer.IKVServer.CacheStrategy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of key-value pairs kept by a server in front of its
+ * storage engine. Subclasses decide which entry is evicted once the cache is
+ * full; this class keeps the hit/miss/eviction counters.
+ */
+public abstract class KVCache {
+    protected final int capacity;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    protected KVCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Create the cache for a replacement strategy.
+     * @return the cache, or null if the strategy is None or the size is not positive
+     */
+    public static KVCache create(CacheStrategy strategy, int capacity) {
+        if (capacity <= 0) {
+            return null;
+        }
+        switch (strategy) {
+            case FIFO:
+                return new FIFOCache(capacity);
+            case LRU:
+                return new LRUCache(capacity);
+            case LFU:
+                return new LFUCache(capacity);
+            case TinyLFU:
+                return new TinyLFUCache(capacity);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get the cached value of the key and count the hit or miss.
+     * @return the value, null if the key is not cached
+     */
+    public String get(String key) {
+        String value = lookup(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public abstract void put(String key, String value);
+
+    public abstract void remove(String key);
+
+    /**
+     * Check if the key is cached without touching the replacement order.
+     */
+    public abstract boolean contains(String key);
+
+    public abstract void clear();
+
+    public abstract int size();
+
+    protected abstract String lookup(String key);
+
+    protected void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public String toString() {
+        return String.format("%s(size=%d/%d, hits=%d, misses=%d, evictions=%d)", getClass().getSimpleName(),
+                size(), capacity, getHits(), getMisses(), getEvictions());
+    }
+}
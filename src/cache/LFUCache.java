@@ -0,0 +1,109 @@
+package cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Evicts the entry that was read or written the least often, the oldest one
+ * among equally frequent entries. All operations are O(1).
+ */
+public class LFUCache extends KVCache {
+    private final Map<String, String> values = new HashMap<>();
+    private final Map<String, Integer> frequencies = new HashMap<>();
+    private final Map<Integer, LinkedHashSet<String>> keysByFrequency = new HashMap<>();
+    private int minFrequency;
+
+    public LFUCache(int capacity) {
+        super(capacity);
+    }
+
+    @Override
+    protected synchronized String lookup(String key) {
+        String value = values.get(key);
+        if (value != null) {
+            touch(key);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        if (values.containsKey(key)) {
+            values.put(key, value);
+            touch(key);
+            return;
+        }
+        if (values.size() >= capacity) {
+            evict();
+        }
+        values.put(key, value);
+        frequencies.put(key, 1);
+        keysByFrequency.computeIfAbsent(1, f -> new LinkedHashSet<>()).add(key);
+        minFrequency = 1;
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        if (values.remove(key) == null) {
+            return;
+        }
+        int frequency = frequencies.remove(key);
+        LinkedHashSet<String> keys = keysByFrequency.get(frequency);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByFrequency.remove(frequency);
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        values.clear();
+        frequencies.clear();
+        keysByFrequency.clear();
+        minFrequency = 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        return values.size();
+    }
+
+    private void touch(String key) {
+        int frequency = frequencies.get(key);
+        frequencies.put(key, frequency + 1);
+
+        LinkedHashSet<String> keys = keysByFrequency.get(frequency);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByFrequency.remove(frequency);
+            if (minFrequency == frequency) {
+                minFrequency = frequency + 1;
+            }
+        }
+        keysByFrequency.computeIfAbsent(frequency + 1, f -> new LinkedHashSet<>()).add(key);
+    }
+
+    private void evict() {
+        LinkedHashSet<String> keys = keysByFrequency.get(minFrequency);
+        if (keys == null) {
+            // minFrequency is stale after a remove, find the real minimum
+            minFrequency = Integer.MAX_VALUE;
+            for (int frequency : keysByFrequency.keySet()) {
+                minFrequency = Math.min(minFrequency, frequency);
+            }
+            keys = keysByFrequency.get(minFrequency);
+            if (keys == null) {
+                return;
+            }
+        }
+        String victim = keys.iterator().next();
+        remove(victim);
+        recordEviction();
+    }
+}
@@ -0,0 +1,11 @@
+package cache;
+
+/**
+ * Evicts the entry that was least recently read or written.
+ */
+public class LRUCache extends FIFOCache {
+
+    public LRUCache(int capacity) {
+        super(capacity, true);
+    }
+}
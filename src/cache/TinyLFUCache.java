@@ -0,0 +1,145 @@
+package cache;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Scan resistant cache after W-TinyLFU. New keys enter a small LRU window;
+ * a key pushed out of the window only replaces the next eviction victim of
+ * the main area if the {@link FrequencySketch} has seen it more often. The
+ * main area is a segmented LRU: keys start in probation and move to the
+ * protected segment when they are hit again.
+ *
+ * A table scan reads every row once, so its keys lose the admission race
+ * against the hot keys and the working set stays cached.
+ */
+public class TinyLFUCache extends KVCache {
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final int protectedCapacity;
+
+    private final LinkedHashMap<String, String> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, String> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, String> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    public TinyLFUCache(int capacity) {
+        super(capacity);
+        this.windowCapacity = Math.max(1, (int) (capacity * WINDOW_RATIO));
+        this.mainCapacity = capacity - windowCapacity;
+        this.protectedCapacity = (int) (mainCapacity * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    @Override
+    protected synchronized String lookup(String key) {
+        sketch.increment(key);
+        String value = window.get(key);
+        if (value != null) {
+            return value;
+        }
+        value = protectedSegment.get(key);
+        if (value != null) {
+            return value;
+        }
+        value = probation.remove(key);
+        if (value != null) {
+            promote(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        sketch.increment(key);
+        if (window.containsKey(key)) {
+            window.put(key, value);
+            return;
+        }
+        if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, value);
+            return;
+        }
+        if (probation.remove(key) != null) {
+            promote(key, value);
+            return;
+        }
+
+        window.put(key, value);
+        if (window.size() > windowCapacity) {
+            Map.Entry<String, String> candidate = removeEldest(window);
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    /**
+     * Move a key that was hit in probation to the protected segment, demoting
+     * the least recently used protected key back to probation if it is full.
+     */
+    private void promote(String key, String value) {
+        protectedSegment.put(key, value);
+        if (protectedSegment.size() > protectedCapacity) {
+            Map.Entry<String, String> demoted = removeEldest(protectedSegment);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    /**
+     * Let a key evicted from the window into the main area if it is used
+     * more often than the key the main area would evict for it.
+     */
+    private void admit(String key, String value) {
+        if (probation.size() + protectedSegment.size() < mainCapacity) {
+            probation.put(key, value);
+            return;
+        }
+        LinkedHashMap<String, String> victims = probation.isEmpty() ? protectedSegment : probation;
+        if (victims.isEmpty()) {
+            recordEviction();
+            return;
+        }
+        String victim = victims.keySet().iterator().next();
+        if (sketch.frequency(key) > sketch.frequency(victim)) {
+            victims.remove(victim);
+            probation.put(key, value);
+        }
+        recordEviction();
+    }
+
+    private static Map.Entry<String, String> removeEldest(LinkedHashMap<String, String> segment) {
+        Iterator<Map.Entry<String, String>> iterator = segment.entrySet().iterator();
+        Map.Entry<String, String> eldest = iterator.next();
+        Map.Entry<String, String> entry = new AbstractMap.SimpleEntry<>(eldest);
+        iterator.remove();
+        return entry;
+    }
+}
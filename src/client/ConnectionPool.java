@@ -0,0 +1,271 @@
+package client;
+
+import org.apache.log4j.Logger;
+import shared.CommunicationModule;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent connections of one client to the servers of the ring, keyed by
+ * "address:port". Blocking requests borrow a connection for one round trip
+ * and give it back; async requests share a few pipelined connections per
+ * server. A background thread closes connections that were idle for longer
+ * than the idle timeout, and a connection that was idle for longer than the
+ * health check interval is probed with IS_ALIVE before it is handed out again.
+ */
+public class ConnectionPool {
+	private static Logger logger = Logger.getLogger(ConnectionPool.class);
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+	public static final long DEFAULT_HEALTH_CHECK_MS = 5000;
+	private static final int PIPELINED_PER_SERVER = 2;
+
+	// one daemon thread evicts the idle connections of all pools
+	private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "kv-pool-evictor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Map<String, Deque<Connection>> idle = new ConcurrentHashMap<>();
+	private final Map<String, PipelinedConnection[]> pipelined = new ConcurrentHashMap<>();
+	private final AtomicInteger roundRobin = new AtomicInteger();
+	private final AtomicInteger opened = new AtomicInteger();
+	private volatile boolean binaryProtocol = true;
+	private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+	private volatile long healthCheckMs = DEFAULT_HEALTH_CHECK_MS;
+	private ScheduledFuture<?> eviction;
+
+	/**
+	 * A blocking connection, used by one thread at a time between borrow and release
+	 */
+	public static class Connection {
+		private final String server;
+		private final Socket socket;
+		private final CommunicationModule communicationModule;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		private Connection(String server, boolean binaryProtocol) throws IOException {
+			String[] tokens = server.split(":");
+			this.server = server;
+			this.socket = new Socket(tokens[0], Integer.parseInt(tokens[1]));
+			this.socket.setTcpNoDelay(true);
+			this.communicationModule = new CommunicationModule(socket, null);
+			try {
+				communicationModule.receiveKVMessage();
+				if (binaryProtocol) {
+					communicationModule.upgradeProtocol();
+				}
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Send a request and wait for its reply
+		 */
+		public KVMessage request(StatusType status, String key, String value) throws IOException {
+			communicationModule.sendKVMessage(status, key, value);
+			return communicationModule.receiveKVMessage();
+		}
+
+		public String getServer() {
+			return server;
+		}
+
+		public boolean isBinaryProtocol() {
+			return communicationModule.isBinaryProtocol();
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				logger.error("Unable to close connection to " + server, e);
+			}
+		}
+	}
+
+	/**
+	 * Take an idle connection to the server, or open a new one. Any reply to
+	 * IS_ALIVE counts as healthy, so servers that do not know it still pass.
+	 */
+	public Connection borrow(String server) throws IOException {
+		Deque<Connection> connections = idle.get(server);
+		Connection connection;
+		while (connections != null && (connection = connections.pollFirst()) != null) {
+			if (System.currentTimeMillis() - connection.lastUsed < healthCheckMs) {
+				return connection;
+			}
+			try {
+				connection.request(StatusType.IS_ALIVE, null, null);
+				return connection;
+			} catch (IOException e) {
+				logger.info("Dropping dead connection to " + server);
+				connection.close();
+			}
+		}
+		return open(server);
+	}
+
+	/**
+	 * Open a new connection to the server, bypassing the idle ones
+	 */
+	public Connection open(String server) throws IOException {
+		Connection connection = new Connection(server, binaryProtocol);
+		opened.incrementAndGet();
+		scheduleEviction();
+		return connection;
+	}
+
+	/**
+	 * Give a connection back after a complete request; the most recently used
+	 * connections are handed out first so that the others can age out
+	 */
+	public void release(Connection connection) {
+		connection.lastUsed = System.currentTimeMillis();
+		idle.computeIfAbsent(connection.getServer(), s -> new ConcurrentLinkedDeque<>()).offerFirst(connection);
+	}
+
+	/**
+	 * Close a connection that failed or is in an unknown state
+	 */
+	public void invalidate(Connection connection) {
+		connection.close();
+	}
+
+	/**
+	 * @return one of the pipelined connections to the server, picked round robin
+	 */
+	public PipelinedConnection pipelined(String server) throws IOException {
+		PipelinedConnection[] connections = pipelined.computeIfAbsent(server,
+				s -> new PipelinedConnection[PIPELINED_PER_SERVER]);
+		int slot = Math.floorMod(roundRobin.getAndIncrement(), connections.length);
+		synchronized (connections) {
+			if (connections[slot] == null || !connections[slot].isOpen()) {
+				connections[slot] = openPipelined(server, PipelinedConnection.DEFAULT_MAX_OUTSTANDING);
+				scheduleEviction();
+			}
+			return connections[slot];
+		}
+	}
+
+	/**
+	 * Open a pipelined connection that the caller owns; it is neither shared
+	 * nor evicted
+	 */
+	public PipelinedConnection openPipelined(String server, int maxOutstanding) throws IOException {
+		String[] tokens = server.split(":");
+		PipelinedConnection connection = new PipelinedConnection(tokens[0], Integer.parseInt(tokens[1]),
+				binaryProtocol, maxOutstanding);
+		opened.incrementAndGet();
+		return connection;
+	}
+
+	private synchronized void scheduleEviction() {
+		if (eviction == null) {
+			long period = Math.max(100, idleTimeoutMs / 2);
+			eviction = evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Close the connections idle for longer than the idle timeout
+	 */
+	void evictIdle() {
+		long oldest = System.currentTimeMillis() - idleTimeoutMs;
+		for (Deque<Connection> connections : idle.values()) {
+			for (Connection connection : connections) {
+				// borrow may take the connection at the same time, only one of them removes it
+				if (connection.lastUsed < oldest && connections.removeFirstOccurrence(connection)) {
+					connection.close();
+				}
+			}
+		}
+		for (PipelinedConnection[] connections : pipelined.values()) {
+			synchronized (connections) {
+				for (int i = 0; i < connections.length; i++) {
+					PipelinedConnection connection = connections[i];
+					if (connection != null && (!connection.isOpen()
+							|| (connection.getOutstanding() == 0 && connection.getLastUsed() < oldest))) {
+						connection.close();
+						connections[i] = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close all connections. The pool can still be used afterwards and opens
+	 * new connections on demand.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (eviction != null) {
+				eviction.cancel(false);
+				eviction = null;
+			}
+		}
+		for (Deque<Connection> connections : idle.values()) {
+			Connection connection;
+			while ((connection = connections.pollFirst()) != null) {
+				connection.close();
+			}
+		}
+		for (PipelinedConnection[] connections : pipelined.values()) {
+			synchronized (connections) {
+				for (int i = 0; i < connections.length; i++) {
+					if (connections[i] != null) {
+						connections[i].close();
+						connections[i] = null;
+					}
+				}
+			}
+		}
+	}
+
+	public void setBinaryProtocol(boolean binaryProtocol) {
+		this.binaryProtocol = binaryProtocol;
+	}
+
+	public synchronized void setIdleTimeout(long idleTimeoutMs) {
+		this.idleTimeoutMs = idleTimeoutMs;
+		if (eviction != null) {
+			eviction.cancel(false);
+			eviction = null;
+			scheduleEviction();
+		}
+	}
+
+	public void setHealthCheckInterval(long healthCheckMs) {
+		this.healthCheckMs = healthCheckMs;
+	}
+
+	/**
+	 * @return the number of idle blocking connections to the server
+	 */
+	public int getIdleCount(String server) {
+		Deque<Connection> connections = idle.get(server);
+		return connections == null ? 0 : connections.size();
+	}
+
+	/**
+	 * @return the number of connections opened since the pool was created
+	 */
+	public int getOpenedCount() {
+		return opened.get();
+	}
+}
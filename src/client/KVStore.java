@@ -3,29 +3,59 @@ package client;
 import org.apache.log4j.Logger;
 import shared.CommunicationModule;
 import shared.Metadata;
+import shared.messages.BatchCodec;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
 import shared.messages.KVMessageEntity;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class KVStore implements client.KVCommInterface {
-	private Socket clientSocket;
+	// the server of the last request; keyrange and pipeline go there
 	private String address;
 	private int port;
-	private OutputStream output;
-	private InputStream input;
 
 	private final Logger logger = Logger.getLogger(KVStore.class);
 	private boolean running;
 
-	private Metadata metadata;
-
-	private CommunicationModule communicationModule;
+	private volatile Metadata metadata;
+
+	private final ConnectionPool pool = new ConnectionPool();
+	private PipelinedConnection subscription; // receives pushed metadata, see subscribeMetadata
+	private volatile boolean subscribed;
+	private final AtomicBoolean refreshing = new AtomicBoolean(); // one async metadata refresh at a time
+	private final ReadRouter readRouter = new ReadRouter();
+	private volatile double hedgePercentile; // 0: no hedged reads
+	private final LatencyTracker readLatencies = new LatencyTracker(1024);
+	private final AtomicLong hedgedReads = new AtomicLong();
+	private static final long DEFAULT_HEDGE_DELAY_MS = 10;
+	// below this the timer thread and scheduling jitter alone trigger most hedges
+	private static final long MIN_HEDGE_DELAY_US = 1000;
+	// one daemon thread sends the duplicate reads of all clients
+	private static final ScheduledExecutorService hedgeTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "kv-hedge-timer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final int MAX_REROUTES = 5;
+	private static final int RETRY_DELAY_MS = 20;
+	private static final int MAX_BATCH_ENTRIES = 1000;
+	private static final int MAX_BATCH_CHARS = 4 * 1024 * 1024;
 
 	private String tableDelimiter = "@";
 	private String queryDelimiter = ";";
@@ -41,19 +71,16 @@ public class KVStore implements client.KVCommInterface {
 		this.port = port;
 		this.metadata = new Metadata();
 		this.metadata.addServer(address, port);
+		this.metadata.setVersion(0); // only a guess, any server knows better
 		setRunning(true);
 	}
 
+	/**
+	 * Open the first connection of the pool, to the server given in the constructor
+	 */
 	@Override
 	public void connect() throws Exception {
-		clientSocket = new Socket(address, port);
-		try {
-			output = clientSocket.getOutputStream();
-			input = clientSocket.getInputStream();
-			communicationModule = new CommunicationModule(clientSocket, null); // null
-			communicationModule.receiveKVMessage();
-		} catch (Exception e) {
-		}
+		pool.release(pool.borrow(address + ":" + port));
 		setRunning(true);
 	}
 
@@ -69,13 +96,99 @@ public class KVStore implements client.KVCommInterface {
 	private void tearDownConnection() throws IOException {
 		setRunning(false);
 		logger.info("tearing down the connection ...");
-		if (clientSocket != null) {
-			input.close();
-			output.close();
-			clientSocket.close();
-			clientSocket = null;
-			logger.info("connection closed!");
+		subscribed = false;
+		if (subscription != null) {
+			subscription.close();
+			subscription = null;
+		}
+		pool.close();
+		logger.info("connection closed!");
+	}
+
+	/**
+	 * Send a request on a pooled connection to the server and wait for the
+	 * reply. If a reused connection turns out to be broken the request is
+	 * sent once more on a new connection. A reply with a newer metadata
+	 * version than ours is followed by a KEYRANGE on the same connection.
+	 */
+	private KVMessage request(String server, StatusType status, String key, String value) throws IOException {
+		ConnectionPool.Connection connection = pool.borrow(server);
+		KVMessage response;
+		try {
+			response = connection.request(status, key, value);
+		} catch (IOException e) {
+			pool.invalidate(connection);
+			connection = pool.open(server);
+			try {
+				response = connection.request(status, key, value);
+			} catch (IOException retryFailed) {
+				pool.invalidate(connection);
+				throw retryFailed;
+			}
+		}
+		try {
+			if (isStale(response)) {
+				updateMetadata(connection.request(StatusType.KEYRANGE, null, null));
+			}
+		} catch (IOException e) {
+			pool.invalidate(connection);
+			return response;
+		}
+		pool.release(connection);
+		if (subscribed && (subscription == null || !subscription.isOpen())) {
+			try {
+				subscribe(server);
+			} catch (IOException e) {
+				logger.warn("Unable to subscribe to metadata of " + server);
+			}
+		}
+		String[] tokens = server.split(":");
+		this.address = tokens[0];
+		this.port = Integer.parseInt(tokens[1]);
+		return response;
+	}
+
+	/**
+	 * Send a read to the coordinator or one of its replicas, as the read
+	 * policy picks. A replica that fails or turns the key down, e.g. because
+	 * its metadata is older than ours, is passed over for the coordinator.
+	 */
+	private KVMessage read(String routingKey, StatusType status, String key, String value) throws IOException {
+		List<String> servers = metadata.findReadServers(routingKey);
+		if (servers.isEmpty()) {
+			return request(responsibleServer(routingKey), status, key, value);
+		}
+		String server = readRouter.choose(servers);
+		readRouter.started(server);
+		long start = System.nanoTime();
+		KVMessage response;
+		try {
+			response = request(server, status, key, value);
+			readRouter.finished(server, System.nanoTime() - start);
+		} catch (IOException e) {
+			readRouter.finished(server, -1);
+			if (server.equals(servers.get(0))) {
+				throw e;
+			}
+			logger.warn("Replica " + server + " failed, reading from the coordinator");
+			return request(servers.get(0), status, key, value);
+		}
+		if (response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE && !server.equals(servers.get(0))) {
+			return request(servers.get(0), status, key, value);
 		}
+		return response;
+	}
+
+	/**
+	 * Choose whether reads go to the coordinator only (default) or are
+	 * spread over the coordinator and its replicas
+	 */
+	public void setReadPolicy(ReadPolicy policy) {
+		readRouter.setPolicy(policy);
+	}
+
+	public ReadPolicy getReadPolicy() {
+		return readRouter.getPolicy();
 	}
 
 	private void handleServerShutdown() {
@@ -96,8 +209,7 @@ public class KVStore implements client.KVCommInterface {
 		KVMessage response = null;
 
 		try {
-			communicationModule.sendKVMessage(StatusType.PUT, key, value);
-			response = communicationModule.receiveKVMessage();
+			response = request(responsibleServer(key), StatusType.PUT, key, value);
 
 			if (response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
 				logger.info("Server Not Responsible");
@@ -125,8 +237,8 @@ public class KVStore implements client.KVCommInterface {
 		KVMessage response = null;
 
 		try {
-			communicationModule.sendKVMessage(StatusType.GET, key, null);
-			response = communicationModule.receiveKVMessage();
+			response = hedgePercentile > 0 ? hedgedRead(StatusType.GET, key, key, null).get()
+					: read(key, StatusType.GET, key, null);
 
 			if (response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
 				logger.info("Server Not Responsible");
@@ -146,67 +258,591 @@ public class KVStore implements client.KVCommInterface {
 		return response;
 	}
 
-	// update the metadata
-	private void handleServerNotResponsible(String key) throws Exception {
+	/**
+	 * Send all requests on one connection before reading any reply, so a
+	 * batch costs about one round trip instead of one per request. Requests
+	 * the server is not responsible for are retried one by one, which
+	 * updates the metadata like put and get do.
+	 * @param requests PUT or GET messages
+	 * @return the replies, in the order of the requests
+	 */
+	public List<KVMessage> pipeline(List<KVMessage> requests) throws Exception {
+		for (KVMessage request : requests) {
+			if (request.getKey().getBytes().length > 20) {
+				logger.error("Key length exceeds 20 Bytes");
+				throw new IOException("Error! Key length exceeds 20 Bytes");
+			}
+		}
+		PipelinedConnection connection = pool.pipelined(address + ":" + port);
+		List<CompletableFuture<KVMessage>> futures = new ArrayList<>(requests.size());
+		for (KVMessage request : requests) {
+			futures.add(connection.send(request.getStatus(), request.getKey(), request.getValue()));
+		}
+
+		List<KVMessage> replies = new ArrayList<>(requests.size());
+		for (int i = 0; i < requests.size(); i++) {
+			KVMessage reply;
+			try {
+				reply = futures.get(i).get();
+			} catch (ExecutionException e) {
+				throw new IOException("The server was shut down");
+			}
+			if (reply.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+				KVMessage request = requests.get(i);
+				reply = request.getStatus() == StatusType.PUT ? put(request.getKey(), request.getValue())
+						: get(request.getKey());
+			}
+			replies.add(reply);
+		}
+		return replies;
+	}
 
-		KVMessage response = keyrange();
-		String metadata_str = response.getKey();
+	/**
+	 * Asynchronous put: the request goes to the server responsible for the
+	 * key without waiting for earlier requests. A SERVER_NOT_RESPONSIBLE reply
+	 * updates the metadata and sends the request again to the new server.
+	 * The calling thread only blocks while the connection has
+	 * {@link PipelinedConnection#DEFAULT_MAX_OUTSTANDING} requests in flight.
+	 * @return completed with the reply, or exceptionally if the server cannot be reached
+	 */
+	public CompletableFuture<KVMessage> putAsync(String key, String value) {
+		if (key.getBytes().length > 20) {
+			logger.error("Key length exceeds 20 Bytes");
+			return CompletableFuture.failedFuture(new IOException("Error! Key length exceeds 20 Bytes"));
+		}
+		return sendAsync(StatusType.PUT, key, key, value, 0);
+	}
 
-		while (metadata_str == null) {
-			response = keyrange();
-			metadata_str = response.getKey();
+	public CompletableFuture<KVMessage> getAsync(String key) {
+		if (key.getBytes().length > 20) {
+			logger.error("Key length exceeds 20 Bytes");
+			return CompletableFuture.failedFuture(new IOException("Error! Key length exceeds 20 Bytes"));
 		}
+		return hedgePercentile > 0 ? hedgedRead(StatusType.GET, key, key, null)
+				: readAsync(StatusType.GET, key, key, null);
+	}
 
-		this.metadata = new Metadata(metadata_str);
+	public CompletableFuture<KVMessage> selectQueryAsync(String tableName, String columns, String condition) {
+		return readAsync(StatusType.SELECT_QUERY, tableName, tableName, columns + queryDelimiter + condition);
+	}
 
-		logger.info("Metadata is updated to "+ this.metadata.toString());
+	public CompletableFuture<KVMessage> deleteQueryAsync(String tableName, String condition) {
+		return sendAsync(StatusType.DELETE_QUERY, tableName, tableName, condition, 0);
+	}
 
-		connectToResponsibleServer(key);
+	public CompletableFuture<KVMessage> updateQueryAsync(String tableName, String updates, String condition) {
+		return sendAsync(StatusType.UPDATE_QUERY, tableName, tableName, updates + queryDelimiter + condition, 0);
 	}
 
-//	public void getConnectToResponsdingServer(String key){
-//		connectToResponsdingServer(key);
-//	}
+	/**
+	 * Asynchronous counterpart of {@link #read}
+	 */
+	private CompletableFuture<KVMessage> readAsync(StatusType status, String routingKey, String key, String value) {
+		List<String> servers = metadata.findReadServers(routingKey);
+		if (servers.size() <= 1 || readRouter.getPolicy() == ReadPolicy.COORDINATOR) {
+			return sendAsync(status, routingKey, key, value, 0);
+		}
+		String server = readRouter.choose(servers);
+		PipelinedConnection connection;
+		try {
+			connection = pool.pipelined(server);
+		} catch (IOException e) {
+			logger.warn("Replica " + server + " failed, reading from the coordinator");
+			return sendAsync(status, routingKey, key, value, 0);
+		}
+		readRouter.started(server);
+		long start = System.nanoTime();
+		return connection.send(status, key, value).handle((reply, e) -> {
+			readRouter.finished(server, e == null ? System.nanoTime() - start : -1);
+			return reply;
+		}).thenCompose(reply -> {
+			if (reply == null || reply.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+				// replies complete on the connection's reader thread, which must not block in send
+				return CompletableFuture.supplyAsync(() -> sendAsync(status, routingKey, key, value, 0))
+						.thenCompose(coordinatorReply -> coordinatorReply);
+			}
+			refreshIfStale(reply, connection);
+			return CompletableFuture.completedFuture(reply);
+		});
+	}
 
-	public Metadata getMetadata(){
-		return this.metadata;
+	/**
+	 * Send GETs a second time, to another server holding the key, when the
+	 * first server has not replied within the given percentile of the recent
+	 * read latencies; the first reply wins. A pause of one server, e.g. in
+	 * garbage collection, then costs about that percentile instead of the
+	 * whole pause, for roughly (100 - percentile) percent more reads.
+	 * @param percentile e.g. 95; 0 turns hedged reads off
+	 */
+	public void setHedgedReads(double percentile) {
+		this.hedgePercentile = percentile;
 	}
 
-	private void connectToResponsibleServer(String key) {
-		String resp = metadata.findResponsibleServer(key);
+	/**
+	 * @return how many reads were sent a second time
+	 */
+	public long getHedgedReads() {
+		return hedgedReads.get();
+	}
 
-		logger.debug(String.format("The responsible server is %s, its hash range is [%s]", resp,
-				this.metadata.getHashRange(resp)));
+	private long hedgeDelayNanos() {
+		long delay = readLatencies.percentile(hedgePercentile);
+		if (delay < 0) {
+			return TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MS);
+		}
+		return Math.max(delay, TimeUnit.MICROSECONDS.toNanos(MIN_HEDGE_DELAY_US));
+	}
 
-		String[] tokens = resp.split(":");
+	/**
+	 * Read from the server the read policy picks and, if it is slow, also
+	 * from the next server holding the key
+	 */
+	private CompletableFuture<KVMessage> hedgedRead(StatusType status, String routingKey, String key, String value) {
+		List<String> servers = metadata.findReadServers(routingKey);
+		if (servers.size() <= 1) {
+			return readAsync(status, routingKey, key, value);
+		}
+		// a server with a hedged-away read outstanding would make this read queue behind it
+		List<String> candidates = readRouter.withoutSlow(servers);
+		String primary = readRouter.choose(candidates);
+		List<String> backups = candidates.size() > 1 ? candidates : servers;
+		String backup = backups.get((backups.indexOf(primary) + 1) % backups.size());
+		HedgedRead read = new HedgedRead(status, routingKey, key, value, primary, backup);
+		read.start();
+		ScheduledFuture<?> timer = hedgeTimer.schedule(read::hedge, hedgeDelayNanos(), TimeUnit.NANOSECONDS);
+		read.result.whenComplete((reply, e) -> timer.cancel(false));
+		return read.result;
+	}
+
+	/**
+	 * One read sent to up to two servers. The first usable reply completes
+	 * the result and cancels the other request; its reply is dropped when it
+	 * comes. If both fail or turn the key down, the coordinator decides.
+	 * While a read hedged away from the primary is outstanding, the primary
+	 * counts as slow and later reads go elsewhere.
+	 */
+	private class HedgedRead {
+		private static final int PRIMARY_RUNNING = 0;
+		private static final int PRIMARY_SLOW = 1;
+		private static final int PRIMARY_DONE = 2;
+
+		final CompletableFuture<KVMessage> result = new CompletableFuture<>();
+		private final StatusType status;
+		private final String routingKey;
+		private final String key;
+		private final String value;
+		private final String primary;
+		private final String backup;
+		private final List<CompletableFuture<KVMessage>> attempts = new ArrayList<>(2);
+		private final AtomicInteger pending = new AtomicInteger();
+		private final AtomicBoolean hedged = new AtomicBoolean();
+		private final AtomicInteger primaryState = new AtomicInteger(PRIMARY_RUNNING);
+
+		HedgedRead(StatusType status, String routingKey, String key, String value, String primary, String backup) {
+			this.status = status;
+			this.routingKey = routingKey;
+			this.key = key;
+			this.value = value;
+			this.primary = primary;
+			this.backup = backup;
+		}
 
-		String resp_address = tokens[0];
-		int resp_port = Integer.parseInt(tokens[1]);
+		void start() {
+			attempt(primary).whenComplete((reply, e) -> {
+				if (primaryState.getAndSet(PRIMARY_DONE) == PRIMARY_SLOW) {
+					readRouter.slowFinished(primary);
+				}
+			});
+		}
 
-		if (!resp_address.equals(this.address) || resp_port != this.port) {
+		void hedge() {
+			if (!result.isDone() && hedged.compareAndSet(false, true)) {
+				hedgedReads.incrementAndGet();
+				if (primaryState.compareAndSet(PRIMARY_RUNNING, PRIMARY_SLOW)) {
+					readRouter.slowStarted(primary);
+				}
+				attempt(backup);
+			}
+		}
 
-			this.address = resp_address;
-			this.port = resp_port;
+		/**
+		 * @return the request, completed by its reply even if the attempt
+		 * is cancelled
+		 */
+		private CompletableFuture<KVMessage> attempt(String server) {
+			pending.incrementAndGet();
+			CompletableFuture<KVMessage> sent = timedRead(server, status, key, value);
+			CompletableFuture<KVMessage> reply = sent.thenApply(message -> message);
+			synchronized (attempts) {
+				attempts.add(reply);
+			}
+			reply.whenComplete(this::onReply);
+			return sent;
+		}
 
-			try {
-				disconnect();
-				connect();
-				logger.info(String.format("\n==============================\n" +
-						"Client now connect to [%s]\n===========================\n", resp));
-			} catch (Exception e) {
-				logger.info(String.format("Connect to responsible server failed [%s] failed", resp));
+		private void onReply(KVMessage reply, Throwable e) {
+			int left = pending.decrementAndGet();
+			if (result.isDone()) {
+				return;
+			}
+			if (e == null && reply.getStatus() != StatusType.SERVER_NOT_RESPONSIBLE) {
+				if (result.complete(reply)) {
+					synchronized (attempts) {
+						for (CompletableFuture<KVMessage> attempt : attempts) {
+							attempt.cancel(false);
+						}
+					}
+				}
+			} else if (!hedged.get()) {
+				hedge(); // no use waiting for the delay
+			} else if (left == 0) {
+				// replies complete on the connection's reader thread, which must not block in send
+				CompletableFuture.supplyAsync(() -> sendAsync(status, routingKey, key, value, 0))
+						.thenCompose(coordinatorReply -> coordinatorReply)
+						.whenComplete((coordinatorReply, failure) -> {
+							if (failure == null) {
+								result.complete(coordinatorReply);
+							} else {
+								result.completeExceptionally(failure);
+							}
+						});
 			}
 		}
 	}
 
+	/**
+	 * Send a read on a pipelined connection, keeping the numbers of the read
+	 * policy and the latencies the hedge delay is taken from
+	 */
+	private CompletableFuture<KVMessage> timedRead(String server, StatusType status, String key, String value) {
+		PipelinedConnection connection;
+		try {
+			connection = pool.pipelined(server);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		readRouter.started(server);
+		long start = System.nanoTime();
+		return connection.send(status, key, value).whenComplete((reply, e) -> {
+			long nanos = System.nanoTime() - start;
+			readRouter.finished(server, e == null ? nanos : -1);
+			// cancelling the returned future leaves this one running, so the
+			// losing request of a hedged read still counts once its reply comes
+			if (e == null) {
+				readLatencies.record(nanos);
+				refreshIfStale(reply, connection);
+			}
+		});
+	}
+
+	/**
+	 * @param routingKey the key whose server the request goes to
+	 */
+	private CompletableFuture<KVMessage> sendAsync(StatusType status, String routingKey, String key, String value,
+												   int reroutes) {
+		PipelinedConnection connection;
+		try {
+			connection = pool.pipelined(responsibleServer(routingKey));
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return connection.send(status, key, value).thenCompose(reply -> {
+			if (reply.getStatus() != StatusType.SERVER_NOT_RESPONSIBLE || reroutes >= MAX_REROUTES) {
+				refreshIfStale(reply, connection);
+				return CompletableFuture.completedFuture(reply);
+			}
+			logger.info("Server Not Responsible");
+			// replies complete on the connection's reader thread, which must not block in send
+			return CompletableFuture.supplyAsync(() -> connection.send(StatusType.KEYRANGE, null, null))
+					.thenCompose(keyrange -> keyrange)
+					.thenComposeAsync(keyrange -> {
+						updateMetadata(keyrange);
+						return sendAsync(status, routingKey, key, value, reroutes + 1);
+					});
+		});
+	}
+
+	/**
+	 * @return true if the server that sent the reply has newer metadata than ours
+	 */
+	private boolean isStale(KVMessage reply) {
+		return CommunicationModule.versionOf(reply) > metadata.getVersion()
+				&& reply.getStatus() != StatusType.KEYRANGE_SUCCESS
+				&& reply.getStatus() != StatusType.METADATA_UPDATE;
+	}
+
+	/**
+	 * Fetch the metadata in the background if the reply says ours is stale;
+	 * replies arriving meanwhile do not start another fetch
+	 */
+	private void refreshIfStale(KVMessage reply, PipelinedConnection connection) {
+		if (!isStale(reply) || !refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		// replies complete on the connection's reader thread, which must not block in send
+		CompletableFuture.supplyAsync(() -> connection.send(StatusType.KEYRANGE, null, null))
+				.thenCompose(keyrange -> keyrange)
+				.whenComplete((keyrange, e) -> {
+					if (keyrange != null) {
+						updateMetadata(keyrange);
+					}
+					refreshing.set(false);
+				});
+	}
+
+	/**
+	 * Take the metadata of a KEYRANGE_SUCCESS or METADATA_UPDATE. Metadata
+	 * older than ours, e.g. from a server that has not heard of the last
+	 * change yet, is ignored.
+	 */
+	private synchronized void updateMetadata(KVMessage reply) {
+		int version;
+		if (reply.getKey() == null) {
+			return;
+		} else if (reply.getStatus() == StatusType.KEYRANGE_SUCCESS) {
+			version = CommunicationModule.versionOf(reply);
+		} else if (reply.getStatus() == StatusType.METADATA_UPDATE) {
+			version = Integer.parseInt(reply.getValue());
+		} else {
+			return;
+		}
+		if (version != 0 && version < metadata.getVersion()) {
+			return;
+		}
+		Metadata updated = new Metadata(reply.getKey());
+		updated.setVersion(version);
+		this.metadata = updated;
+		logger.info("Metadata is updated to version " + version + ": " + updated);
+	}
+
+	/**
+	 * Ask the server to push every change of the ring, so the metadata is
+	 * current before a request goes to the wrong server. The subscription
+	 * uses a connection of its own; if its server goes away the next request
+	 * subscribes again at the server it went to.
+	 */
+	public void subscribeMetadata() throws IOException {
+		subscribed = true;
+		subscribe(address + ":" + port);
+	}
+
+	private void subscribe(String server) throws IOException {
+		if (subscription != null) {
+			subscription.close();
+		}
+		subscription = pool.openPipelined(server, 1);
+		subscription.setPushListener(this::updateMetadata);
+		try {
+			updateMetadata(subscription.send(StatusType.SUBSCRIBE_METADATA, null, null).get());
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("Unable to subscribe to " + server, e);
+		}
+	}
+
+	/**
+	 * Write many pairs with one MPUT per responsible server; the batches of
+	 * different servers are in flight at the same time. A "null" value
+	 * deletes its key.
+	 * @return the reply for every key, with the status a single put would have returned
+	 */
+	public Map<String, KVMessage> putAll(Map<String, String> pairs) throws Exception {
+		List<KVMessage> entries = new ArrayList<>(pairs.size());
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			entries.add(new KVMessageEntity(StatusType.MPUT, pair.getKey(), pair.getValue()));
+		}
+		return batch(StatusType.MPUT, entries);
+	}
+
+	public Map<String, KVMessage> getAll(Collection<String> keys) throws Exception {
+		return batch(StatusType.MGET, entriesOf(StatusType.MGET, keys));
+	}
+
+	public Map<String, KVMessage> deleteAll(Collection<String> keys) throws Exception {
+		return batch(StatusType.MDELETE, entriesOf(StatusType.MDELETE, keys));
+	}
+
+	private static List<KVMessage> entriesOf(StatusType status, Collection<String> keys) {
+		List<KVMessage> entries = new ArrayList<>(keys.size());
+		for (String key : keys) {
+			entries.add(new KVMessageEntity(status, key, null));
+		}
+		return entries;
+	}
+
+	/**
+	 * Send the entries grouped by responsible server and split into batches
+	 * of bounded size. Keys a server turned down are sent again after the
+	 * metadata was refreshed.
+	 */
+	private Map<String, KVMessage> batch(StatusType status, List<KVMessage> entries) throws Exception {
+		for (KVMessage entry : entries) {
+			if (entry.getKey().getBytes().length > 20) {
+				logger.error("Key length exceeds 20 Bytes");
+				throw new IOException("Error! Key length exceeds 20 Bytes");
+			}
+		}
+		Map<String, KVMessage> replies = new HashMap<>();
+		List<KVMessage> pending = entries;
+		for (int reroutes = 0; !pending.isEmpty(); reroutes++) {
+			Map<String, List<KVMessage>> byServer = new HashMap<>();
+			for (KVMessage entry : pending) {
+				byServer.computeIfAbsent(responsibleServer(entry.getKey()), s -> new ArrayList<>()).add(entry);
+			}
+
+			List<List<KVMessage>> sent = new ArrayList<>();
+			List<CompletableFuture<KVMessage>> futures = new ArrayList<>();
+			for (Map.Entry<String, List<KVMessage>> server : byServer.entrySet()) {
+				PipelinedConnection connection = pool.pipelined(server.getKey());
+				for (List<KVMessage> chunk : chunks(server.getValue(), connection.isBinaryProtocol())) {
+					sent.add(chunk);
+					futures.add(sendBatch(connection, status, chunk));
+				}
+			}
+
+			List<KVMessage> notResponsible = new ArrayList<>();
+			for (int i = 0; i < futures.size(); i++) {
+				KVMessage reply;
+				try {
+					reply = futures.get(i).get();
+				} catch (ExecutionException e) {
+					throw new IOException("The server was shut down");
+				}
+				List<KVMessage> chunk = sent.get(i);
+				if (reply.getStatus() != StatusType.BATCH_SUCCESS) {
+					for (KVMessage entry : chunk) {
+						replies.put(entry.getKey(), new KVMessageEntity(reply.getStatus(), entry.getKey(), null));
+					}
+					continue;
+				}
+				List<KVMessage> results = BatchCodec.decode(reply.getValue());
+				for (int j = 0; j < results.size(); j++) {
+					KVMessage result = results.get(j);
+					if (result.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE && reroutes < MAX_REROUTES) {
+						notResponsible.add(chunk.get(j));
+					} else {
+						replies.put(result.getKey(), result);
+					}
+				}
+			}
+
+			if (!notResponsible.isEmpty()) {
+				logger.info("Server Not Responsible for " + notResponsible.size() + " keys");
+				PipelinedConnection connection = pool.pipelined(responsibleServer(notResponsible.get(0).getKey()));
+				updateMetadata(connection.send(StatusType.KEYRANGE, null, null).get());
+			}
+			pending = notResponsible;
+		}
+		return replies;
+	}
+
+	/**
+	 * Split entries into batches of at most MAX_BATCH_ENTRIES entries and
+	 * about MAX_BATCH_CHARS chars. Text lines are capped at 128 kB, so on the
+	 * text protocol every entry goes on its own.
+	 */
+	private static List<List<KVMessage>> chunks(List<KVMessage> entries, boolean binary) {
+		List<List<KVMessage>> chunks = new ArrayList<>();
+		List<KVMessage> chunk = new ArrayList<>();
+		long chars = 0;
+		for (KVMessage entry : entries) {
+			int size = entry.getKey().length() + (entry.getValue() == null ? 0 : entry.getValue().length());
+			if (!chunk.isEmpty() && (!binary || chunk.size() >= MAX_BATCH_ENTRIES || chars + size > MAX_BATCH_CHARS)) {
+				chunks.add(chunk);
+				chunk = new ArrayList<>();
+				chars = 0;
+			}
+			chunk.add(entry);
+			chars += size;
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	/**
+	 * @return a BATCH_SUCCESS reply; a single entry on the text protocol is
+	 * sent as a plain request and its reply wrapped into a batch reply
+	 */
+	private static CompletableFuture<KVMessage> sendBatch(PipelinedConnection connection, StatusType status,
+														  List<KVMessage> chunk) {
+		if (connection.isBinaryProtocol()) {
+			return connection.send(status, Integer.toString(chunk.size()), BatchCodec.encode(chunk));
+		}
+		KVMessage entry = chunk.get(0);
+		StatusType single = status == StatusType.MGET ? StatusType.GET : StatusType.PUT;
+		String value = status == StatusType.MDELETE ? "null" : entry.getValue();
+		return connection.send(single, entry.getKey(), value).thenApply(reply -> {
+			if (reply.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
+				reply = new KVMessageEntity(reply.getStatus(), entry.getKey(), null);
+			} else if (reply.getKey() == null) {
+				return reply;
+			}
+			return new KVMessageEntity(StatusType.BATCH_SUCCESS, "1", BatchCodec.encode(Arrays.asList(reply)));
+		});
+	}
+
+	private String responsibleServer(String key) {
+		String server = metadata.findResponsibleServer(key);
+		return server != null ? server : address + ":" + port;
+	}
+
+	/**
+	 * Update the metadata after the server of the last request turned a key
+	 * down. Nothing to do if the metadata version of its reply already did;
+	 * otherwise ask for the keyrange, backing off while the server has none
+	 * to give, e.g. while it is stopped for a rebalance.
+	 */
+	private void handleServerNotResponsible(String key) throws Exception {
+		String server = address + ":" + port;
+		for (int attempt = 1; server.equals(responsibleServer(key)) && attempt <= MAX_REROUTES; attempt++) {
+			KVMessage response = keyrange();
+			updateMetadata(response);
+			if (response.getKey() == null) {
+				Thread.sleep(RETRY_DELAY_MS * attempt);
+			}
+		}
+	}
+
+//	public void getConnectToResponsdingServer(String key){
+//		connectToResponsdingServer(key);
+//	}
+
+	public Metadata getMetadata(){
+		return this.metadata;
+	}
+
 	public KVMessage keyrange() throws Exception {
-		communicationModule.sendKVMessage(StatusType.KEYRANGE, null, null);
-		return communicationModule.receiveKVMessage();
+		return request(address + ":" + port, StatusType.KEYRANGE, null, null);
 	}
 
 	public KVMessage keyrangeRead() throws Exception {
-		communicationModule.sendKVMessage(StatusType.KEYRANGE_READ, null, null);
-		return communicationModule.receiveKVMessage();
+		return request(address + ":" + port, StatusType.KEYRANGE_READ, null, null);
+	}
+
+	/**
+	 * Choose whether connections opened from now on ask the server for the
+	 * binary protocol (default) or stay on the text protocol
+	 */
+	public void setBinaryProtocol(boolean binaryProtocol) {
+		pool.setBinaryProtocol(binaryProtocol);
+	}
+
+	public boolean isBinaryProtocol() {
+		try {
+			ConnectionPool.Connection connection = pool.borrow(address + ":" + port);
+			pool.release(connection);
+			return connection.isBinaryProtocol();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the pool of connections to the servers, e.g. to tune its timeouts
+	 */
+	public ConnectionPool getConnectionPool() {
+		return pool;
 	}
 
 	public void setRunning(boolean running) {
@@ -235,8 +871,8 @@ public class KVStore implements client.KVCommInterface {
 		KVMessage response = null;
 
 		try {
-			communicationModule.sendKVMessage(StatusType.SELECT_QUERY, tableName, columns + queryDelimiter + condition);
-			response = communicationModule.receiveKVMessage();
+			response = read(tableName, StatusType.SELECT_QUERY, tableName,
+					columns + queryDelimiter + condition);
 
 			if (response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
 				logger.info("Server Not Responsible");
@@ -259,8 +895,7 @@ public class KVStore implements client.KVCommInterface {
 		KVMessage response = null;
 
 		try {
-			communicationModule.sendKVMessage(StatusType.DELETE_QUERY, tableName, condition);
-			response = communicationModule.receiveKVMessage();
+			response = request(responsibleServer(tableName), StatusType.DELETE_QUERY, tableName, condition);
 
 			if (response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
 				logger.info("Server Not Responsible");
@@ -283,8 +918,8 @@ public class KVStore implements client.KVCommInterface {
 		KVMessage response = null;
 
 		try {
-			communicationModule.sendKVMessage(StatusType.UPDATE_QUERY, tableName, updates + queryDelimiter + condition);
-			response = communicationModule.receiveKVMessage();
+			response = request(responsibleServer(tableName), StatusType.UPDATE_QUERY, tableName,
+					updates + queryDelimiter + condition);
 
 			if (response.getStatus() == StatusType.SERVER_NOT_RESPONSIBLE) {
 				logger.info("Server Not Responsible");
@@ -0,0 +1,50 @@
+package client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latencies of the last requests, in a ring buffer, for percentiles.
+ * The sorted copy a percentile needs is made again only every
+ * RESORT_INTERVAL samples, so asking for one on every request stays cheap.
+ */
+class LatencyTracker {
+	private static final int MIN_SAMPLES = 32;
+	private static final int RESORT_INTERVAL = 64;
+
+	private final long[] samples;
+	private final AtomicLong count = new AtomicLong();
+	private volatile long[] sorted;
+
+	LatencyTracker(int capacity) {
+		this.samples = new long[capacity];
+	}
+
+	void record(long nanos) {
+		long index = count.getAndIncrement();
+		// concurrent writers may overwrite each other's slot, which only drops a sample
+		samples[(int) (index % samples.length)] = nanos;
+		if ((index + 1) % RESORT_INTERVAL == 0) {
+			sorted = null;
+		}
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency in nanoseconds, or -1 while there are too few samples
+	 */
+	long percentile(double percentile) {
+		long[] snapshot = sorted;
+		if (snapshot == null) {
+			int size = (int) Math.min(count.get(), samples.length);
+			if (size < MIN_SAMPLES) {
+				return -1;
+			}
+			snapshot = Arrays.copyOf(samples, size);
+			Arrays.sort(snapshot);
+			sorted = snapshot;
+		}
+		int rank = (int) Math.ceil(percentile / 100 * snapshot.length);
+		return snapshot[Math.max(0, Math.min(snapshot.length, rank) - 1)];
+	}
+}
@@ -0,0 +1,194 @@
+package client;
+
+import org.apache.log4j.Logger;
+import shared.CommunicationModule;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.KVMessageEntity;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Connection to one KVServer that sends requests without waiting for the
+ * replies of the earlier ones. A reader thread completes the future of each
+ * request when its reply arrives: by correlation id on the binary protocol,
+ * in send order on the text protocol, where servers answer in order.
+ */
+public class PipelinedConnection {
+	private static Logger logger = Logger.getLogger(PipelinedConnection.class);
+	public static final int DEFAULT_MAX_OUTSTANDING = 1024;
+
+	private final String server;
+	private final Socket socket;
+	private final CommunicationModule communicationModule;
+	private final Map<Integer, CompletableFuture<KVMessage>> pending = new ConcurrentHashMap<>();
+	private final Queue<CompletableFuture<KVMessage>> inOrder = new ConcurrentLinkedQueue<>();
+	private final Semaphore window; // bounds the requests waiting for a reply
+	private final Object sendLock = new Object();
+	private int nextId;
+	private volatile IOException failure;
+	private volatile long lastUsed = System.currentTimeMillis();
+	private volatile Consumer<KVMessage> pushListener;
+
+	public PipelinedConnection(String address, int port, boolean binaryProtocol, int maxOutstanding)
+			throws IOException {
+		this.server = address + ":" + port;
+		this.socket = new Socket(address, port);
+		this.socket.setTcpNoDelay(true);
+		this.communicationModule = new CommunicationModule(socket, null);
+		this.window = new Semaphore(maxOutstanding);
+		try {
+			communicationModule.receiveKVMessage();
+			if (binaryProtocol) {
+				communicationModule.upgradeProtocol();
+			}
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+
+		Thread reader = new Thread(this::readReplies, "kv-pipeline-" + server);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public PipelinedConnection(String address, int port) throws IOException {
+		this(address, port, true, DEFAULT_MAX_OUTSTANDING);
+	}
+
+	/**
+	 * Send a request without waiting for its reply. Blocks only while the
+	 * maximum number of requests is outstanding.
+	 * @return completed with the reply, or exceptionally if the connection fails
+	 */
+	public CompletableFuture<KVMessage> send(StatusType status, String key, String value) {
+		CompletableFuture<KVMessage> future = new CompletableFuture<>();
+		try {
+			window.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+			return future;
+		}
+
+		lastUsed = System.currentTimeMillis();
+		synchronized (sendLock) {
+			if (failure != null) {
+				window.release();
+				future.completeExceptionally(failure);
+				return future;
+			}
+			KVMessageEntity request = new KVMessageEntity(status, key, value);
+			if (communicationModule.isBinaryProtocol()) {
+				nextId = nextId == Integer.MAX_VALUE ? 1 : nextId + 1;
+				request.setId(nextId);
+				pending.put(nextId, future);
+			} else {
+				inOrder.add(future);
+			}
+			try {
+				communicationModule.sendKVMessage(request);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+		return future;
+	}
+
+	private void readReplies() {
+		try {
+			while (true) {
+				KVMessage reply = communicationModule.receiveKVMessage();
+				CompletableFuture<KVMessage> future = communicationModule.isBinaryProtocol() ?
+						pending.remove(((KVMessageEntity) reply).getId()) : inOrder.poll();
+				if (future == null && pushListener != null && reply.getStatus() == StatusType.METADATA_UPDATE) {
+					pushListener.accept(reply);
+					continue;
+				}
+				if (future == null) {
+					logger.warn("Reply to no request from " + server + ": " + reply.getStatus());
+					continue;
+				}
+				window.release();
+				future.complete(reply);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Fail every outstanding request and all requests sent from now on.
+	 */
+	private void fail(IOException e) {
+		// under the send lock, so a request sent concurrently is either
+		// registered before the outstanding ones are failed or sees the failure
+		synchronized (sendLock) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		for (Integer id : pending.keySet()) {
+			failOne(pending.remove(id));
+		}
+		CompletableFuture<KVMessage> future;
+		while ((future = inOrder.poll()) != null) {
+			failOne(future);
+		}
+	}
+
+	private void failOne(CompletableFuture<KVMessage> future) {
+		if (future != null) {
+			window.release();
+			future.completeExceptionally(failure);
+		}
+	}
+
+	/**
+	 * @param pushListener called on the reader thread with every METADATA_UPDATE
+	 *                     the server sends without a request, after SUBSCRIBE_METADATA
+	 */
+	public void setPushListener(Consumer<KVMessage> pushListener) {
+		this.pushListener = pushListener;
+	}
+
+	public String getServer() {
+		return server;
+	}
+
+	public boolean isBinaryProtocol() {
+		return communicationModule.isBinaryProtocol();
+	}
+
+	public boolean isOpen() {
+		return failure == null;
+	}
+
+	/**
+	 * @return the time of the last send in milliseconds
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	public int getOutstanding() {
+		return pending.size() + inOrder.size();
+	}
+
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.error("Unable to close connection to " + server, e);
+		}
+		fail(new IOException("Connection to " + server + " closed"));
+	}
+}
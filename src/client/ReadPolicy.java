@@ -0,0 +1,20 @@
+package client;
+
+/**
+ * Which of the servers holding a key, its coordinator and the two replicas
+ * after it on the ring, KVStore reads the key from.
+ */
+public enum ReadPolicy {
+	COORDINATOR,		/* always the coordinator, as writes do */
+	ROUND_ROBIN,		/* coordinator and replicas in turn */
+	LEAST_OUTSTANDING,	/* the server with the fewest requests of this client in flight */
+	LATENCY_WEIGHTED;	/* at random, favouring servers that replied faster lately */
+
+	public static ReadPolicy fromString(String policy) {
+		try {
+			return ReadPolicy.valueOf(policy.toUpperCase());
+		} catch (Exception e) {
+			return COORDINATOR;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the server a read goes to by a {@link ReadPolicy}, and keeps the
+ * numbers the policies need per server: the requests in flight, a moving
+ * average of the reply latency and the hedged-away reads still waiting for
+ * their reply.
+ */
+class ReadRouter {
+	private static final double NEW_SAMPLE_WEIGHT = 0.2;
+
+	private final Map<String, ServerLoad> loads = new ConcurrentHashMap<>();
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile ReadPolicy policy = ReadPolicy.COORDINATOR;
+
+	private static class ServerLoad {
+		final AtomicInteger outstanding = new AtomicInteger();
+		volatile double latencyNanos; // 0 until the first reply
+		final AtomicInteger slow = new AtomicInteger(); // reads hedged away from it, not replied yet
+	}
+
+	/**
+	 * @param servers the coordinator first, then its replicas
+	 */
+	String choose(List<String> servers) {
+		ReadPolicy policy = this.policy;
+		if (servers.size() == 1 || policy == ReadPolicy.COORDINATOR) {
+			return servers.get(0);
+		}
+		// rotate the starting point so that ties do not always go to the coordinator
+		int start = Math.floorMod(next.getAndIncrement(), servers.size());
+		switch (policy) {
+			case LEAST_OUTSTANDING:
+				String least = null;
+				int fewest = Integer.MAX_VALUE;
+				for (int i = 0; i < servers.size(); i++) {
+					String server = servers.get((start + i) % servers.size());
+					int outstanding = load(server).outstanding.get();
+					if (outstanding < fewest) {
+						least = server;
+						fewest = outstanding;
+					}
+				}
+				return least;
+			case LATENCY_WEIGHTED:
+				return byLatency(servers);
+			default:
+				return servers.get(start);
+		}
+	}
+
+	/**
+	 * Choose at random with weights inverse to the average latency; servers
+	 * without a reply yet count as fast as the fastest, so they get tried
+	 */
+	private String byLatency(List<String> servers) {
+		double fastest = Double.MAX_VALUE;
+		for (String server : servers) {
+			double latency = load(server).latencyNanos;
+			if (latency > 0) {
+				fastest = Math.min(fastest, latency);
+			}
+		}
+		double[] weights = new double[servers.size()];
+		double total = 0;
+		for (int i = 0; i < servers.size(); i++) {
+			double latency = load(servers.get(i)).latencyNanos;
+			weights[i] = latency > 0 ? 1 / latency : (fastest == Double.MAX_VALUE ? 1 : 1 / fastest);
+			total += weights[i];
+		}
+		double pick = ThreadLocalRandom.current().nextDouble(total);
+		for (int i = 0; i < weights.length; i++) {
+			pick -= weights[i];
+			if (pick < 0) {
+				return servers.get(i);
+			}
+		}
+		return servers.get(servers.size() - 1);
+	}
+
+	void started(String server) {
+		load(server).outstanding.incrementAndGet();
+	}
+
+	/**
+	 * @param nanos the time until the reply, or -1 if the request failed
+	 */
+	void finished(String server, long nanos) {
+		ServerLoad load = load(server);
+		load.outstanding.decrementAndGet();
+		if (nanos >= 0) {
+			// racing updates may lose a sample, which an average can live with
+			double latency = load.latencyNanos;
+			load.latencyNanos = latency == 0 ? nanos : latency + NEW_SAMPLE_WEIGHT * (nanos - latency);
+		}
+	}
+
+	/**
+	 * A read to the server was hedged, so the server is slow right now; the
+	 * next reads on its connection would queue behind that read
+	 */
+	void slowStarted(String server) {
+		load(server).slow.incrementAndGet();
+	}
+
+	/**
+	 * A read hedged away from the server got its reply
+	 */
+	void slowFinished(String server) {
+		load(server).slow.decrementAndGet();
+	}
+
+	/**
+	 * @return the servers, in the same order, without those that have a
+	 * hedged-away read outstanding; all of them if none is left
+	 */
+	List<String> withoutSlow(List<String> servers) {
+		List<String> fast = new ArrayList<>(servers.size());
+		for (String server : servers) {
+			if (load(server).slow.get() <= 0) {
+				fast.add(server);
+			}
+		}
+		return fast.isEmpty() ? servers : fast;
+	}
+
+	private ServerLoad load(String server) {
+		return loads.computeIfAbsent(server, s -> new ServerLoad());
+	}
+
+	ReadPolicy getPolicy() {
+		return policy;
+	}
+
+	void setPolicy(ReadPolicy policy) {
+		this.policy = policy;
+	}
+}
@@ -0,0 +1,544 @@
+package database;
+
+import org.apache.log4j.Logger;
+import shared.HashRange;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bitcask-style key-value store. Only the key directory (key -> data file,
+ * offset and size of its latest record) lives in memory; values stay in the
+ * data files and every get is a single positional read, so a node can hold
+ * far more data than fits in its heap.
+ *
+ * Data files are named name.id.data and hold {@link LogRecord}s. Writes go to
+ * the active file (highest id), which is sealed once it reaches the segment
+ * size. Compaction merges the live records of all sealed files into new files
+ * whose ids sort before the active file, so scanning the files in id order on
+ * startup always ends with the newest record of every key. Sealed files are
+ * memory-mapped, so reads of their values are served from the page cache
+ * without a system call and can be handed to a socket without a heap copy.
+ */
+public class BitcaskDatabase implements IDatabase, Compactable {
+    private static Logger logger = Logger.getLogger(BitcaskDatabase.class);
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final String DATA_SUFFIX = ".data";
+    private static final int GET_ATTEMPTS = 3;
+
+    private String databaseDir;
+    private String databaseName;
+    private FsyncPolicy fsyncPolicy;
+    private long fsyncIntervalMs;
+    private long segmentBytes;
+    private String className = "BitcaskDatabase: ";
+
+    private final Map<String, ValueLocation> keyDir = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, WriteAheadLog> dataFiles = new ConcurrentSkipListMap<>();
+    private volatile WriteAheadLog activeFile;
+    private volatile int activeFileId;
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private final StripedLock writeLock = new StripedLock();
+    private final HashIndex hashIndex = new HashIndex();
+    private LogCompactor compactor;
+
+    public BitcaskDatabase(String databaseDir, String databaseName) {
+        this(databaseDir, databaseName, FsyncPolicy.INTERVAL, LogDatabase.DEFAULT_FSYNC_INTERVAL_MS,
+                DEFAULT_SEGMENT_BYTES);
+        startCompactor(LogCompactor.DEFAULT_DEAD_RATIO);
+    }
+
+    public BitcaskDatabase(String databaseDir, String databaseName, FsyncPolicy fsyncPolicy,
+                           long fsyncIntervalMs, long segmentBytes) {
+        this.databaseDir = databaseDir;
+        this.databaseName = databaseName;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.segmentBytes = segmentBytes;
+        openDataFiles();
+    }
+
+    /**
+     * The active file cannot be rolled while a key lock is held, so the file
+     * and file id read under it always match.
+     */
+    @Override
+    public boolean put(String key, String value) throws Exception {
+        byte[] record = LogRecord.encode(LogRecord.PUT, key, value);
+        writeLock.lock(key);
+        try {
+            if (this.activeFile == null) {
+                logger.error(className + "Put - No data file opened");
+                return false;
+            }
+            long offset = this.activeFile.append(record);
+            int valueSize = record.length - LogRecord.sizeOf(key, null);
+            ValueLocation old = this.keyDir.put(key, new ValueLocation(activeFileId, offset, record.length, valueSize));
+            if (old == null) {
+                hashIndex.add(key);
+            }
+            liveBytes.addAndGet(record.length - (old == null ? 0 : old.getRecordSize()));
+            if (logger.isDebugEnabled()) {
+                logger.debug(className + "PUT - Successfully insert key: " + key);
+            }
+        } catch (IOException e) {
+            logger.error(className + "PUT - Cannot append key: " + key + " to data file", e);
+            return false;
+        } finally {
+            writeLock.unlock(key);
+        }
+        rollActiveFileIfFull();
+        return true;
+    }
+
+    /**
+     * @throws IOException if the records could not be appended, in which
+     * case none of the writes is applied
+     */
+    @Override
+    public boolean[] writeBatch(List<KVPair> pairs) throws IOException {
+        boolean[] applied = new boolean[pairs.size()];
+        List<String> keys = LogDatabase.keysOf(pairs);
+        writeLock.lockAll(keys);
+        try {
+            if (this.activeFile == null) {
+                throw new IOException("No data file opened");
+            }
+            byte[][] records = LogRecord.encodeBatch(pairs, this.keyDir::containsKey);
+            List<byte[]> appended = new ArrayList<>(records.length);
+            for (byte[] record : records) {
+                if (record != null) {
+                    appended.add(record);
+                }
+            }
+            long[] offsets = this.activeFile.appendAll(appended);
+
+            int next = 0;
+            for (int i = 0; i < records.length; i++) {
+                if (records[i] == null) {
+                    continue;
+                }
+                String key = pairs.get(i).getKey();
+                long offset = offsets[next++];
+                ValueLocation old;
+                if (pairs.get(i).getValue() == null) {
+                    old = this.keyDir.remove(key);
+                    hashIndex.remove(key);
+                } else {
+                    int valueSize = records[i].length - LogRecord.sizeOf(key, null);
+                    old = this.keyDir.put(key, new ValueLocation(activeFileId, offset, records[i].length, valueSize));
+                    if (old == null) {
+                        hashIndex.add(key);
+                    }
+                    liveBytes.addAndGet(records[i].length);
+                }
+                liveBytes.addAndGet(old == null ? 0 : -old.getRecordSize());
+                applied[i] = true;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(className + "Batch - Successfully wrote " + appended.size() + " records");
+            }
+        } catch (IOException e) {
+            logger.error(className + "Batch - Cannot append " + pairs.size() + " records to data file", e);
+            throw e;
+        } finally {
+            writeLock.unlockAll(keys);
+        }
+        rollActiveFileIfFull();
+        return applied;
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        ByteBuffer value = getValueBuffer(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.hasArray()) {
+            return new String(value.array(), value.arrayOffset() + value.position(), value.remaining(),
+                    StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(value).toString();
+    }
+
+    /**
+     * @return a read-only view of the value. For a sealed file this is a slice
+     * of its mapping, so nothing is copied until the buffer is consumed.
+     */
+    @Override
+    public ByteBuffer getValueBuffer(String key) throws Exception {
+        for (int attempt = 0; attempt < GET_ATTEMPTS; attempt++) {
+            ValueLocation location = this.keyDir.get(key);
+            if (location == null) {
+                return null;
+            }
+            WriteAheadLog file = dataFiles.get(location.getFileId());
+            if (file == null) {
+                continue; // merged away since the lookup
+            }
+            try {
+                return file.slice(location.getValueOffset(), location.getValueSize());
+            } catch (ClosedChannelException e) {
+                // merged away while reading, look the key up again
+            }
+        }
+        throw new IOException("Cannot read value of key: " + key);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        writeLock.lock(key);
+        try {
+            if (this.activeFile == null || !this.keyDir.containsKey(key)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(className + "Delete - Key not found: " + key);
+                }
+                return false;
+            }
+            this.activeFile.append(LogRecord.encode(LogRecord.DELETE, key, null));
+            ValueLocation old = this.keyDir.remove(key);
+            hashIndex.remove(key);
+            liveBytes.addAndGet(-old.getRecordSize());
+            if (logger.isDebugEnabled()) {
+                logger.debug(className + "Delete - Successfully delete key: " + key);
+            }
+        } catch (IOException e) {
+            logger.error(className + "Delete - Cannot append key: " + key + " to data file", e);
+            return false;
+        } finally {
+            writeLock.unlock(key);
+        }
+        rollActiveFileIfFull();
+        return true;
+    }
+
+    @Override
+    public void eraseDisk() {
+        compactionLock.lock();
+        writeLock.lockExclusive();
+        try {
+            this.keyDir.clear();
+            this.hashIndex.clear();
+            this.liveBytes.set(0);
+            for (WriteAheadLog file : dataFiles.values()) {
+                file.close();
+                Files.deleteIfExists(file.getFile().toPath());
+            }
+            dataFiles.clear();
+            openActiveFile(0);
+        } catch (IOException e) {
+            logger.error(className + "Cannot erase database", e);
+        } finally {
+            writeLock.unlockExclusive();
+            compactionLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getALlKeys() {
+        return keyDir.keySet();
+    }
+
+    @Override
+    public List<String> keysInRange(HashRange range) {
+        return hashIndex.keysInRange(range);
+    }
+
+    /**
+     * Copy the records of the keys straight from the data files, without
+     * decoding their values. Compaction waits, so no file is dropped while
+     * its records are copied.
+     */
+    @Override
+    public int exportSnapshot(HashRange range, File file) throws IOException {
+        int records = 0;
+        compactionLock.lock();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (String key : hashIndex.keysInRange(range)) {
+                ValueLocation location = keyDir.get(key);
+                if (location == null) {
+                    continue; // deleted since the lookup
+                }
+                out.write(dataFiles.get(location.getFileId())
+                        .read(location.getRecordOffset(), location.getRecordSize()));
+                records++;
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+        return records;
+    }
+
+    /**
+     * Take the snapshot over as a sealed data file just before a new active
+     * file, so its records win over the older files on startup as they do
+     * now. Only its records are read to fill the key directory.
+     */
+    @Override
+    public int installSnapshot(File file) throws IOException {
+        long validBytes = WriteAheadLog.readAll(file, record -> { });
+        if (validBytes != file.length()) {
+            throw new IOException("Snapshot " + file.getName() + " is corrupted at offset " + validBytes);
+        }
+        int[] records = {0};
+        compactionLock.lock();
+        writeLock.lockExclusive();
+        try {
+            if (this.activeFile == null) {
+                throw new IOException("No data file opened");
+            }
+            int fileId = activeFileId + 1;
+            rollActiveFile(fileId + 1);
+            File target = new File(this.databaseDir, this.databaseName + "." + fileId + DATA_SUFFIX);
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            WriteAheadLog installed = openDataFile(fileId, FsyncPolicy.OS);
+            installed.replay((record, offset) -> {
+                ValueLocation old = apply(fileId, record, offset);
+                if (record.getType() == LogRecord.PUT && old == null) {
+                    hashIndex.add(record.getKey());
+                } else if (record.getType() == LogRecord.DELETE && old != null) {
+                    hashIndex.remove(record.getKey());
+                }
+                records[0]++;
+            });
+            installed.sync();
+            installed.map();
+        } finally {
+            writeLock.unlockExclusive();
+            compactionLock.unlock();
+        }
+        logger.info(className + String.format("Installed %d records of snapshot %s", records[0], file.getName()));
+        return records[0];
+    }
+
+    /**
+     * Start a background {@link LogCompactor} merging the data files of this
+     * database. The whole key directory is rebuilt from the data files on
+     * startup, so only the dead ratio triggers a merge.
+     */
+    public void startCompactor(double deadRatio) {
+        this.compactor = new LogCompactor(this, deadRatio, LogCompactor.DEFAULT_MIN_DISK_BYTES, 0);
+        this.compactor.start(LogCompactor.DEFAULT_CHECK_INTERVAL_MS);
+    }
+
+    public LogCompactor getCompactor() {
+        return compactor;
+    }
+
+    @Override
+    public long getDiskBytes() {
+        long bytes = 0;
+        for (WriteAheadLog file : dataFiles.values()) {
+            bytes += file.size();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    @Override
+    public long getLogBytes() {
+        return 0;
+    }
+
+    /**
+     * Seal the active file and copy the live records of every sealed file into
+     * new data files, then drop the sealed files. Writers only wait for the
+     * active file to be rolled; a key written during the merge keeps pointing
+     * at its new record because the key directory is only updated when it
+     * still points at the copied record.
+     */
+    @Override
+    public long compact() throws IOException {
+        compactionLock.lock();
+        try {
+            Set<Integer> sealedIds;
+            int mergeFileId;
+            int lastMergeFileId;
+            writeLock.lockExclusive();
+            try {
+                if (this.activeFile == null) {
+                    return 0;
+                }
+                sealedIds = new HashSet<>(dataFiles.keySet());
+                // the merged files never need more ids than the files they replace
+                mergeFileId = activeFileId + 1;
+                lastMergeFileId = mergeFileId + sealedIds.size() - 1;
+                rollActiveFile(lastMergeFileId + 1);
+            } finally {
+                writeLock.unlockExclusive();
+            }
+
+            long sealedBytes = 0;
+            for (int id : sealedIds) {
+                sealedBytes += dataFiles.get(id).size();
+            }
+
+            long mergedBytes = 0;
+            WriteAheadLog mergeFile = openDataFile(mergeFileId, FsyncPolicy.OS);
+            for (Map.Entry<String, ValueLocation> entry : keyDir.entrySet()) {
+                ValueLocation location = entry.getValue();
+                if (!sealedIds.contains(location.getFileId())) {
+                    continue;
+                }
+                if (mergeFile.size() + location.getRecordSize() > segmentBytes && mergeFile.size() > 0
+                        && mergeFileId < lastMergeFileId) {
+                    mergeFile.sync();
+                    mergeFile.map();
+                    mergeFile = openDataFile(++mergeFileId, FsyncPolicy.OS);
+                }
+
+                byte[] record = dataFiles.get(location.getFileId())
+                        .read(location.getRecordOffset(), location.getRecordSize());
+                long offset = mergeFile.append(record);
+                mergedBytes += record.length;
+                keyDir.replace(entry.getKey(), location, new ValueLocation(mergeFileId, offset,
+                        location.getRecordSize(), location.getValueSize()));
+            }
+            mergeFile.sync();
+            mergeFile.map();
+
+            for (int id : sealedIds) {
+                WriteAheadLog file = dataFiles.remove(id);
+                file.close();
+                Files.deleteIfExists(file.getFile().toPath());
+            }
+            return Math.max(0, sealedBytes - mergedBytes);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    public void close() {
+        if (this.compactor != null) {
+            this.compactor.stop();
+        }
+        for (WriteAheadLog file : dataFiles.values()) {
+            file.close();
+        }
+    }
+
+    private void rollActiveFileIfFull() {
+        WriteAheadLog file = this.activeFile;
+        if (file == null || file.size() < segmentBytes) {
+            return;
+        }
+        writeLock.lockExclusive();
+        try {
+            // another writer may have rolled it while we waited
+            if (this.activeFile == file) {
+                rollActiveFile(activeFileId + 1);
+            }
+        } catch (IOException e) {
+            logger.error(className + "Cannot roll data file " + file.getFile().getName(), e);
+        } finally {
+            writeLock.unlockExclusive();
+        }
+    }
+
+    private void rollActiveFile(int newFileId) throws IOException {
+        this.activeFile.seal();
+        this.activeFile.map();
+        openActiveFile(newFileId);
+    }
+
+    private void openActiveFile(int fileId) throws IOException {
+        this.activeFile = openDataFile(fileId, fsyncPolicy);
+        this.activeFileId = fileId;
+    }
+
+    private WriteAheadLog openDataFile(int fileId, FsyncPolicy policy) throws IOException {
+        File file = new File(this.databaseDir, this.databaseName + "." + fileId + DATA_SUFFIX);
+        WriteAheadLog dataFile = new WriteAheadLog(file, policy, fsyncIntervalMs);
+        dataFiles.put(fileId, dataFile);
+        return dataFile;
+    }
+
+    private void openDataFiles() {
+        File dir = new File(this.databaseDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            logger.error(className + "Cannot create directory for database files");
+            return;
+        }
+
+        List<Integer> fileIds = new ArrayList<>();
+        String prefix = this.databaseName + ".";
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.startsWith(prefix) && fileName.endsWith(DATA_SUFFIX)) {
+                    try {
+                        fileIds.add(Integer.parseInt(
+                                fileName.substring(prefix.length(), fileName.length() - DATA_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not one of our data files
+                    }
+                }
+            }
+        }
+        Collections.sort(fileIds);
+
+        try {
+            for (int fileId : fileIds) {
+                WriteAheadLog file = openDataFile(fileId, FsyncPolicy.OS);
+                file.replay((record, offset) -> apply(fileId, record, offset));
+            }
+            // indexed once replayed, so a key written many times is hashed once
+            for (String key : keyDir.keySet()) {
+                hashIndex.add(key);
+            }
+            if (fileIds.isEmpty()) {
+                openActiveFile(0);
+            } else {
+                // reopen the newest file with the configured fsync policy
+                int lastId = fileIds.get(fileIds.size() - 1);
+                dataFiles.remove(lastId).close();
+                for (WriteAheadLog sealed : dataFiles.values()) {
+                    sealed.map();
+                }
+                openActiveFile(lastId);
+            }
+            logger.info(className + String.format("Loaded %d keys from %d data files of %s",
+                    keyDir.size(), dataFiles.size(), databaseName));
+        } catch (IOException e) {
+            logger.error(className + "Open data files failed", e);
+            this.activeFile = null;
+        }
+    }
+
+    /**
+     * @return the location the key had before the record
+     */
+    private ValueLocation apply(int fileId, LogRecord record, long offset) {
+        ValueLocation old;
+        if (record.getType() == LogRecord.PUT) {
+            old = keyDir.put(record.getKey(),
+                    new ValueLocation(fileId, offset, record.getSize(), record.getValueSize()));
+            liveBytes.addAndGet(record.getSize());
+        } else {
+            old = keyDir.remove(record.getKey());
+        }
+        if (old != null) {
+            liveBytes.addAndGet(-old.getRecordSize());
+        }
+        return old;
+    }
+}
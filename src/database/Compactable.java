@@ -0,0 +1,29 @@
+package database;
+
+import java.io.IOException;
+
+/**
+ * A log-structured store whose dead records can be reclaimed by {@link LogCompactor}.
+ */
+public interface Compactable {
+    /**
+     * @return bytes currently held on disk by the store
+     */
+    long getDiskBytes();
+
+    /**
+     * @return bytes on disk that still belong to live keys
+     */
+    long getLiveBytes();
+
+    /**
+     * @return bytes appended to the log since the last compaction
+     */
+    long getLogBytes();
+
+    /**
+     * Rewrite the live data compactly and drop the obsolete files.
+     * @return number of bytes reclaimed on disk
+     */
+    long compact() throws IOException;
+}
@@ -6,6 +6,12 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Key-value store persisted by rewriting a Properties file on every write.
+ * Reads and map updates take no lock; only the file rewrite is serialized,
+ * and since every rewrite stores the whole current map the last one always
+ * matches memory.
+ */
 public class DatabaseManager implements IDatabase{
     private static Logger logger = Logger.getLogger(DatabaseManager.class);
     private String databaseDir;
@@ -23,49 +29,66 @@ public class DatabaseManager implements IDatabase{
     }
 
     @Override
-    public synchronized boolean put(String key, String value) throws Exception {
+    public boolean put(String key, String value) throws Exception {
         if (this.diskFile == null) {
             logger.error(className + "Put - No disk file opened");
             return false;
         }
         try {
             this.database.put(key, value);
-            logger.info(className + String.format("PUT - Successfully insert key: %s and value: %s into database", key, value));
             saveDatabase();
+            if (logger.isDebugEnabled()) {
+                logger.debug(className + "PUT - Successfully insert key: " + key);
+            }
             return true;
         } catch (Exception e) {
-            logger.error(className + String.format("PUT - Cannot insert key: %s and value: %s into database", key, value));
+            logger.error(className + "PUT - Cannot insert key: " + key + " into database", e);
             return false;
         }
     }
 
     @Override
-    public synchronized String get(String key) throws Exception {
-        try{
-            String value = this.database.get(key);
-            if (value == null){
-                logger.warn(className + String.format("GET - Key:%s not found", key));
-            }
-            else {
-                logger.info(className + String.format("GET - Successfully get key: %s and value: %s", key, value));
+    public String get(String key) throws Exception {
+        return this.database.get(key);
+    }
+
+    /**
+     * Apply the whole batch to the map and rewrite the file once.
+     */
+    @Override
+    public boolean[] writeBatch(List<KVPair> pairs) {
+        boolean[] applied = new boolean[pairs.size()];
+        if (this.diskFile == null) {
+            logger.error(className + "Batch - No disk file opened");
+            return applied;
+        }
+        for (int i = 0; i < applied.length; i++) {
+            KVPair pair = pairs.get(i);
+            if (pair.getValue() == null) {
+                applied[i] = this.database.remove(pair.getKey()) != null;
+            } else {
+                this.database.put(pair.getKey(), pair.getValue());
+                applied[i] = true;
             }
-            return value;
-        } catch (Exception e){
-            logger.error(className + "GET - Error when trying to get key: "+ key);
-            return null;
         }
+        saveDatabase();
+        return applied;
     }
 
     @Override
-    public synchronized boolean delete(String key) {
+    public boolean delete(String key) {
         try{
             String value = this.database.remove(key);
             if (value == null){
-                logger.error(className + String.format("Delete - Key:%s not found", key));
+                if (logger.isDebugEnabled()) {
+                    logger.debug(className + "Delete - Key not found: " + key);
+                }
                 return false;
             }
             saveDatabase();
-            logger.info(className + String.format("Delete - Successfully delete key: %s and value: %s", key, value));
+            if (logger.isDebugEnabled()) {
+                logger.debug(className + "Delete - Successfully delete key: " + key);
+            }
             return true;
         } catch (Exception e){
             logger.error(className + "Error when trying to delete key: "+ key);
@@ -130,7 +153,8 @@ public class DatabaseManager implements IDatabase{
     }
 
     /* M2 */
-    public synchronized Set<String> getALlKeys() {
+    @Override
+    public Set<String> getALlKeys() {
         return database.keySet();
     }
 
@@ -0,0 +1,18 @@
+package database;
+
+/**
+ * When the append-only log forces its writes down to the disk.
+ */
+public enum FsyncPolicy {
+    ALWAYS,     /* fsync after every appended record */
+    INTERVAL,   /* group commit: fsync at most once per configured interval */
+    OS;         /* never fsync explicitly, leave write-back to the operating system */
+
+    public static FsyncPolicy fromString(String policy) {
+        try {
+            return FsyncPolicy.valueOf(policy.toUpperCase());
+        } catch (Exception e) {
+            return INTERVAL;
+        }
+    }
+}
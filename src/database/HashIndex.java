@@ -0,0 +1,99 @@
+package database;
+
+import shared.HashRange;
+import shared.MD5Generator;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The keys of a store grouped by their position on the hash ring, so the
+ * keys of a hash range are found without hashing every key of the store.
+ * The ring is cut into BUCKETS equal slices by the top bits of the hash.
+ * A range takes the slices it covers as they are and only hashes the keys
+ * of the two slices its bounds fall into.
+ *
+ * Slices instead of a fully ordered structure keep a write at the cost of
+ * one hash and one set insert. Like the key sets of the stores, a lookup
+ * running next to writes may or may not see them.
+ */
+public class HashIndex {
+    private static final int BUCKET_BITS = 12;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    private static final BigInteger MAXIMUM = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16);
+
+    private final List<Set<String>> buckets = new ArrayList<>(BUCKETS);
+
+    public HashIndex() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.add(ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    private static int bucketOf(BigInteger hash) {
+        return hash.shiftRight(128 - BUCKET_BITS).intValue();
+    }
+
+    public void add(String key) {
+        buckets.get(bucketOf(MD5Generator.generateHash(key))).add(key);
+    }
+
+    public void remove(String key) {
+        buckets.get(bucketOf(MD5Generator.generateHash(key))).remove(key);
+    }
+
+    public void clear() {
+        for (Set<String> bucket : buckets) {
+            bucket.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Set<String> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the keys in the range, with the same bounds as {@link HashRange#isInRange}
+     */
+    public List<String> keysInRange(HashRange range) {
+        BigInteger start = range.getStartIndex();
+        BigInteger end = range.getEndIndex();
+        List<String> keys = new ArrayList<>();
+        if (start == null && end == null) {
+            collect(BigInteger.ZERO, MAXIMUM, keys);
+        } else if (start.compareTo(end) > 0) {
+            collect(BigInteger.ZERO, end, keys);
+            collect(start, MAXIMUM, keys);
+        } else {
+            collect(start, end, keys);
+        }
+        return keys;
+    }
+
+    private void collect(BigInteger from, BigInteger to, List<String> keys) {
+        int first = bucketOf(from);
+        int last = bucketOf(to);
+        for (int i = first; i <= last; i++) {
+            boolean covered = (i > first || from.equals(BigInteger.valueOf(i).shiftLeft(128 - BUCKET_BITS)))
+                    && (i < last || to.equals(BigInteger.valueOf(i + 1).shiftLeft(128 - BUCKET_BITS)
+                    .subtract(BigInteger.ONE)));
+            for (String key : buckets.get(i)) {
+                if (covered) {
+                    keys.add(key);
+                    continue;
+                }
+                BigInteger hash = MD5Generator.generateHash(key);
+                if (hash.compareTo(from) >= 0 && hash.compareTo(to) <= 0) {
+                    keys.add(key);
+                }
+            }
+        }
+    }
+}
@@ -1,8 +1,109 @@
 package database;
 
+import shared.HashRange;
+import shared.MD5Generator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
 public interface IDatabase {
     boolean put(String key, String value) throws Exception;
     String get(String key) throws Exception;
-    boolean delete(String key) throws Exception;
+    boolean delete(String key);
     void eraseDisk();
+    Set<String> getALlKeys();
+
+    /**
+     * @return the keys whose ring hash lies in the range. The log based
+     *         engines keep their keys ordered by hash for this, the default
+     *         hashes every key.
+     */
+    default List<String> keysInRange(HashRange range) {
+        List<String> keys = new ArrayList<>();
+        for (String key : getALlKeys()) {
+            if (range.isInRange(MD5Generator.generateHash(key))) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Apply several writes in order, a pair with a null value deletes its key.
+     * The log based engines append the whole batch at once, so it costs a
+     * single fsync.
+     * @return for every pair whether it was applied
+     */
+    default boolean[] writeBatch(List<KVPair> pairs) throws Exception {
+        boolean[] applied = new boolean[pairs.size()];
+        for (int i = 0; i < applied.length; i++) {
+            KVPair pair = pairs.get(i);
+            applied[i] = pair.getValue() == null ? delete(pair.getKey()) : put(pair.getKey(), pair.getValue());
+        }
+        return applied;
+    }
+
+    /**
+     * @return the UTF-8 encoded value of the key as a read-only buffer, null if not found
+     */
+    default ByteBuffer getValueBuffer(String key) throws Exception {
+        String value = get(key);
+        return value == null ? null : ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the pairs of the keys in the range to a file of PUT
+     * {@link LogRecord}s, so that a range can be shipped to a new node as
+     * one file. Writes made meanwhile may or may not be in it.
+     * @return number of records written
+     */
+    default int exportSnapshot(HashRange range, File file) throws Exception {
+        int records = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (String key : keysInRange(range)) {
+                String value = get(key);
+                if (value != null) {
+                    out.write(LogRecord.encode(LogRecord.PUT, key, value));
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Store the records of a file written by {@link #exportSnapshot}, over
+     * the current values of their keys. The file may be moved or removed.
+     * @return number of records stored
+     */
+    default int installSnapshot(File file) throws Exception {
+        int batchSize = 1024;
+        int records = 0;
+        List<KVPair> batch = new ArrayList<>(batchSize);
+        long remaining = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            LogRecord record;
+            while ((record = LogRecord.read(in, remaining)) != null) {
+                remaining -= record.getSize();
+                batch.add(new KVPair(record.getKey(), record.getValue()));
+                if (batch.size() == batchSize) {
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                records++;
+            }
+        }
+        writeBatch(batch);
+        return records;
+    }
 }
@@ -0,0 +1,106 @@
+package database;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background thread that periodically checks a {@link Compactable} store and
+ * compacts it once too much of the disk is dead or the log has grown too long
+ * to replay quickly.
+ */
+public class LogCompactor {
+    private static Logger logger = Logger.getLogger(LogCompactor.class);
+    private String className = "LogCompactor: ";
+
+    public static final double DEFAULT_DEAD_RATIO = 0.5;
+    public static final long DEFAULT_MIN_DISK_BYTES = 4L * 1024 * 1024;
+    public static final long DEFAULT_MAX_LOG_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 1000;
+
+    private final Compactable store;
+    private final double deadRatio;
+    private final long minDiskBytes;
+    private final long maxLogBytes;
+    private ScheduledExecutorService scheduler;
+
+    /* metrics */
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private volatile long lastCompactionMs;
+
+    public LogCompactor(Compactable store) {
+        this(store, DEFAULT_DEAD_RATIO, DEFAULT_MIN_DISK_BYTES, DEFAULT_MAX_LOG_BYTES);
+    }
+
+    /**
+     * @param store the store to compact
+     * @param deadRatio compact when this fraction of the disk bytes is dead
+     * @param minDiskBytes never compact for the dead ratio below this disk usage
+     * @param maxLogBytes compact when this many bytes were logged since the last compaction
+     */
+    public LogCompactor(Compactable store, double deadRatio, long minDiskBytes, long maxLogBytes) {
+        this.store = store;
+        this.deadRatio = deadRatio;
+        this.minDiskBytes = minDiskBytes;
+        this.maxLogBytes = maxLogBytes;
+    }
+
+    public void start(long checkIntervalMs) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::compactIfNeeded, checkIntervalMs, checkIntervalMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    public boolean shouldCompact() {
+        long diskBytes = store.getDiskBytes();
+        long deadBytes = diskBytes - store.getLiveBytes();
+
+        if (maxLogBytes > 0 && store.getLogBytes() >= maxLogBytes) {
+            return true;
+        }
+        return diskBytes >= minDiskBytes && diskBytes > 0 && (double) deadBytes / diskBytes >= deadRatio;
+    }
+
+    public void compactIfNeeded() {
+        if (!shouldCompact()) {
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            long reclaimed = store.compact();
+            lastCompactionMs = System.currentTimeMillis() - start;
+            compactions.incrementAndGet();
+            bytesReclaimed.addAndGet(reclaimed);
+            logger.info(className + String.format("Compaction reclaimed %d bytes in %d ms",
+                    reclaimed, lastCompactionMs));
+        } catch (Exception e) {
+            logger.error(className + "Compaction failed", e);
+        }
+    }
+
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    public long getLastCompactionMs() {
+        return lastCompactionMs;
+    }
+}
@@ -0,0 +1,423 @@
+package database;
+
+import org.apache.log4j.Logger;
+import shared.HashRange;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Key-value store persisted through an append-only log of put/delete records.
+ * The whole data set is kept in memory and the log is replayed on startup, so
+ * a write only costs one small sequential append instead of rewriting the
+ * whole database file like {@link DatabaseManager}.
+ *
+ * Files in the database directory:
+ *   name.snapshot            compact image of the live keys
+ *   name.log                 records appended since the snapshot
+ *   name.log.compacting      log sealed by a compaction that is still running
+ * On startup the snapshot is loaded and the logs are replayed on top of it.
+ */
+public class LogDatabase implements IDatabase, Compactable {
+    private static Logger logger = Logger.getLogger(LogDatabase.class);
+    public static final long DEFAULT_FSYNC_INTERVAL_MS = 50;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String COMPACTING_SUFFIX = ".log.compacting";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int SNAPSHOT_BLOCK_SIZE = 1024 * 1024;
+
+    private String databaseDir;
+    private String databaseName;
+    private Map<String, String> database = new ConcurrentHashMap<>();
+    private volatile WriteAheadLog log;
+    private FsyncPolicy fsyncPolicy;
+    private long fsyncIntervalMs;
+    private String className = "LogDatabase: ";
+
+    private File logFile;
+    private File compactingFile;
+    private File snapshotFile;
+    private volatile long snapshotBytes;
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private final StripedLock writeLock = new StripedLock();
+    private final HashIndex hashIndex = new HashIndex();
+    private LogCompactor compactor;
+
+    public LogDatabase(String databaseDir, String databaseName) {
+        this(databaseDir, databaseName, FsyncPolicy.INTERVAL, DEFAULT_FSYNC_INTERVAL_MS);
+        startCompactor(LogCompactor.DEFAULT_DEAD_RATIO, LogCompactor.DEFAULT_MAX_LOG_BYTES);
+    }
+
+    public LogDatabase(String databaseDir, String databaseName, FsyncPolicy fsyncPolicy, long fsyncIntervalMs) {
+        this.databaseDir = databaseDir;
+        this.databaseName = databaseName;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        openLog();
+    }
+
+    /**
+     * Writes of the same key append and update the map under one key lock, so
+     * the log replays them in the order readers saw them.
+     */
+    @Override
+    public boolean put(String key, String value) throws Exception {
+        byte[] record = LogRecord.encode(LogRecord.PUT, key, value);
+        writeLock.lock(key);
+        try {
+            if (this.log == null) {
+                logger.error(className + "Put - No log file opened");
+                return false;
+            }
+            this.log.append(record);
+            String old = this.database.put(key, value);
+            if (old == null) {
+                hashIndex.add(key);
+            }
+            liveBytes.addAndGet(record.length - (old == null ? 0 : LogRecord.sizeOf(key, old)));
+            if (logger.isDebugEnabled()) {
+                logger.debug(className + "PUT - Successfully insert key: " + key);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error(className + "PUT - Cannot append key: " + key + " to log", e);
+            return false;
+        } finally {
+            writeLock.unlock(key);
+        }
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        return this.database.get(key);
+    }
+
+    /**
+     * @throws IOException if the records could not be appended, in which
+     * case none of the writes is applied
+     */
+    @Override
+    public boolean[] writeBatch(List<KVPair> pairs) throws IOException {
+        boolean[] applied = new boolean[pairs.size()];
+        List<String> keys = keysOf(pairs);
+        writeLock.lockAll(keys);
+        try {
+            if (this.log == null) {
+                throw new IOException("No log file opened");
+            }
+            byte[][] records = LogRecord.encodeBatch(pairs, this.database::containsKey);
+            List<byte[]> appended = new ArrayList<>(records.length);
+            for (byte[] record : records) {
+                if (record != null) {
+                    appended.add(record);
+                }
+            }
+            this.log.appendAll(appended);
+
+            for (int i = 0; i < records.length; i++) {
+                if (records[i] == null) {
+                    continue;
+                }
+                String key = pairs.get(i).getKey();
+                String value = pairs.get(i).getValue();
+                if (value == null) {
+                    liveBytes.addAndGet(-LogRecord.sizeOf(key, this.database.remove(key)));
+                    hashIndex.remove(key);
+                } else {
+                    String old = this.database.put(key, value);
+                    if (old == null) {
+                        hashIndex.add(key);
+                    }
+                    liveBytes.addAndGet(records[i].length - (old == null ? 0 : LogRecord.sizeOf(key, old)));
+                }
+                applied[i] = true;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(className + "Batch - Successfully wrote " + appended.size() + " records");
+            }
+            return applied;
+        } catch (IOException e) {
+            logger.error(className + "Batch - Cannot append " + pairs.size() + " records to log", e);
+            throw e;
+        } finally {
+            writeLock.unlockAll(keys);
+        }
+    }
+
+    static List<String> keysOf(List<KVPair> pairs) {
+        List<String> keys = new ArrayList<>(pairs.size());
+        for (KVPair pair : pairs) {
+            keys.add(pair.getKey());
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        writeLock.lock(key);
+        try {
+            if (this.log == null || !this.database.containsKey(key)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(className + "Delete - Key not found: " + key);
+                }
+                return false;
+            }
+            this.log.append(LogRecord.encode(LogRecord.DELETE, key, null));
+            String old = this.database.remove(key);
+            hashIndex.remove(key);
+            liveBytes.addAndGet(-LogRecord.sizeOf(key, old));
+            if (logger.isDebugEnabled()) {
+                logger.debug(className + "Delete - Successfully delete key: " + key);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error(className + "Delete - Cannot append key: " + key + " to log", e);
+            return false;
+        } finally {
+            writeLock.unlock(key);
+        }
+    }
+
+    @Override
+    public void eraseDisk() {
+        compactionLock.lock();
+        writeLock.lockExclusive();
+        try {
+            this.database.clear();
+            this.hashIndex.clear();
+            this.liveBytes.set(0);
+            if (this.log != null) {
+                this.log.truncate();
+            }
+            Files.deleteIfExists(snapshotFile.toPath());
+            this.snapshotBytes = 0;
+        } catch (IOException e) {
+            logger.error(className + "Cannot erase database", e);
+        } finally {
+            writeLock.unlockExclusive();
+            compactionLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getALlKeys() {
+        return database.keySet();
+    }
+
+    @Override
+    public List<String> keysInRange(HashRange range) {
+        return hashIndex.keysInRange(range);
+    }
+
+    /**
+     * Append the snapshot's records to the log as they are and load them into
+     * the map. Writers wait until the whole file is in the log, so the log
+     * replays it in the order readers saw it.
+     */
+    @Override
+    public int installSnapshot(File file) throws IOException {
+        long validBytes = WriteAheadLog.readAll(file, record -> { });
+        if (validBytes != file.length()) {
+            throw new IOException("Snapshot " + file.getName() + " is corrupted at offset " + validBytes);
+        }
+        int[] records = {0};
+        writeLock.lockExclusive();
+        try {
+            if (this.log == null) {
+                throw new IOException("No log file opened");
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                byte[] block = new byte[SNAPSHOT_BLOCK_SIZE];
+                int read;
+                while ((read = in.read(block)) > 0) {
+                    this.log.append(Arrays.copyOf(block, read));
+                }
+            }
+            WriteAheadLog.readAll(file, record -> {
+                String key = record.getKey();
+                String old = record.getType() == LogRecord.PUT ? this.database.put(key, record.getValue())
+                        : this.database.remove(key);
+                if (record.getType() == LogRecord.PUT && old == null) {
+                    hashIndex.add(key);
+                } else if (record.getType() == LogRecord.DELETE && old != null) {
+                    hashIndex.remove(key);
+                }
+                liveBytes.addAndGet((record.getType() == LogRecord.PUT ? record.getSize() : 0)
+                        - (old == null ? 0 : LogRecord.sizeOf(key, old)));
+                records[0]++;
+            });
+        } finally {
+            writeLock.unlockExclusive();
+        }
+        logger.info(className + String.format("Installed %d records of snapshot %s", records[0], file.getName()));
+        return records[0];
+    }
+
+    /**
+     * Start a background {@link LogCompactor} for this database.
+     */
+    public void startCompactor(double deadRatio, long maxLogBytes) {
+        this.compactor = new LogCompactor(this, deadRatio, LogCompactor.DEFAULT_MIN_DISK_BYTES, maxLogBytes);
+        this.compactor.start(LogCompactor.DEFAULT_CHECK_INTERVAL_MS);
+    }
+
+    public LogCompactor getCompactor() {
+        return compactor;
+    }
+
+    @Override
+    public long getDiskBytes() {
+        WriteAheadLog current = this.log;
+        return snapshotBytes + compactingFile.length() + (current == null ? 0 : current.size());
+    }
+
+    @Override
+    public long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    @Override
+    public long getLogBytes() {
+        WriteAheadLog current = this.log;
+        return current == null ? 0 : current.size();
+    }
+
+    /**
+     * Seal the current log, write a snapshot of the live keys and drop the
+     * sealed log. Writers are only blocked while the log is swapped; records
+     * appended during the snapshot land in the new log, which is replayed on
+     * top of the snapshot, so a snapshot that already contains some of them
+     * is still consistent.
+     */
+    @Override
+    public long compact() throws IOException {
+        compactionLock.lock();
+        try {
+            if (this.log == null) {
+                return 0;
+            }
+            long sealedBytes;
+            writeLock.lockExclusive();
+            try {
+                sealedBytes = this.log.size();
+                this.log.close();
+                Files.move(logFile.toPath(), compactingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                this.log = new WriteAheadLog(logFile, fsyncPolicy, fsyncIntervalMs);
+            } finally {
+                writeLock.unlockExclusive();
+            }
+
+            long before = snapshotBytes + sealedBytes;
+            writeSnapshot();
+            Files.deleteIfExists(compactingFile.toPath());
+            return Math.max(0, before - snapshotBytes);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    public void close() {
+        if (this.compactor != null) {
+            this.compactor.stop();
+        }
+        if (this.log != null) {
+            this.log.close();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        File tmpFile = new File(snapshotFile.getPath() + TMP_SUFFIX);
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile);
+             BufferedOutputStream out = new BufferedOutputStream(fileOut)) {
+            for (Map.Entry<String, String> entry : database.entrySet()) {
+                out.write(LogRecord.encode(LogRecord.PUT, entry.getKey(), entry.getValue()));
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        snapshotBytes = snapshotFile.length();
+    }
+
+    private void openLog() {
+        File dir = new File(this.databaseDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            logger.error(className + "Cannot create directory for database files");
+            return;
+        }
+        this.logFile = new File(dir, this.databaseName + LOG_SUFFIX);
+        this.compactingFile = new File(dir, this.databaseName + COMPACTING_SUFFIX);
+        this.snapshotFile = new File(dir, this.databaseName + SNAPSHOT_SUFFIX);
+
+        try {
+            if (snapshotFile.isFile()) {
+                WriteAheadLog.readAll(snapshotFile, this::apply);
+                snapshotBytes = snapshotFile.length();
+            }
+            if (compactingFile.isFile()) {
+                WriteAheadLog.readAll(compactingFile, this::apply);
+            }
+            this.log = new WriteAheadLog(logFile, fsyncPolicy, fsyncIntervalMs);
+            this.log.replay(this::apply);
+
+            // indexed once replayed, so a key written many times is hashed once
+            for (Map.Entry<String, String> entry : database.entrySet()) {
+                liveBytes.addAndGet(LogRecord.sizeOf(entry.getKey(), entry.getValue()));
+                hashIndex.add(entry.getKey());
+            }
+            logger.info(className + String.format("Recovered %d keys of %s", database.size(), databaseName));
+
+            if (compactingFile.isFile()) {
+                // a compaction was interrupted, finish it before accepting writes
+                writeSnapshot();
+                this.log.truncate();
+                Files.deleteIfExists(compactingFile.toPath());
+            }
+
+            if (snapshotBytes == 0 && this.log.size() == 0) {
+                importLegacyFile(new File(dir, this.databaseName));
+            }
+        } catch (IOException e) {
+            logger.error(className + "Open log file failed", e);
+            this.log = null;
+        }
+    }
+
+    private void apply(LogRecord record) {
+        if (record.getType() == LogRecord.PUT) {
+            this.database.put(record.getKey(), record.getValue());
+        } else {
+            this.database.remove(record.getKey());
+        }
+    }
+
+    /**
+     * Carry over the data of a database file written by {@link DatabaseManager}.
+     */
+    private void importLegacyFile(File legacyFile) throws IOException {
+        if (!legacyFile.isFile() || legacyFile.length() == 0) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(legacyFile)) {
+            properties.load(in);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            this.log.append(LogRecord.encode(LogRecord.PUT, key, value));
+            this.database.put(key, value);
+            hashIndex.add(key);
+            liveBytes.addAndGet(LogRecord.sizeOf(key, value));
+        }
+        this.log.sync();
+        logger.info(className + String.format("Imported %d keys from %s", properties.size(), legacyFile.getName()));
+    }
+}
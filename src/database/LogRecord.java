@@ -0,0 +1,177 @@
+package database;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * A single put/delete record of the append-only log.
+ *
+ * Layout: crc(4) | type(1) | keyLength(4) | valueLength(4) | key | value
+ * The checksum covers everything after the crc field, so a torn write at the
+ * tail of the log is detected on replay.
+ */
+public class LogRecord {
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+    public static final int HEADER_SIZE = 4 + 1 + 4 + 4;
+    // far above what clients can write (20 character keys, 122880 character
+    // values), as table rows are written by the server itself
+    public static final int MAX_KEY_LENGTH = 1024;
+    public static final int MAX_VALUE_LENGTH = 8 * 1024 * 1024;
+
+    private final byte type;
+    private final String key;
+    private final String value;
+    private final int size;
+    private final int valueSize;
+
+    public LogRecord(byte type, String key, String value, int size, int valueSize) {
+        this.type = type;
+        this.key = key;
+        this.value = value;
+        this.size = size;
+        this.valueSize = valueSize;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return number of bytes the record occupies in the log
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of bytes of the encoded value, the tail of the record
+     */
+    public int getValueSize() {
+        return valueSize;
+    }
+
+    /**
+     * @return number of bytes a record of the key/value occupies in the log
+     */
+    public static int sizeOf(String key, String value) {
+        return HEADER_SIZE + utf8Length(key) + (value == null ? 0 : utf8Length(value));
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public static byte[] encode(byte type, String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + valueBytes.length);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(valueBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+
+        byte[] record = buffer.array();
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, record.length - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Encode the records of a batch of writes, a pair with a null value being
+     * a delete. A delete of a key that does not exist at that point of the
+     * batch writes no record.
+     * @param exists whether a key exists before the batch
+     * @return one record per pair, null for the skipped deletes
+     */
+    public static byte[][] encodeBatch(List<KVPair> pairs, Predicate<String> exists) {
+        byte[][] records = new byte[pairs.size()][];
+        Map<String, Boolean> present = new HashMap<>();
+        for (int i = 0; i < records.length; i++) {
+            String key = pairs.get(i).getKey();
+            String value = pairs.get(i).getValue();
+            if (value == null) {
+                Boolean existing = present.get(key);
+                if (existing == null ? !exists.test(key) : !existing) {
+                    continue;
+                }
+            }
+            records[i] = encode(value == null ? DELETE : PUT, key, value);
+            present.put(key, value != null);
+        }
+        return records;
+    }
+
+    /**
+     * Read the next record from the stream.
+     * @param remaining number of bytes left in the file, which the lengths in
+     *                  the header are checked against before reading the body
+     * @return the record, or null on a clean end of log
+     * @throws IOException if the record is truncated or its header or checksum is corrupted
+     */
+    public static LogRecord read(DataInputStream in, long remaining) throws IOException {
+        int crcValue;
+        try {
+            crcValue = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte type = in.readByte();
+        int keyLength = in.readInt();
+        int valueLength = in.readInt();
+        if (keyLength < 0 || keyLength > MAX_KEY_LENGTH || valueLength < 0 || valueLength > MAX_VALUE_LENGTH
+                || HEADER_SIZE + (long) keyLength + valueLength > remaining || (type != PUT && type != DELETE)) {
+            throw new IOException("Corrupted log record header");
+        }
+
+        byte[] body = new byte[keyLength + valueLength];
+        in.readFully(body);
+
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(ByteBuffer.allocate(8).putInt(keyLength).putInt(valueLength).array());
+        crc.update(body);
+        if ((int) crc.getValue() != crcValue) {
+            throw new IOException("Log record checksum mismatch");
+        }
+
+        String key = new String(body, 0, keyLength, StandardCharsets.UTF_8);
+        String value = type == PUT ? new String(body, keyLength, valueLength, StandardCharsets.UTF_8) : null;
+        return new LogRecord(type, key, value, HEADER_SIZE + body.length, valueLength);
+    }
+}
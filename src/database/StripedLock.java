@@ -0,0 +1,90 @@
+package database;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write locks of a store. A writer locks the stripe its key hashes to and
+ * shares a read lock with all other writers, so writes of different keys run
+ * in parallel while writes of the same key stay in order. Operations that
+ * swap or drop files take the exclusive lock, which waits for the writes in
+ * flight and blocks new ones. Readers take no lock at all.
+ */
+public class StripedLock {
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] stripes;
+    private final ReentrantReadWriteLock exclusiveLock = new ReentrantReadWriteLock();
+
+    public StripedLock() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public StripedLock(int stripes) {
+        this.stripes = new ReentrantLock[Integer.highestOneBit(Math.max(1, stripes - 1)) << 1];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public void lock(String key) {
+        exclusiveLock.readLock().lock();
+        stripeOf(key).lock();
+    }
+
+    public void unlock(String key) {
+        stripeOf(key).unlock();
+        exclusiveLock.readLock().unlock();
+    }
+
+    /**
+     * Lock the stripes of several keys. Stripes are taken in index order, so
+     * two writers locking overlapping key sets cannot deadlock.
+     */
+    public void lockAll(Collection<String> keys) {
+        exclusiveLock.readLock().lock();
+        BitSet indexes = stripeIndexes(keys);
+        for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+            stripes[i].lock();
+        }
+    }
+
+    public void unlockAll(Collection<String> keys) {
+        BitSet indexes = stripeIndexes(keys);
+        for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+            stripes[i].unlock();
+        }
+        exclusiveLock.readLock().unlock();
+    }
+
+    /**
+     * Lock out every writer. Must not be called while holding a key lock.
+     */
+    public void lockExclusive() {
+        exclusiveLock.writeLock().lock();
+    }
+
+    public void unlockExclusive() {
+        exclusiveLock.writeLock().unlock();
+    }
+
+    private ReentrantLock stripeOf(String key) {
+        return stripes[indexOf(key)];
+    }
+
+    private int indexOf(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return hash & (stripes.length - 1);
+    }
+
+    private BitSet stripeIndexes(Collection<String> keys) {
+        BitSet indexes = new BitSet(stripes.length);
+        for (String key : keys) {
+            indexes.set(indexOf(key));
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,39 @@
+package database;
+
+/**
+ * Where the latest record of a key lives on disk: the data file, the offset
+ * of the record and its size. The value is the tail of the record.
+ */
+public class ValueLocation {
+    private final int fileId;
+    private final long recordOffset;
+    private final int recordSize;
+    private final int valueSize;
+
+    public ValueLocation(int fileId, long recordOffset, int recordSize, int valueSize) {
+        this.fileId = fileId;
+        this.recordOffset = recordOffset;
+        this.recordSize = recordSize;
+        this.valueSize = valueSize;
+    }
+
+    public int getFileId() {
+        return fileId;
+    }
+
+    public long getRecordOffset() {
+        return recordOffset;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    public long getValueOffset() {
+        return recordOffset + recordSize - valueSize;
+    }
+
+    public int getValueSize() {
+        return valueSize;
+    }
+}
@@ -0,0 +1,273 @@
+package database;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Append-only file of {@link LogRecord}s. Every write is a single sequential
+ * append; when the bytes reach the disk is decided by the {@link FsyncPolicy}.
+ */
+public class WriteAheadLog {
+    private static Logger logger = Logger.getLogger(WriteAheadLog.class);
+    private String className = "WriteAheadLog: ";
+
+    private final File file;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMs;
+
+    private FileChannel channel;
+    private long size;
+    private volatile boolean dirty;
+    private ScheduledExecutorService syncer;
+    private volatile MappedByteBuffer mapped;
+
+    public WriteAheadLog(File file, FsyncPolicy fsyncPolicy, long fsyncIntervalMs) throws IOException {
+        this.file = file;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = channel.size();
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "wal-sync-" + file.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncIfDirty, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replay every intact record in the log. A torn or corrupted tail (e.g. a
+     * crash in the middle of an append) is cut off so later appends start from
+     * the last good record.
+     */
+    public synchronized void replay(Consumer<LogRecord> consumer) throws IOException {
+        replay((record, offset) -> consumer.accept(record));
+    }
+
+    /**
+     * Replay every intact record in the log together with its offset.
+     */
+    public synchronized void replay(ObjLongConsumer<LogRecord> consumer) throws IOException {
+        long validBytes = readAll(file, consumer);
+
+        if (validBytes < channel.size()) {
+            logger.warn(className + String.format("Truncate %d trailing bytes of %s",
+                    channel.size() - validBytes, file.getName()));
+            channel.truncate(validBytes);
+        }
+        size = validBytes;
+    }
+
+    /**
+     * Read every intact record of a record file.
+     * @return number of bytes covered by the intact records
+     */
+    public static long readAll(File file, Consumer<LogRecord> consumer) throws IOException {
+        return readAll(file, (record, offset) -> consumer.accept(record));
+    }
+
+    /**
+     * Read every intact record of a record file together with its offset.
+     * @return number of bytes covered by the intact records
+     */
+    public static long readAll(File file, ObjLongConsumer<LogRecord> consumer) throws IOException {
+        long validBytes = 0;
+        long length = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            LogRecord record;
+            while ((record = LogRecord.read(in, length - validBytes)) != null) {
+                consumer.accept(record, validBytes);
+                validBytes += record.getSize();
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("WriteAheadLog: Read stopped at offset %d of %s: %s",
+                    validBytes, file.getName(), e.getMessage()));
+        }
+        return validBytes;
+    }
+
+    /**
+     * Append a record to the end of the log.
+     * @return the offset of the record in the file
+     */
+    public synchronized long append(byte[] record) throws IOException {
+        long offset = size;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, size + buffer.position());
+        }
+        size += record.length;
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            channel.force(false);
+        } else {
+            dirty = true;
+        }
+        return offset;
+    }
+
+    /**
+     * Append several records with one write and, under the ALWAYS policy,
+     * one fsync for all of them.
+     * @return the offset of each record in the file
+     */
+    public synchronized long[] appendAll(List<byte[]> records) throws IOException {
+        int length = 0;
+        for (byte[] record : records) {
+            length += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long[] offsets = new long[records.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = size + buffer.position();
+            buffer.put(records.get(i));
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, size + buffer.position());
+        }
+        size += length;
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            channel.force(false);
+        } else {
+            dirty = true;
+        }
+        return offsets;
+    }
+
+    /**
+     * Read bytes at an absolute position, from the mapping if the file is
+     * mapped and otherwise with a single positional read. Safe to call
+     * concurrently with appends.
+     */
+    public byte[] read(long position, int length) throws IOException {
+        if (mapped != null) {
+            byte[] bytes = new byte[length];
+            slice(position, length).get(bytes);
+            return bytes;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Read past the end of " + file.getName());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return a read-only view of the bytes at an absolute position. Served
+     * straight from the mapping when the file is mapped, without any copy.
+     */
+    public ByteBuffer slice(long position, int length) throws IOException {
+        MappedByteBuffer buffer = mapped;
+        if (buffer == null) {
+            return ByteBuffer.wrap(read(position, length)).asReadOnlyBuffer();
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit((int) position + length);
+        view.position((int) position);
+        return view.slice();
+    }
+
+    /**
+     * Map the file read-only so reads are served from the page cache without
+     * a system call. Only for files that are not appended to anymore; the
+     * mapping is released by the garbage collector once the file is dropped.
+     */
+    public synchronized void map() throws IOException {
+        if (mapped == null && size > 0 && size <= Integer.MAX_VALUE) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Drop every record in the log.
+     */
+    public synchronized void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(true);
+        mapped = null;
+        size = 0;
+        dirty = false;
+    }
+
+    public synchronized void sync() throws IOException {
+        if (channel.isOpen()) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    private void syncIfDirty() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException e) {
+            logger.error(className + "Cannot fsync " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Stop the periodic fsync of a log that will not be appended to anymore.
+     */
+    public synchronized void seal() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();
+            syncer = null;
+        }
+        if (fsyncPolicy != FsyncPolicy.OS) {
+            sync();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public long getFsyncIntervalMs() {
+        return fsyncIntervalMs;
+    }
+
+    public synchronized void close() {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        try {
+            if (channel.isOpen()) {
+                if (fsyncPolicy != FsyncPolicy.OS) {
+                    channel.force(false);
+                }
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.error(className + "Cannot close " + file.getName(), e);
+        }
+    }
+}
@@ -83,7 +83,8 @@ public class ECSNode implements IECSNode {
 
         // ask server in this node to update metadata
         ecsCommunicationModule.
-                sendKVMessage(KVMessage.StatusType.UPDATE_SERVER_METADATA, "null", metadata.toString());
+                sendKVMessage(KVMessage.StatusType.UPDATE_SERVER_METADATA,
+                        String.valueOf(metadata.getVersion()), metadata.toString());
 
         KVMessage response = ecsCommunicationModule.receiveKVMessage();
 
@@ -153,27 +154,49 @@ public class ECSNode implements IECSNode {
         return this.isFailed;
     }
 
-    public void transferKVPairs(ECSNode dst, HashRange range) throws IOException {
+    public boolean transferKVPairs(ECSNode dst, HashRange range) throws IOException {
         ecsCommunicationModule.sendKVMessage(KVMessage.StatusType.TRANSFER_DATA, dst.getNodeName(), range.toString());
         KVMessage response = ecsCommunicationModule.receiveKVMessage();
 
         if(response.getStatus() == KVMessage.StatusType.TRANSFER_DATA_SUCCESS) {
             logger.info(String.format("Transfer from node [%s] to [%s] success", this.name, dst.getNodeName()));
+            return true;
         }
         else {
             logger.error(String.format("Transfer from node [%s] to [%s] error", this.name, dst.getNodeName()));
+            return false;
+        }
+    }
+
+    /**
+     * Like transferKVPairs, but the range is shipped to the new node as a
+     * snapshot file while this node keeps taking writes
+     */
+    public boolean bootstrapKVPairs(ECSNode dst, HashRange range) throws IOException {
+        ecsCommunicationModule.sendKVMessage(KVMessage.StatusType.BOOTSTRAP_DATA, dst.getNodeName(), range.toString());
+        KVMessage response = ecsCommunicationModule.receiveKVMessage();
+
+        if(response.getStatus() == KVMessage.StatusType.TRANSFER_DATA_SUCCESS) {
+            logger.info(String.format("Bootstrap of node [%s] from [%s] success", dst.getNodeName(), this.name));
+            return true;
+        }
+        else {
+            logger.error(String.format("Bootstrap of node [%s] from [%s] error", dst.getNodeName(), this.name));
+            return false;
         }
     }
 
-    public void deleteKVPairs(HashRange range) throws IOException {
+    public boolean deleteKVPairs(HashRange range) throws IOException {
         ecsCommunicationModule.sendKVMessage(KVMessage.StatusType.DELETE_DATA, range.toString(), null);
         KVMessage response = ecsCommunicationModule.receiveKVMessage();
 
         if(response.getStatus() == KVMessage.StatusType.DELETE_DATA_SUCCESS) {
             logger.info(String.format("Delete data from node [%s] success", this.name));
+            return true;
         }
         else {
             logger.error(String.format("Delete data from node [%s] failed", this.name));
+            return false;
         }
     }
 
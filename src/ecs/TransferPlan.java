@@ -0,0 +1,155 @@
+package ecs;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The range movements of one topology change, planned up front and run
+ * together. Every move is a request to one node, and the ECS talks to a
+ * node over a single connection, so the moves of one node run one after
+ * the other in the order they were added. Moves of different nodes run
+ * at the same time on the given executor, whose size bounds how many
+ * run at once.
+ */
+public class TransferPlan {
+    private static final Logger logger = Logger.getLogger(TransferPlan.class);
+
+    public enum State { PENDING, RUNNING, DONE, FAILED, SKIPPED }
+
+    public interface Step {
+        /**
+         * @return false if the node reported an error
+         */
+        boolean run() throws IOException;
+    }
+
+    public static class Move {
+        private final String node;
+        private final String description;
+        private final Step step;
+        private volatile State state = State.PENDING;
+        private volatile long millis;
+
+        private Move(String node, String description, Step step) {
+            this.node = node;
+            this.description = description;
+            this.step = step;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return how long the move took, once it is done or failed
+         */
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    private final String name;
+    private final List<Move> moves = new ArrayList<>();
+    private final AtomicInteger finished = new AtomicInteger();
+
+    public TransferPlan(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param node the node the step is sent to
+     */
+    public Move add(String node, String description, Step step) {
+        Move move = new Move(node, description, step);
+        moves.add(move);
+        return move;
+    }
+
+    public List<Move> getMoves() {
+        return moves;
+    }
+
+    /**
+     * @return how many moves have not finished yet
+     */
+    public int remaining() {
+        return moves.size() - finished.get();
+    }
+
+    /**
+     * Run all moves and wait for them. After a failed move, the later
+     * moves of the same node are skipped, since they may rely on it.
+     * @return true if every move succeeded
+     */
+    public boolean execute(ExecutorService executor) {
+        Map<String, List<Move>> byNode = new LinkedHashMap<>();
+        for (Move move : moves) {
+            byNode.computeIfAbsent(move.node, node -> new ArrayList<>()).add(move);
+        }
+
+        long start = System.currentTimeMillis();
+        List<Future<?>> running = new ArrayList<>();
+        for (List<Move> queue : byNode.values()) {
+            running.add(executor.submit(() -> runInOrder(queue)));
+        }
+
+        boolean ok = true;
+        for (Future<?> future : running) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                logger.error(String.format("Plan [%s] was interrupted", name), e);
+                ok = false;
+            }
+        }
+        for (Move move : moves) {
+            ok &= move.state == State.DONE;
+        }
+        logger.info(String.format("Plan [%s]: %d moves on %d nodes finished in %d ms, %s",
+                name, moves.size(), byNode.size(), System.currentTimeMillis() - start,
+                ok ? "all succeeded" : "some failed"));
+        return ok;
+    }
+
+    private void runInOrder(List<Move> queue) {
+        boolean failed = false;
+        for (Move move : queue) {
+            if (failed) {
+                move.state = State.SKIPPED;
+                logger.error(String.format("Plan [%s]: skipped %s after an earlier failure on [%s]",
+                        name, move.description, move.node));
+                finished.incrementAndGet();
+                continue;
+            }
+            move.state = State.RUNNING;
+            long start = System.currentTimeMillis();
+            try {
+                failed = !move.step.run();
+            } catch (Exception e) {
+                logger.error(String.format("Plan [%s]: %s lost connection", name, move.description), e);
+                failed = true;
+            }
+            move.millis = System.currentTimeMillis() - start;
+            move.state = failed ? State.FAILED : State.DONE;
+            logger.info(String.format("Plan [%s]: %s %s in %d ms, %d of %d moves left",
+                    name, move.description, failed ? "failed" : "done", move.millis,
+                    moves.size() - finished.incrementAndGet(), moves.size()));
+        }
+    }
+}
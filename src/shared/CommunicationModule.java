@@ -4,23 +4,37 @@ import app_kvServer.IKVServer.ServerStatus;
 import app_kvServer.KVServer;
 import org.apache.log4j.Logger;
 import org.json.*;
+import database.KVPair;
+import shared.messages.BatchCodec;
+import shared.messages.BinaryFrame;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
 import shared.messages.KVMessageEntity;
 import java.io.*;
 import java.net.Socket;
-
-public class CommunicationModule implements Runnable {
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+public class CommunicationModule implements Runnable, MetadataSubscriber {
     private static Logger logger = Logger.getLogger(CommunicationModule.class);
 
     private boolean isOpen;
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] LINE_END = new byte[]{13, 10};
 
     private Socket clientSocket;
     private InputStream input;
+    private DataInputStream dataInput;
     private OutputStream output;
     private KVServer kvServer; // if kvServer is null, this is client side; otherwise, server side
+    private volatile boolean binaryProtocol; // messages are BinaryFrames instead of text lines
 
     public CommunicationModule(Socket clientSocket, KVServer kvServer) {
         this.clientSocket = clientSocket;
@@ -28,13 +42,24 @@ public class CommunicationModule implements Runnable {
         this.isOpen = true;
         try {
             this.output = clientSocket.getOutputStream();
-            this.input = clientSocket.getInputStream();
+            // one read system call fills the buffer instead of one per byte
+            this.input = new BufferedInputStream(clientSocket.getInputStream(), INPUT_BUFFER_SIZE);
+            this.dataInput = new DataInputStream(this.input);
         }
         catch (IOException e) {
             logger.error("Error!", e);
         }
     }
 
+    /**
+     * Create a module that only handles requests read by another front end,
+     * e.g. the NIO server; it has no socket of its own.
+     */
+    public CommunicationModule(KVServer kvServer) {
+        this.kvServer = kvServer;
+        this.isOpen = false;
+    }
+
     public InputStream getInput() {
         return input;
     }
@@ -43,21 +68,37 @@ public class CommunicationModule implements Runnable {
         return this.clientSocket.isClosed();
     }
 
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    /**
+     * Ask the server to switch this connection to {@link BinaryFrame}s. Sent
+     * right after the CONNECTED greeting; a server that does not know the
+     * binary protocol answers FAILED and the connection stays on text.
+     * @return true if the connection now uses the binary protocol
+     */
+    public boolean upgradeProtocol() throws IOException {
+        sendKVMessage(StatusType.PROTOCOL_UPGRADE, "version", BinaryFrame.VERSION);
+        KVMessage reply = receiveKVMessage();
+        binaryProtocol = reply.getStatus() == StatusType.PROTOCOL_UPGRADE_SUCCESS;
+        return binaryProtocol;
+    }
+
     /**
      * Initializes and starts the client connection.
      * Loops until the connection is closed or aborted by the client.
      */
     public void run() {
         try {
-            output = clientSocket.getOutputStream();
-            input = clientSocket.getInputStream();
+            if (input == null) {
+                throw new IOException("No input stream");
+            }
 
             if (kvServer != null) { // server-side communication
                 while (isOpen) {
                     try {
-                        KVMessage message = receiveKVMessage();
-                        KVMessage reply = handleReceivedKVMessage(message);
-                        sendKVMessage(reply.getStatus(), reply.getKey(), reply.getValue());
+                        serveNextMessage();
                     } catch (IOException ioe) {
                         if (isOpen) {
                             logger.warn("Error! Connection lost!");
@@ -70,9 +111,7 @@ public class CommunicationModule implements Runnable {
 
                 // Do it again if there is new message come in
                 try {
-                    KVMessage message = receiveKVMessage();
-                    KVMessage reply = handleReceivedKVMessage(message);
-                    sendKVMessage(reply.getStatus(), reply.getKey(), reply.getValue());
+                    serveNextMessage();
                 } catch (IOException ioe) {
                     if (isOpen) {
                         logger.warn("Error! Connection lost!");
@@ -90,6 +129,17 @@ public class CommunicationModule implements Runnable {
         }
     }
 
+    private void serveNextMessage() throws Exception {
+        KVMessage message = receiveKVMessage();
+        KVMessage reply = handleRequest(message, this);
+        sendKVMessage(reply);
+        kvServer.getRequestStats().recordReply(reply.getStatus());
+        if (reply.getStatus() == StatusType.PROTOCOL_UPGRADE_SUCCESS) {
+            // the reply itself still went out as text
+            binaryProtocol = true;
+        }
+    }
+
     /**
      * Method sends a TextMessage using this socket.
      * @param status
@@ -101,14 +151,130 @@ public class CommunicationModule implements Runnable {
         KVMessage message= new KVMessageEntity(status, key, value);
 //        logger.debug("KVMessage Sent:  " + message.outputFormat() + "\n");
 
-        byte[] msgBytes = message.toByteArray();
-        output.write(msgBytes, 0, msgBytes.length);
-        output.flush();
+        return sendKVMessage(message);
+    }
+
+    /**
+     * Method sends a KVMessage using this socket. A value held in a buffer
+     * (e.g. a slice of a mapped data file) is written with one gathering
+     * write straight from the buffer when the socket has a channel.
+     * Synchronized because metadata pushes share the socket with replies.
+     * @param message
+     * @throws IOException some I/O error regarding the output stream
+     */
+    public synchronized KVMessage sendKVMessage(KVMessage message) throws IOException {
+        ByteBuffer valueBuffer = message instanceof KVMessageEntity ?
+                ((KVMessageEntity) message).getValueBuffer() : null;
+        SocketChannel channel = clientSocket.getChannel();
+
+        if (valueBuffer == null || message.getKey() == null || channel == null) {
+            byte[] msgBytes = binaryProtocol ? BinaryFrame.encode(idOf(message), versionOf(message), message.getStatus(),
+                    message.getKey(), message.getValue()) : message.toByteArray();
+            output.write(msgBytes, 0, msgBytes.length);
+            output.flush();
+            return message;
+        }
 
+        ByteBuffer[] frame = encode(message, binaryProtocol);
+        while (hasRemaining(frame)) {
+            channel.write(frame);
+        }
         return message;
     }
 
+    /**
+     * Encode a message for a gathering write. A value held in a buffer is
+     * not copied, the buffer becomes part of the frame.
+     */
+    public static ByteBuffer[] encode(KVMessage message, boolean binary) {
+        ByteBuffer valueBuffer = message instanceof KVMessageEntity ?
+                ((KVMessageEntity) message).getValueBuffer() : null;
+        if (valueBuffer == null || message.getKey() == null) {
+            byte[] bytes = binary ? BinaryFrame.encode(idOf(message), versionOf(message), message.getStatus(),
+                    message.getKey(), message.getValue()) : message.toByteArray();
+            return new ByteBuffer[]{ByteBuffer.wrap(bytes)};
+        }
+        if (binary) {
+            byte[] header = BinaryFrame.encodeHeader(idOf(message), versionOf(message), message.getStatus(),
+                    message.getKey(), valueBuffer.remaining());
+            return new ByteBuffer[]{ByteBuffer.wrap(header), valueBuffer.duplicate()};
+        }
+        byte[] header = (message.getStatus() + " " + message.getKey() + " ").getBytes();
+        return new ByteBuffer[]{ByteBuffer.wrap(header), valueBuffer.duplicate(), ByteBuffer.wrap(LINE_END)};
+    }
+
+    private static int idOf(KVMessage message) {
+        return message instanceof KVMessageEntity ? ((KVMessageEntity) message).getId() : 0;
+    }
+
+    public static int versionOf(KVMessage message) {
+        return message instanceof KVMessageEntity ? ((KVMessageEntity) message).getMetadataVersion() : 0;
+    }
+
+    public static boolean hasRemaining(ByteBuffer[] frame) {
+        for (ByteBuffer buffer : frame) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Handle a request read by another front end.
+     * @param subscriber the connection the request came from, registered if
+     *                   the request is SUBSCRIBE_METADATA
+     * @return the reply to send back, carrying the correlation id of the
+     * request and the version of the server's metadata
+     */
+    public KVMessage handleRequest(KVMessage message, MetadataSubscriber subscriber) throws Exception {
+        KVMessage reply;
+        if (message != null && message.getStatus() == StatusType.SUBSCRIBE_METADATA) {
+            kvServer.subscribeMetadata(subscriber);
+            reply = kvServer.getMetadataUpdate();
+        } else if (message != null && isClientWrite(message.getStatus())) {
+            Lock clientWrite = kvServer.getClientWriteLock();
+            clientWrite.lock();
+            try {
+                reply = handleReceivedKVMessage(message);
+            } finally {
+                clientWrite.unlock();
+            }
+        } else {
+            reply = handleReceivedKVMessage(message);
+        }
+        if (reply instanceof KVMessageEntity) {
+            ((KVMessageEntity) reply).setId(idOf(message));
+            ((KVMessageEntity) reply).setMetadataVersion(kvServer.getMetadataVersion());
+        }
+        return reply;
+    }
+
+    /**
+     * @return whether the request writes and is refused under WRITE_LOCK
+     */
+    private static boolean isClientWrite(StatusType status) {
+        switch (status) {
+            case PUT:
+            case MPUT:
+            case MDELETE:
+            case UPDATE_QUERY:
+            case DELETE_QUERY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void pushMetadata(KVMessage update) throws IOException {
+        sendKVMessage(update);
+    }
+
     public KVMessage receiveKVMessage() throws IOException {
+        if (binaryProtocol) {
+            return BinaryFrame.read(dataInput);
+        }
         int index = 0;
         byte[] msgBytes = null, tmp = null;
         byte[] bufferBytes = new byte[BUFFER_SIZE];
@@ -264,6 +430,7 @@ public class CommunicationModule implements Runnable {
                             result = new KVMessageEntity(StatusType.GET_ERROR, key, null);
                         } else {
                             String val = "null";
+                            ByteBuffer buffer = null;
 //                            HashRange range = kvServer.serverMetadata.getHashRange(kvServer.name);
 //                            if (range.startIndex > key || range.endIndex < key) {
 //                                resultStatus = StatusType.SERVER_NOT_RESPONSIBLE;
@@ -276,15 +443,19 @@ public class CommunicationModule implements Runnable {
                                 key = null;
                                 val = null;
                             } else {
-                                val = kvServer.getKV(key);
-                                if (val != null) {
+                                buffer = kvServer.getKVBuffer(key);
+                                if (buffer != null) {
                                     resultStatus = StatusType.GET_SUCCESS;
                                 }
                                 else {
                                     resultStatus = StatusType.GET_ERROR;
+                                    val = null;
                                 }
                             }
                             result = new KVMessageEntity(resultStatus, key, val);
+                            if (buffer != null) {
+                                ((KVMessageEntity) result).setValueBuffer(buffer);
+                            }
                         }
                         break;
                     case KEYRANGE:
@@ -375,6 +546,50 @@ public class CommunicationModule implements Runnable {
                         }
                         result = new KVMessageEntity(resultStatus, key, value);
                         break;
+                    case MGET:
+                        result = handleBatchGet(value);
+                        break;
+                    case MPUT:
+                    case MDELETE:
+                        result = handleBatchWrite(status, value);
+                        break;
+                    case REPLICA_BATCH:
+                        result = handleReplicaBatch(value);
+                        break;
+                    case TRANSFER_CHUNK:
+                        result = handleTransferChunk(value);
+                        break;
+                    case SNAPSHOT_CHUNK:
+                        result = handleSnapshotChunk(key, value);
+                        break;
+                    case SNAPSHOT_INSTALL:
+                        int records = kvServer.installSnapshot(key, Long.parseLong(value));
+                        result = records < 0 ? new KVMessageEntity(StatusType.FAILED, "snapshot incomplete", null)
+                                : new KVMessageEntity(StatusType.BATCH_SUCCESS, Integer.toString(records), null);
+                        break;
+                    case REPLICA_APPEND:
+                        result = handleReplicaAppend(key, value);
+                        break;
+                    case REPLICA_SYNC:
+                        result = new KVMessageEntity(StatusType.REPLICA_SYNC_SUCCESS,
+                                Long.toString(kvServer.getAppliedSequence(key)), null);
+                        break;
+                    case REPLICA_RESYNC:
+                        int split = key.lastIndexOf(':');
+                        kvServer.resetReplicated(key.substring(0, split), Long.parseLong(key.substring(split + 1)),
+                                value);
+                        result = new KVMessageEntity(StatusType.REPLICA_SYNC_SUCCESS, key.substring(split + 1), null);
+                        break;
+                    case IS_ALIVE:
+                        result = new KVMessageEntity(StatusType.ALIVE, null, null);
+                        break;
+                    case PROTOCOL_UPGRADE:
+                        if (BinaryFrame.VERSION.equals(value)) {
+                            result = new KVMessageEntity(StatusType.PROTOCOL_UPGRADE_SUCCESS, "version", value);
+                        } else {
+                            result = new KVMessageEntity(StatusType.FAILED, "protocol version unknown", null);
+                        }
+                        break;
                     case UNKNOWN:
                         result = new KVMessageEntity(StatusType.FAILED, "message format unknown", null);
                     default:
@@ -388,6 +603,157 @@ public class CommunicationModule implements Runnable {
         return result;
     }
 
+    /**
+     * Read the keys of an MGET. Keys outside the replica range are answered
+     * with SERVER_NOT_RESPONSIBLE, so the client asks their server for them.
+     */
+    private KVMessage handleBatchGet(String encoded) throws Exception {
+        if (kvServer.getServerStatus() == ServerStatus.STOP) {
+            return new KVMessageEntity(StatusType.SERVER_STOPPED, null, null);
+        }
+        List<KVMessage> entries;
+        try {
+            entries = BatchCodec.decode(encoded);
+        } catch (IllegalArgumentException e) {
+            return new KVMessageEntity(StatusType.FAILED, "batch format unknown", null);
+        }
+
+        List<KVMessage> replies = new ArrayList<>(entries.size());
+        for (KVMessage entry : entries) {
+            String key = entry.getKey();
+            String value = null;
+            StatusType entryStatus;
+            if (key.isEmpty() || key.length() > 20) {
+                entryStatus = StatusType.GET_ERROR;
+            } else if (!kvServer.isInReplicaRange(key)) {
+                entryStatus = StatusType.SERVER_NOT_RESPONSIBLE;
+            } else {
+                value = kvServer.getKV(key);
+                entryStatus = value != null ? StatusType.GET_SUCCESS : StatusType.GET_ERROR;
+            }
+            replies.add(new KVMessageEntity(entryStatus, key, value));
+        }
+        return batchReply(replies);
+    }
+
+    /**
+     * Apply the writes of an MPUT or MDELETE that this server is responsible
+     * for with one storage append. Every key gets the status a single PUT
+     * would have returned for it.
+     */
+    private KVMessage handleBatchWrite(StatusType status, String encoded) throws Exception {
+        if (kvServer.getServerStatus() == ServerStatus.WRITE_LOCK) {
+            return new KVMessageEntity(StatusType.SERVER_WRITE_LOCK, null, null);
+        } else if (kvServer.getServerStatus() == ServerStatus.STOP) {
+            return new KVMessageEntity(StatusType.SERVER_STOPPED, null, null);
+        }
+        List<KVMessage> entries;
+        try {
+            entries = BatchCodec.decode(encoded);
+        } catch (IllegalArgumentException e) {
+            return new KVMessageEntity(StatusType.FAILED, "batch format unknown", null);
+        }
+
+        List<KVMessage> replies = new ArrayList<>(entries.size());
+        List<KVPair> writes = new ArrayList<>(entries.size());
+        List<KVMessage> writeReplies = new ArrayList<>(entries.size());
+        Map<String, Boolean> present = new HashMap<>(); // keys written earlier in this batch
+        for (KVMessage entry : entries) {
+            String key = entry.getKey();
+            String value = status == StatusType.MDELETE || "null".equals(entry.getValue()) ? null : entry.getValue();
+            KVMessageEntity reply = new KVMessageEntity(StatusType.FAILED, key, null);
+            replies.add(reply);
+            if (key.isEmpty() || key.length() > 20 || key.contains(" ") || (value != null && value.length() > 122880)) {
+                continue;
+            }
+            if (!kvServer.isInCoordinatorRange(key)) {
+                reply.setStatus(StatusType.SERVER_NOT_RESPONSIBLE);
+                continue;
+            }
+            Boolean written = present.get(key);
+            boolean exists = written != null ? written : kvServer.inStorage(key);
+            if (value == null) {
+                reply.setStatus(exists ? StatusType.DELETE_SUCCESS : StatusType.DELETE_ERROR);
+                if (!exists) {
+                    continue;
+                }
+            } else {
+                reply.setStatus(exists ? StatusType.PUT_UPDATE : StatusType.PUT_SUCCESS);
+            }
+            present.put(key, value != null);
+            writes.add(new KVPair(key, value));
+            writeReplies.add(reply);
+        }
+
+        boolean[] applied = kvServer.putKVBatch(writes);
+        for (int i = 0; i < applied.length; i++) {
+            if (!applied[i]) {
+                writeReplies.get(i).setStatus(writes.get(i).getValue() == null ?
+                        StatusType.DELETE_ERROR : StatusType.PUT_ERROR);
+            }
+        }
+        return batchReply(replies);
+    }
+
+    private KVMessage handleReplicaBatch(String encoded) throws Exception {
+        List<KVPair> writes = replicaWrites(encoded);
+        kvServer.putKVBatchReplica(writes);
+        return new KVMessageEntity(StatusType.BATCH_SUCCESS, Integer.toString(writes.size()), null);
+    }
+
+    /**
+     * Apply a numbered write of a coordinator, the key being "log id:sequence number"
+     */
+    private KVMessage handleReplicaAppend(String key, String encoded) throws Exception {
+        int split = key.lastIndexOf(':');
+        String logId = key.substring(0, split);
+        long sequence = Long.parseLong(key.substring(split + 1));
+        if (!kvServer.putKVReplicated(logId, sequence, replicaWrites(encoded))) {
+            return new KVMessageEntity(StatusType.REPLICA_OUT_OF_SYNC,
+                    Long.toString(kvServer.getAppliedSequence(logId)), null);
+        }
+        return new KVMessageEntity(StatusType.BATCH_SUCCESS, Long.toString(sequence), null);
+    }
+
+    /**
+     * Store a chunk of a range handed over by another server with one batch
+     * write, passing it on to the replicas like SERVER_PUT does
+     */
+    private KVMessage handleTransferChunk(String compressed) throws Exception {
+        List<KVPair> pairs = new ArrayList<>();
+        for (KVMessage entry : BatchCodec.decodeCompressed(compressed)) {
+            pairs.add(new KVPair(entry.getKey(), entry.getValue()));
+        }
+        kvServer.putKVBatch(pairs);
+        return new KVMessageEntity(StatusType.BATCH_SUCCESS, Integer.toString(pairs.size()), null);
+    }
+
+    /**
+     * Append a chunk of a snapshot file, the key being "snapshot id:offset"
+     */
+    private KVMessage handleSnapshotChunk(String key, String compressed) throws Exception {
+        int split = key.lastIndexOf(':');
+        byte[] bytes = BatchCodec.decompress(compressed);
+        if (!kvServer.receiveSnapshotChunk(key.substring(0, split), Long.parseLong(key.substring(split + 1)), bytes)) {
+            return new KVMessageEntity(StatusType.FAILED, "snapshot chunk out of order", null);
+        }
+        return new KVMessageEntity(StatusType.BATCH_SUCCESS, Integer.toString(bytes.length), null);
+    }
+
+    private static List<KVPair> replicaWrites(String encoded) {
+        List<KVPair> writes = new ArrayList<>();
+        for (KVMessage entry : BatchCodec.decode(encoded)) {
+            String value = entry.getValue();
+            writes.add(new KVPair(entry.getKey(), "null".equals(value) ? null : value));
+        }
+        return writes;
+    }
+
+    private static KVMessage batchReply(List<KVMessage> replies) {
+        return new KVMessageEntity(StatusType.BATCH_SUCCESS, Integer.toString(replies.size()),
+                BatchCodec.encode(replies));
+    }
+
     public void closeCommunicationModule(){
         try {
             if (clientSocket != null) {
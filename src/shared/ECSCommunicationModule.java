@@ -46,13 +46,24 @@ public class ECSCommunicationModule extends CommunicationModule {
                             result.setStatus(StatusType.TRANSFER_DATA_ERROR);
                         }
                         break;
+                    case BOOTSTRAP_DATA:
+                        if (kvServer.bootstrapKVPairs(key, value)) { // dstNode, range
+                            result.setStatus(StatusType.TRANSFER_DATA_SUCCESS);
+                            result.setKey("success");
+                        }
+                        else {
+                            result.setStatus(StatusType.TRANSFER_DATA_ERROR);
+                        }
+                        break;
                     case DELETE_DATA:
                         kvServer.deleteKVPairs(key);
                         result.setStatus(StatusType.DELETE_DATA_SUCCESS);
                         result.setKey("success");
                         break;
                     case UPDATE_SERVER_METADATA:
-                        if (kvServer.updateMetadata(value)) {
+                        // the key is the version of the metadata, "null" from older ECS
+                        int version = key != null && key.matches("\\d+") ? Integer.parseInt(key) : 0;
+                        if (kvServer.updateMetadata(value, version)) {
                             result.setStatus(StatusType.UPDATE_SERVER_METADATA_SUCCESS);
                             result.setKey("success");
                         }
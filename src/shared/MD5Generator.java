@@ -5,18 +5,22 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class MD5Generator {
-    public static BigInteger generateHash(String input) {
-        String tableDelimiter = "@";
+    // looking the digest up costs more than hashing a short key, so each thread keeps one
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
         try {
-            if (input.contains(tableDelimiter)) {
-                input = input.split(tableDelimiter)[0];
-            }
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] messageDigest = md.digest(input.getBytes());
-            BigInteger value = new BigInteger(1, messageDigest);
-            return value;
+            return MessageDigest.getInstance("MD5");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+    });
+
+    public static BigInteger generateHash(String input) {
+        String tableDelimiter = "@";
+        if (input.contains(tableDelimiter)) {
+            input = input.split(tableDelimiter)[0];
+        }
+        byte[] messageDigest = DIGEST.get().digest(input.getBytes());
+        BigInteger value = new BigInteger(1, messageDigest);
+        return value;
     }
 }
@@ -16,9 +16,12 @@ public class Metadata {
     // map server to key range
     // each pair is followed by successor in order
     public List<Pair<String, HashRange>> server2rangeList = new Vector<Pair<String, HashRange>>(1);
+    private static final int REPLICAS = 2;
     private static final BigInteger maximum = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16);
 
     private String tableDelimiter = "@";
+    // raised on every change of the ring; not part of the string form
+    private int version;
 
     public Metadata() {
 
@@ -41,6 +44,14 @@ public class Metadata {
         }
     }
 
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     public boolean isEmpty(){
         return server2rangeList.isEmpty();
     }
@@ -60,6 +71,7 @@ public class Metadata {
     public Pair<HashRange, String> addServer(String hostname, int port) {
         String serverAddress = hostname + ":" + port;
         BigInteger hashValue = generateHash(serverAddress);
+        version++;
         BigInteger nextStartIndex = hashValue.add(BigInteger.ONE);
 
         HashRange newRange;
@@ -97,6 +109,7 @@ public class Metadata {
     public Pair<String, HashRange> removeServer(String hostname, int port) {
         String serverAddress = hostname + ":" + port;
         BigInteger hashValue = generateHash(serverAddress);
+        version++;
 
         if (server2rangeList.size() == 1 && server2rangeList.get(0).fst.compareTo(serverAddress) == 0){
             server2rangeList.remove(0);
@@ -139,6 +152,23 @@ public class Metadata {
         return null;
     }
 
+    /**
+     * @return the coordinator of the key followed by its replicas, the next
+     * servers on the ring; all of them answer GETs for the key
+     */
+    public List<String> findReadServers(String key) {
+        List<String> servers = new ArrayList<>(REPLICAS + 1);
+        String coordinator = findResponsibleServer(key);
+        if (coordinator == null) {
+            return servers;
+        }
+        servers.add(coordinator);
+        for (int n = 1; n <= Math.min(REPLICAS, getSize() - 1); n++) {
+            servers.add(getSuccessorAt(coordinator, n).fst);
+        }
+        return servers;
+    }
+
     public HashRange getHashRange(String address){
         for (int i = 0; i < server2rangeList.size(); i++) {
             if(server2rangeList.get(i).fst.compareTo(address) == 0)
@@ -0,0 +1,18 @@
+package shared;
+
+import shared.messages.KVMessage;
+
+import java.io.IOException;
+
+/**
+ * A client connection that asked to be told about every change of the
+ * server's metadata (SUBSCRIBE_METADATA).
+ */
+public interface MetadataSubscriber {
+
+    /**
+     * Send a METADATA_UPDATE to the client without waiting for a request.
+     * @throws IOException if the connection is gone; the subscription is then dropped
+     */
+    void pushMetadata(KVMessage update) throws IOException;
+}
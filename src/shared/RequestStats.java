@@ -0,0 +1,144 @@
+package shared;
+
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage.StatusType;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the requests served by a server, kept instead of a log line
+ * per request. Counting is a LongAdder increment that neither allocates nor
+ * contends; a summary of the counts since the last one is logged at a fixed
+ * interval.
+ */
+public class RequestStats {
+    private static Logger logger = Logger.getLogger(RequestStats.class);
+    private String className = "RequestStats: ";
+
+    private final Map<StatusType, LongAdder> replies = new EnumMap<>(StatusType.class);
+    private final Map<StatusType, Long> reported = new EnumMap<>(StatusType.class);
+    private final LongAdder replicaAcks = new LongAdder();
+    private final AtomicLong replicaFailures = new AtomicLong();
+    private final LongAdder replicaCatchUps = new LongAdder();
+    private final LongAdder replicaResyncs = new LongAdder();
+    private long reportedReplicaAcks;
+    private long reportedReplicaFailures;
+    private ScheduledExecutorService reporter;
+
+    public RequestStats() {
+        for (StatusType status : StatusType.values()) {
+            replies.put(status, new LongAdder());
+            reported.put(status, 0L);
+        }
+    }
+
+    /**
+     * Count a reply sent to a client.
+     */
+    public void recordReply(StatusType status) {
+        replies.get(status).increment();
+    }
+
+    public void recordReplicaAck() {
+        replicaAcks.increment();
+    }
+
+    /**
+     * Count a replica that did not acknowledge an update.
+     * @return the number of failures so far, for callers that only log some of them
+     */
+    public long recordReplicaFailure() {
+        return replicaFailures.incrementAndGet();
+    }
+
+    /**
+     * Count the writes resent to a replica that missed them.
+     */
+    public void recordReplicaCatchUp(int records) {
+        replicaCatchUps.add(records);
+    }
+
+    /**
+     * Count a replica that missed more writes than the replication backlog
+     * holds and got a full copy of the range instead.
+     */
+    public void recordReplicaResync() {
+        replicaResyncs.increment();
+    }
+
+    public long getReplies(StatusType status) {
+        return replies.get(status).sum();
+    }
+
+    public long getReplicaAcks() {
+        return replicaAcks.sum();
+    }
+
+    public long getReplicaFailures() {
+        return replicaFailures.get();
+    }
+
+    public long getReplicaCatchUps() {
+        return replicaCatchUps.sum();
+    }
+
+    public long getReplicaResyncs() {
+        return replicaResyncs.sum();
+    }
+
+    /**
+     * Log a summary of the requests served since the last one every interval.
+     * Nothing is logged for an interval without requests.
+     */
+    public synchronized void startReporting(long intervalMs) {
+        if (reporter != null || intervalMs <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "request-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleWithFixedDelay(this::report, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdown();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Log the counts since the last summary as status=count pairs.
+     */
+    public synchronized void report() {
+        StringBuilder summary = new StringBuilder();
+        long total = 0;
+        for (StatusType status : StatusType.values()) {
+            long count = replies.get(status).sum();
+            long delta = count - reported.put(status, count);
+            if (delta > 0) {
+                summary.append(' ').append(status).append('=').append(delta);
+                total += delta;
+            }
+        }
+        long acks = replicaAcks.sum();
+        long failures = replicaFailures.get();
+        if (acks > reportedReplicaAcks || failures > reportedReplicaFailures) {
+            summary.append(" replica_acks=").append(acks - reportedReplicaAcks)
+                    .append(" replica_failures=").append(failures - reportedReplicaFailures);
+            reportedReplicaAcks = acks;
+            reportedReplicaFailures = failures;
+        }
+        if (summary.length() > 0) {
+            logger.info(className + "requests=" + total + summary);
+        }
+    }
+}
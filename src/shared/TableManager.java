@@ -1,7 +1,6 @@
 package shared;
 
 import app_kvServer.KVServer;
-import database.DatabaseManager;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
@@ -11,14 +10,17 @@ import java.util.function.Predicate;
 
 public class TableManager {
     private static Logger logger = Logger.getLogger(TableManager.class);
-    private DatabaseManager dbManager;
+    private KVServer kvServer;
     /*M4*/
     private String queryDelimiter = ";";
     private String tableDelimiter = "@";
     private String columnDelimiter = ",";
 
-    public TableManager(DatabaseManager dbManager) {
-        this.dbManager = dbManager;
+    /**
+     * Rows are read through the server so table scans go through its cache
+     */
+    public TableManager(KVServer kvServer) {
+        this.kvServer = kvServer;
     }
 
     public String selectQuery(String tableName, String s) {
@@ -27,7 +29,7 @@ public class TableManager {
         String[] conditions = tokens[1].split("&&");
         if (tokens[0].equals("*")) {
             try {
-                query_columns = this.dbManager.get(tableName + tableDelimiter + "columns").split(columnDelimiter);
+                query_columns = this.kvServer.getKV(tableName + tableDelimiter + "columns").split(columnDelimiter);
             } catch (Exception e) {
                 logger.error(e);
             }
@@ -40,7 +42,7 @@ public class TableManager {
         String result = String.join(",", query_columns) + ";";
 
         try {
-            String[] columns = this.dbManager.get(tableName + tableDelimiter + "columns").split(columnDelimiter);
+            String[] columns = this.kvServer.getKV(tableName + tableDelimiter + "columns").split(columnDelimiter);
 
             ArrayList<Predicate<String>> predicates = new ArrayList<>();
 
@@ -50,10 +52,10 @@ public class TableManager {
 
 //            System.out.println(predicates.size());
 
-            int id = Integer.valueOf(this.dbManager.get(tableName+ tableDelimiter + "id"));
+            int id = Integer.valueOf(this.kvServer.getKV(tableName+ tableDelimiter + "id"));
 
             for (int i = 1; i <= id; i++) {
-                String row = this.dbManager.get(tableName + tableDelimiter + i);
+                String row = this.kvServer.getKV(tableName + tableDelimiter + i);
                 if (row != null && pass_all_predicate(predicates, row)) {
                     String[] values = row.split(",");
                     for (int j = 0; j < values.length; j++) {
@@ -78,15 +80,14 @@ public class TableManager {
         ArrayList<String> result = new ArrayList<>();
 
         try {
-            String[] columns = this.dbManager.get(tableName + tableDelimiter + "columns").split(columnDelimiter);
+            String[] columns = this.kvServer.getKV(tableName + tableDelimiter + "columns").split(columnDelimiter);
             Predicate<String> predicate = getPredicate(condition, columns);
 
-            int id = Integer.valueOf(this.dbManager.get(tableName+ tableDelimiter + "id"));
+            int id = Integer.valueOf(this.kvServer.getKV(tableName+ tableDelimiter + "id"));
 
             for (int i = 1; i <= id; i++) {
-                String row = this.dbManager.get(tableName + tableDelimiter + i);
+                String row = this.kvServer.getKV(tableName + tableDelimiter + i);
                 if (row != null && predicate.test(row)) {
-                    System.out.println(row);
                     result.add(tableName+ tableDelimiter + i);
                 }
             }
@@ -109,15 +110,14 @@ public class TableManager {
         }
 
         try {
-            String[] columns = this.dbManager.get(tableName + tableDelimiter + "columns").split(columnDelimiter);
+            String[] columns = this.kvServer.getKV(tableName + tableDelimiter + "columns").split(columnDelimiter);
             Predicate<String> predicate = getPredicate(tokens[1], columns);
 
-            int id = Integer.valueOf(this.dbManager.get(tableName+ tableDelimiter + "id"));
+            int id = Integer.valueOf(this.kvServer.getKV(tableName+ tableDelimiter + "id"));
 
             for (int i = 1; i <= id; i++) {
-                String row = this.dbManager.get(tableName + tableDelimiter + i);
+                String row = this.kvServer.getKV(tableName + tableDelimiter + i);
                 if (row != null && predicate.test(row)) {
-                    System.out.println(row);
                     String[] values = row.split(",");
                     for (int j = 0; j < values.length; j++) {
                         if (column2result.containsKey(columns[j])) {
@@ -0,0 +1,139 @@
+package shared.messages;
+
+import shared.messages.KVMessage.StatusType;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes the entries of a batch request or reply (MGET, MPUT, MDELETE,
+ * BATCH_SUCCESS) into the value of a single message:
+ *   STATUS keyLength valueLength keyvalue STATUS keyLength ...
+ * Lengths count chars; a value length of -1 stands for a missing value. Keys
+ * and values are taken as they are, so they may contain spaces.
+ */
+public final class BatchCodec {
+    private static final char SEPARATOR = ' ';
+    private static final int NO_VALUE = -1;
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private BatchCodec() {
+    }
+
+    public static String encode(List<? extends KVMessage> entries) {
+        StringBuilder encoded = new StringBuilder();
+        for (KVMessage entry : entries) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            encoded.append(entry.getStatus()).append(SEPARATOR)
+                    .append(key.length()).append(SEPARATOR)
+                    .append(value == null ? NO_VALUE : value.length()).append(SEPARATOR)
+                    .append(key);
+            if (value != null) {
+                encoded.append(value);
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the entries are malformed
+     */
+    public static List<KVMessage> decode(String encoded) {
+        List<KVMessage> entries = new ArrayList<>();
+        if (encoded == null) {
+            return entries;
+        }
+        int position = 0;
+        try {
+            while (position < encoded.length()) {
+                int end = encoded.indexOf(SEPARATOR, position);
+                StatusType status = StatusType.valueOf(encoded.substring(position, end));
+                position = end + 1;
+                end = encoded.indexOf(SEPARATOR, position);
+                int keyLength = Integer.parseInt(encoded.substring(position, end));
+                position = end + 1;
+                end = encoded.indexOf(SEPARATOR, position);
+                int valueLength = Integer.parseInt(encoded.substring(position, end));
+                position = end + 1;
+
+                String key = encoded.substring(position, position + keyLength);
+                position += keyLength;
+                String value = null;
+                if (valueLength != NO_VALUE) {
+                    value = encoded.substring(position, position + valueLength);
+                    position += valueLength;
+                }
+                entries.add(new KVMessageEntity(status, key, value));
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed batch at offset " + position, e);
+        }
+        return entries;
+    }
+
+    /**
+     * Encode the entries and deflate them for bulk transfers. The result is
+     * Base64, so it still travels as the string value of a message.
+     */
+    public static String encodeCompressed(List<? extends KVMessage> entries) {
+        byte[] plain = encode(entries).getBytes(StandardCharsets.UTF_8);
+        return compress(plain, 0, plain.length);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the entries are malformed
+     */
+    public static List<KVMessage> decodeCompressed(String compressed) {
+        return decode(new String(decompress(compressed), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Deflate bytes into Base64, for bulk data carried in the value of a message
+     */
+    public static String compress(byte[] plain, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(plain, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return Base64.getEncoder().encodeToString(compressed.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the data is malformed or truncated
+     */
+    public static byte[] decompress(String compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(compressed));
+            ByteArrayOutputStream plain = new ByteArrayOutputStream(compressed.length() * 3);
+            byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("Truncated compressed data");
+                }
+                plain.write(buffer, 0, inflated);
+            }
+            return plain.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package shared.messages;
+
+import shared.messages.KVMessage.StatusType;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding of a {@link KVMessage}, used on a connection once both
+ * ends agreed on it right after the CONNECTED greeting:
+ *   id(4) | metadataVersion(4) | status(1) | keyLength(4) | valueLength(4) | key | value
+ * The id is chosen by the sender of a request and echoed in its reply, so a
+ * client can have many requests outstanding and still match every reply
+ * (version 2 frames had no id). Servers put the version of their metadata in
+ * every reply, so clients notice a changed ring without asking for it
+ * (version 3 frames had no metadata version). The status is the ordinal of its StatusType,
+ * so new status types must be added at the end of the enum. A length of -1
+ * stands for a missing field. Key and value are sent as they are, so neither
+ * needs escaping nor splitting.
+ */
+public final class BinaryFrame {
+    public static final String VERSION = "4";
+    public static final int HEADER_SIZE = 17;
+    public static final int MAX_FIELD_SIZE = 16 * 1024 * 1024;
+    private static final int NO_FIELD = -1;
+    private static final StatusType[] STATUS_TYPES = StatusType.values();
+
+    private BinaryFrame() {
+    }
+
+    public static byte[] encode(int id, int metadataVersion, StatusType status, String key, String value) {
+        byte[] keyBytes = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + lengthOf(keyBytes) + lengthOf(valueBytes));
+        putHeader(frame, id, metadataVersion, status, keyBytes, valueBytes == null ? NO_FIELD : valueBytes.length);
+        if (valueBytes != null) {
+            frame.put(valueBytes);
+        }
+        return frame.array();
+    }
+
+    /**
+     * Encode everything but the value, for a value that is written from its
+     * own buffer.
+     */
+    public static byte[] encodeHeader(int id, int metadataVersion, StatusType status, String key,
+                                      int valueLength) {
+        byte[] keyBytes = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + lengthOf(keyBytes));
+        putHeader(frame, id, metadataVersion, status, keyBytes, valueLength);
+        return frame.array();
+    }
+
+    /**
+     * Read the next frame.
+     * @throws IOException if the connection is closed or the frame is malformed
+     */
+    public static KVMessage read(DataInputStream in) throws IOException {
+        int id;
+        try {
+            id = in.readInt();
+        } catch (EOFException e) {
+            throw new IOException("Error! Connection lost!");
+        }
+        int metadataVersion = in.readInt();
+        int ordinal = in.readUnsignedByte();
+        StatusType status = ordinal < STATUS_TYPES.length ? STATUS_TYPES[ordinal] : StatusType.UNKNOWN;
+        int keyLength = in.readInt();
+        int valueLength = in.readInt();
+        String key = readField(in, keyLength);
+        String value = readField(in, valueLength);
+        return tagged(new KVMessageEntity(status, key, value), id, metadataVersion);
+    }
+
+    /**
+     * Decode the next frame of a buffer filled by a non-blocking read.
+     * @return the message, or null if the buffer does not hold the whole
+     * frame yet, in which case its position is left unchanged
+     * @throws IOException if the frame is malformed
+     */
+    public static KVMessage decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        int id = buffer.getInt(start);
+        int metadataVersion = buffer.getInt(start + 4);
+        int ordinal = buffer.get(start + 8) & 0xFF;
+        int keyLength = checkLength(buffer.getInt(start + 9));
+        int valueLength = checkLength(buffer.getInt(start + 13));
+        if (buffer.remaining() < HEADER_SIZE + Math.max(0, keyLength) + Math.max(0, valueLength)) {
+            return null;
+        }
+        buffer.position(start + HEADER_SIZE);
+        StatusType status = ordinal < STATUS_TYPES.length ? STATUS_TYPES[ordinal] : StatusType.UNKNOWN;
+        String key = getField(buffer, keyLength);
+        String value = getField(buffer, valueLength);
+        return tagged(new KVMessageEntity(status, key, value), id, metadataVersion);
+    }
+
+    private static KVMessageEntity tagged(KVMessageEntity message, int id, int metadataVersion) {
+        message.setId(id);
+        message.setMetadataVersion(metadataVersion);
+        return message;
+    }
+
+    private static void putHeader(ByteBuffer frame, int id, int metadataVersion, StatusType status, byte[] key,
+                                  int valueLength) {
+        frame.putInt(id);
+        frame.putInt(metadataVersion);
+        frame.put((byte) status.ordinal());
+        frame.putInt(key == null ? NO_FIELD : key.length);
+        frame.putInt(valueLength);
+        if (key != null) {
+            frame.put(key);
+        }
+    }
+
+    private static String readField(DataInputStream in, int length) throws IOException {
+        if (checkLength(length) == NO_FIELD) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String getField(ByteBuffer buffer, int length) {
+        if (length == NO_FIELD) {
+            return null;
+        }
+        if (!buffer.hasArray()) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String field = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return field;
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < NO_FIELD || length > MAX_FIELD_SIZE) {
+            throw new IOException("Malformed frame, field length: " + length);
+        }
+        return length;
+    }
+
+    private static int lengthOf(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+}
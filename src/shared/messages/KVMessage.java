@@ -58,6 +58,36 @@ public interface KVMessage {
 		DELETE_QUERY,
 		QUERY_SUCCESS,
 		QUERY_ERROR,
+
+		/* Wire protocol, sent as text: PROTOCOL_UPGRADE version <n> */
+		PROTOCOL_UPGRADE,
+		PROTOCOL_UPGRADE_SUCCESS,
+
+		/* Batches: key is the number of entries, value the entries as encoded by BatchCodec */
+		MGET,
+		MPUT, 			/* a "null" value deletes the key like PUT does */
+		MDELETE,
+		BATCH_SUCCESS,	/* per-key results, e.g. SERVER_NOT_RESPONSIBLE for keys of other servers */
+		REPLICA_BATCH,	/* coordinator forwards the writes of a batch to its replicas */
+
+		/* Ring changes: METADATA_UPDATE metadata version, sent as the reply to SUBSCRIBE_METADATA and after every change */
+		SUBSCRIBE_METADATA,
+		METADATA_UPDATE,
+
+		/* Numbered replication: key is "<log id>:<sequence number>", the log id names one run of the coordinator */
+		REPLICA_APPEND,	/* value the writes as encoded by BatchCodec; BATCH_SUCCESS, or REPLICA_OUT_OF_SYNC if one was missed */
+		REPLICA_OUT_OF_SYNC,
+		REPLICA_SYNC,	/* key the log id; REPLICA_SYNC_SUCCESS with the last applied sequence number as key */
+		REPLICA_SYNC_SUCCESS,
+		REPLICA_RESYNC,	/* value the coordinator's range: drop its keys, a full copy follows as REPLICA_BATCH */
+
+		/* Range handoff: key the number of pairs, value the pairs as encoded by BatchCodec.encodeCompressed */
+		TRANSFER_CHUNK,	/* stored like SERVER_PUT, replied with BATCH_SUCCESS */
+
+		/* Bootstrap of a new node: the range as one file of storage records, key "<snapshot id>:<offset>" */
+		SNAPSHOT_CHUNK,	/* value the next bytes of the file, compressed by BatchCodec.compress */
+		SNAPSHOT_INSTALL,	/* key the snapshot id, value the file size; BATCH_SUCCESS with the number of records */
+		BOOTSTRAP_DATA,	/* from ECS, like TRANSFER_DATA but shipping a snapshot */
 	}
 
 	/**
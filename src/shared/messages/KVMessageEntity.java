@@ -1,9 +1,15 @@
 package shared.messages;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public class KVMessageEntity implements KVMessage {
     private StatusType status;
     private String key;
     private String value;
+    private ByteBuffer valueBuffer; // encoded value that is sent without building the string
+    private int id; // correlation id of a binary frame, 0 on the text protocol
+    private int metadataVersion; // version of the sender's metadata in a binary frame, 0 on the text protocol
     private static final char LINE_FEED = 10;
     private static final char RETURN = 13;
     private static final String DELIMITER = " ";
@@ -81,9 +87,41 @@ public class KVMessageEntity implements KVMessage {
     }
 
     public String getValue() {
+        if (value == null && valueBuffer != null) {
+            value = StandardCharsets.UTF_8.decode(valueBuffer.duplicate()).toString();
+        }
         return value;
     }
 
+    public ByteBuffer getValueBuffer() {
+        return valueBuffer;
+    }
+
+    /**
+     * Use an already encoded value, e.g. a slice of a mapped data file, so
+     * the value can be written to the socket without a copy on the heap.
+     */
+    public void setValueBuffer(ByteBuffer valueBuffer) {
+        this.valueBuffer = valueBuffer;
+        this.value = null;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public int getMetadataVersion() {
+        return metadataVersion;
+    }
+
+    public void setMetadataVersion(int metadataVersion) {
+        this.metadataVersion = metadataVersion;
+    }
+
     public void setStatus(StatusType status) {
         this.status = status;
     }
@@ -94,18 +132,19 @@ public class KVMessageEntity implements KVMessage {
 
     public void setValue(String value) {
         this.value = value;
+        this.valueBuffer = null;
     }
 
     public String toString() {
         String s = status.toString();
         if (key != null) s += DELIMITER + key;
-        if (value != null) s += DELIMITER + value;
+        if (getValue() != null) s += DELIMITER + value;
         return s;
     }
 
     public byte[] toByteArray() {
         String msg;
-        if (value != null && key != null) {
+        if (getValue() != null && key != null) {
             msg = this.toString();
         }
         else if (key != null) {
@@ -117,6 +156,6 @@ public class KVMessageEntity implements KVMessage {
     }
 
     public String outputFormat() {
-        return "Status: " + this.status + ", key: " + this.key +", value: " + this.value;
+        return "Status: " + this.status + ", key: " + this.key +", value: " + getValue();
     }
 }
\ No newline at end of file
@@ -32,6 +32,18 @@ public class AllTests {
 		// clientSuite.addTestSuite(AdditionalTest.class);
 //		clientSuite.addTestSuite(PerformanceTest.class);
 		clientSuite.addTestSuite(M4AdditionalTest.class);
+		clientSuite.addTestSuite(StorageTest.class);
+		clientSuite.addTestSuite(CacheTest.class);
+		clientSuite.addTestSuite(ProtocolTest.class);
+		clientSuite.addTestSuite(FrontEndTest.class);
+		clientSuite.addTestSuite(AsyncClientTest.class);
+		clientSuite.addTestSuite(BatchTest.class);
+		clientSuite.addTestSuite(ConnectionPoolTest.class);
+		clientSuite.addTestSuite(MetadataUpdateTest.class);
+		clientSuite.addTestSuite(ReadRoutingTest.class);
+		clientSuite.addTestSuite(HedgedReadTest.class);
+		clientSuite.addTestSuite(ReplicationTest.class);
+		clientSuite.addTestSuite(TransferPlanTest.class);
 //		clientSuite.addTestSuite(M4PerformanceTest.class);
 		return clientSuite;
 	}
@@ -0,0 +1,89 @@
+package testing;
+
+import app_kvServer.KVServer;
+import database.DatabaseManager;
+import database.FsyncPolicy;
+import database.IDatabase;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated per storage request with logging at INFO, the level a
+ * production server runs at. Log lines go to a NullAppender so only the cost
+ * of building them is measured, not the cost of writing them.
+ */
+public class AllocationPerformanceTest extends TestCase {
+    static final String DIR = "disk/allocation_test";
+    static final int WARMUP = 2000;
+    static final int ROUNDS = 20000;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * @return bytes allocated by the current thread per call of the operation
+     */
+    static long allocationPerCall(Operation operation, int rounds) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run(i);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < rounds; i++) {
+            operation.run(i);
+        }
+        return (threadBean.getThreadAllocatedBytes(threadId) - before) / rounds;
+    }
+
+    private static String value(int length) {
+        return new String(new char[length]).replace('\0', 'v');
+    }
+
+    private void report(String name, Operation operation, int rounds) throws Exception {
+        System.out.println(String.format("%-40s %10d bytes/op", name, allocationPerCall(operation, rounds)));
+    }
+
+    @Test
+    public void testAllocationPerRequest() throws Exception {
+        Logger.getRootLogger().removeAllAppenders();
+        Logger.getRootLogger().addAppender(new NullAppender());
+        Logger.getRootLogger().setLevel(Level.INFO);
+        new File(DIR).mkdirs();
+
+        String smallValue = value(100);
+        String bigValue = value(120 * 1024);
+
+        DatabaseManager properties = new DatabaseManager(DIR, "properties");
+        properties.put("small", smallValue);
+        properties.put("big", bigValue);
+        report("DatabaseManager get 100 B", i -> properties.get("small"), ROUNDS);
+        report("DatabaseManager get 120 KB", i -> properties.get("big"), ROUNDS);
+        report("DatabaseManager get missing", i -> properties.get("missing"), ROUNDS);
+        properties.eraseDisk();
+
+        LogDatabase log = new LogDatabase(DIR, "log", FsyncPolicy.OS, 0);
+        log.eraseDisk();
+        report("LogDatabase put 100 B", i -> log.put("key" + (i % 100), smallValue), ROUNDS);
+        report("LogDatabase get 100 B", i -> log.get("key" + (i % 100)), ROUNDS);
+
+        IDatabase serverDb = new LogDatabase(DIR, "server", FsyncPolicy.OS, 0);
+        serverDb.eraseDisk();
+        KVServer server = new KVServer(50020, 100, "LRU", serverDb, "localhost", null);
+        report("KVServer putKV 100 B", i -> server.putKV("key" + (i % 100), smallValue), ROUNDS);
+        report("KVServer getKV 100 B", i -> server.getKV("key" + (i % 100)), ROUNDS);
+        report("KVServer putKV delete", i -> server.putKV("gone" + i, null), ROUNDS);
+        log.close();
+        ((LogDatabase) serverDb).close();
+    }
+}
@@ -0,0 +1,159 @@
+package testing;
+
+import app_kvServer.FrontEndMode;
+import app_kvServer.KVServer;
+import client.KVStore;
+import client.PipelinedConnection;
+import database.FsyncPolicy;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.Metadata;
+import shared.messages.KVMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class AsyncClientTest extends TestCase {
+    private static final int PORT1 = 30015;
+    private static final int PORT2 = 30016;
+    private static final int PORT3 = 30034;
+    private static KVServer server1;
+    private static KVServer server2;
+
+    private static KVServer startServer(int port) throws Exception {
+        LogDatabase db = new LogDatabase("disk/storage_test", "async_" + port, FsyncPolicy.OS, 0);
+        db.eraseDisk();
+        KVServer server = new KVServer(port, 10, "LRU", db, "localhost", null);
+        server.start();
+        return server;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        if (server1 == null) {
+            server1 = startServer(PORT1);
+            server2 = startServer(PORT2);
+            Thread.sleep(100);
+            // split the ring between both servers as the ECS would
+            Metadata metadata = new Metadata();
+            metadata.addServer("localhost", PORT1);
+            metadata.addServer("localhost", PORT2);
+            server1.updateMetadata(metadata.toString());
+            server2.updateMetadata(metadata.toString());
+        }
+    }
+
+    @Test
+    // Test 1: thousands of requests are in flight at once and all complete with their own reply
+    public void testManyOutstandingRequests() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORT1);
+        kvClient.connect();
+        int count = 2000;
+
+        List<CompletableFuture<KVMessage>> puts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            puts.add(kvClient.putAsync("async" + i, "value " + i));
+        }
+        CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        List<CompletableFuture<KVMessage>> gets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            gets.add(kvClient.getAsync("async" + i));
+        }
+
+        int wrong = 0;
+        for (int i = 0; i < count; i++) {
+            KVMessage put = puts.get(i).get();
+            KVMessage get = gets.get(i).get(30, TimeUnit.SECONDS);
+            if (put.getStatus() != KVMessage.StatusType.PUT_SUCCESS || !("value " + i).equals(get.getValue())) {
+                wrong++;
+            }
+        }
+        kvClient.disconnect();
+
+        assertEquals(0, wrong);
+    }
+
+    @Test
+    // Test 2: a client that only knows one server is rerouted to the other one for about half of the keys
+    public void testRerouteOnNotResponsible() throws Exception {
+        KVStore writer = new KVStore("localhost", PORT1);
+        writer.connect();
+        List<CompletableFuture<KVMessage>> puts = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            puts.add(writer.putAsync("route" + i, "v" + i));
+        }
+        CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        writer.disconnect();
+
+        KVStore reader = new KVStore("localhost", PORT2);
+        reader.connect();
+        boolean allFound = true;
+        for (int i = 0; i < 100; i++) {
+            KVMessage get = reader.getAsync("route" + i).get(30, TimeUnit.SECONDS);
+            allFound &= get.getStatus() == KVMessage.StatusType.GET_SUCCESS && ("v" + i).equals(get.getValue());
+        }
+        reader.disconnect();
+
+        // reads are also served by replicas, so only the writer had to learn the whole ring
+        assertTrue(allFound && writer.getMetadata().getSize() == 2);
+        for (CompletableFuture<KVMessage> put : puts) {
+            assertEquals(KVMessage.StatusType.PUT_SUCCESS, put.get().getStatus());
+        }
+    }
+
+    @Test
+    // Test 3: when the server goes away while requests are being sent, every request fails and none is left hanging
+    public void testServerLostWhileSending() throws Exception {
+        LogDatabase db = new LogDatabase("disk/storage_test", "async_" + PORT3, FsyncPolicy.OS, 0);
+        db.eraseDisk();
+        KVServer server = new KVServer(PORT3, 10, "LRU", db, "localhost", null);
+        server.setFrontEnd(FrontEndMode.NIO, 1, 2);
+        server.start();
+        Thread.sleep(100);
+        List<PipelinedConnection> connections = new ArrayList<>();
+        for (int c = 0; c < 16; c++) {
+            connections.add(new PipelinedConnection("localhost", PORT3, true, 8));
+        }
+
+        ConcurrentLinkedQueue<CompletableFuture<KVMessage>> sent = new ConcurrentLinkedQueue<>();
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < 2 * connections.size(); t++) {
+            PipelinedConnection connection = connections.get(t / 2);
+            int sender = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    sent.add(connection.send(KVMessage.StatusType.PUT, "lost" + sender + "_" + i, "value"));
+                }
+            });
+            thread.start();
+            senders.add(thread);
+        }
+        Thread.sleep(20);
+        server.kill();
+
+        boolean ok = true;
+        for (Thread thread : senders) {
+            thread.join(10000);
+            ok &= !thread.isAlive();
+        }
+        for (CompletableFuture<KVMessage> future : sent) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                // failed with the connection, as expected for requests without a reply
+            } catch (TimeoutException e) {
+                ok = false; // never completed, so it also holds a permit of the window
+            }
+        }
+        for (PipelinedConnection connection : connections) {
+            ok &= !connection.isOpen() && connection.getOutstanding() == 0;
+        }
+        assertTrue(ok);
+    }
+}
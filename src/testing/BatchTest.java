@@ -0,0 +1,296 @@
+package testing;
+
+import app_kvServer.IKVServer;
+import app_kvServer.KVServer;
+import client.KVStore;
+import database.FsyncPolicy;
+import database.KVPair;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.Metadata;
+import shared.messages.BatchCodec;
+import shared.messages.KVMessage;
+import shared.messages.KVMessageEntity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+public class BatchTest extends TestCase {
+    private static final int PORT1 = 30017;
+    private static final int PORT2 = 30018;
+    private static final int PORT3 = 30032;
+    private static final int PORT4 = 30033;
+    private static KVServer server1;
+    private static KVServer server2;
+
+    private static KVServer startServer(int port) throws Exception {
+        LogDatabase db = new LogDatabase("disk/storage_test", "batch_" + port, FsyncPolicy.OS, 0);
+        db.eraseDisk();
+        KVServer server = new KVServer(port, 10, "LRU", db, "localhost", null);
+        server.start();
+        return server;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        if (server1 == null) {
+            server1 = startServer(PORT1);
+            server2 = startServer(PORT2);
+            Thread.sleep(100);
+            Metadata metadata = new Metadata();
+            metadata.addServer("localhost", PORT1);
+            metadata.addServer("localhost", PORT2);
+            server1.updateMetadata(metadata.toString());
+            server2.updateMetadata(metadata.toString());
+        }
+    }
+
+    @Test
+    // Test 1: entries with spaces and missing values survive encoding
+    public void testCodecRoundTrip() {
+        List<KVMessage> entries = Arrays.asList(
+                new KVMessageEntity(KVMessage.StatusType.PUT_SUCCESS, "a", "value with spaces 12 3"),
+                new KVMessageEntity(KVMessage.StatusType.GET_ERROR, "b", null),
+                new KVMessageEntity(KVMessage.StatusType.GET_SUCCESS, "c", ""));
+
+        List<KVMessage> decoded = BatchCodec.decode(BatchCodec.encode(entries));
+
+        assertEquals(3, decoded.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(entries.get(i).getStatus() == decoded.get(i).getStatus()
+                    && entries.get(i).getKey().equals(decoded.get(i).getKey())
+                    && (entries.get(i).getValue() == null ? decoded.get(i).getValue() == null
+                    : entries.get(i).getValue().equals(decoded.get(i).getValue())));
+        }
+    }
+
+    private boolean putGetDelete(boolean binary, String prefix) throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORT1);
+        kvClient.setBinaryProtocol(binary);
+        kvClient.connect();
+        Map<String, String> pairs = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            pairs.put(prefix + i, "value " + i);
+        }
+
+        Map<String, KVMessage> puts = kvClient.putAll(pairs);
+        Map<String, KVMessage> gets = kvClient.getAll(pairs.keySet());
+        Map<String, KVMessage> deletes = kvClient.deleteAll(pairs.keySet());
+        Map<String, KVMessage> missing = kvClient.getAll(pairs.keySet());
+        kvClient.disconnect();
+
+        boolean ok = kvClient.getMetadata().getSize() == 2;
+        for (String key : pairs.keySet()) {
+            ok &= puts.get(key).getStatus() == KVMessage.StatusType.PUT_SUCCESS
+                    && pairs.get(key).equals(gets.get(key).getValue())
+                    && deletes.get(key).getStatus() == KVMessage.StatusType.DELETE_SUCCESS
+                    && missing.get(key).getStatus() == KVMessage.StatusType.GET_ERROR;
+        }
+        return ok;
+    }
+
+    @Test
+    // Test 2: keys of both servers are written, read and deleted in batches, rerouted where needed
+    public void testBatchesAcrossServers() throws Exception {
+        assertTrue(putGetDelete(true, "bb"));
+    }
+
+    @Test
+    // Test 3: on the text protocol the same calls work one key at a time
+    public void testBatchesOverText() throws Exception {
+        assertTrue(putGetDelete(false, "bt"));
+    }
+
+    @Test
+    // Test 4: a key written twice in one batch reports an update and keeps the last value
+    public void testRepeatedKey() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORT1);
+        kvClient.connect();
+        kvClient.put("repeat", "first");
+        Map<String, String> pairs = new HashMap<>();
+        pairs.put("repeat", "second");
+
+        KVMessage put = kvClient.putAll(pairs).get("repeat");
+        KVMessage get = kvClient.get("repeat");
+        List<String> keys = new ArrayList<>(Arrays.asList("repeat", "repeat"));
+        Map<String, KVMessage> deleted = kvClient.deleteAll(keys);
+        kvClient.disconnect();
+
+        assertTrue(put.getStatus() == KVMessage.StatusType.PUT_UPDATE && "second".equals(get.getValue())
+                && deleted.get("repeat") != null);
+    }
+
+    @Test
+    // Test 5: compressed encoding keeps entries with spaces and missing values, also past one buffer
+    public void testCompressedCodecRoundTrip() {
+        List<KVMessage> entries = new ArrayList<>();
+        entries.add(new KVMessageEntity(KVMessage.StatusType.MPUT, "a", "value with spaces 12 3"));
+        entries.add(new KVMessageEntity(KVMessage.StatusType.MPUT, "b", null));
+        for (int i = 0; i < 5000; i++) {
+            entries.add(new KVMessageEntity(KVMessage.StatusType.MPUT, "key" + i, "value " + i + " " + (i * 7919)));
+        }
+
+        List<KVMessage> decoded = BatchCodec.decodeCompressed(BatchCodec.encodeCompressed(entries));
+
+        boolean ok = decoded.size() == entries.size();
+        for (int i = 0; ok && i < entries.size(); i++) {
+            ok = entries.get(i).getKey().equals(decoded.get(i).getKey())
+                    && (entries.get(i).getValue() == null ? decoded.get(i).getValue() == null
+                    : entries.get(i).getValue().equals(decoded.get(i).getValue()));
+        }
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 6: a range larger than one transfer chunk arrives complete at the destination
+    public void testTransferInChunks() throws Exception {
+        char[] filler = new char[500];
+        Arrays.fill(filler, 'x');
+        List<KVPair> pairs = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            pairs.add(new KVPair("transfer" + i, i + new String(filler)));
+        }
+        server1.putKVBatch(pairs);
+
+        boolean ok = server1.transferKVPairs("localhost:" + PORT2, "0,ffffffffffffffffffffffffffffffff");
+        for (KVPair pair : pairs) {
+            ok &= pair.getValue().equals(server2.getKV(pair.getKey()));
+        }
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 7: a bootstrap ships the range as a snapshot, and the destination ends up with the source's keys
+    public void testBootstrapSnapshot() throws Exception {
+        List<KVPair> pairs = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            pairs.add(new KVPair("bootstrap" + i, "value " + i));
+        }
+        server1.putKVBatch(pairs);
+        server2.deleteKVPairs("0,ffffffffffffffffffffffffffffffff"); // drop the replicated copy
+        server2.putKVReplica("bootstrap0", "stale");
+
+        boolean ok = server1.bootstrapKVPairs("localhost:" + PORT2, "0,ffffffffffffffffffffffffffffffff");
+        for (KVPair pair : pairs) {
+            ok &= pair.getValue().equals(server2.getKV(pair.getKey()));
+        }
+        assertTrue(ok && server1.getServerStatus() == IKVServer.ServerStatus.ACTIVE);
+    }
+
+    @Test
+    // Test 8: clients keep writing while a range is copied, also right as the copy starts and to new keys,
+    // and every write acknowledged before the lock is moved
+    public void testWritesDuringRebalance() throws Exception {
+        Metadata metadata = new Metadata();
+        metadata.addServer("localhost", PORT1);
+        metadata.addServer("localhost", PORT2);
+        String owner = "localhost:" + PORT1;
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < 2000; i++) {
+            if (owner.equals(metadata.findResponsibleServer("online" + i))) {
+                keys.add("online" + i);
+            }
+        }
+        char[] filler = new char[500];
+        Arrays.fill(filler, 'x');
+        List<KVPair> pairs = new ArrayList<>();
+        for (String key : keys) {
+            pairs.add(new KVPair(key, "old" + new String(filler)));
+        }
+        server1.putKVBatch(pairs);
+        for (int i = 0; keys.size() < 2300; i++) { // not stored before the copy
+            if (owner.equals(metadata.findResponsibleServer("fresh" + i))) {
+                keys.add("fresh" + i);
+            }
+        }
+        KVServer server3 = startServer(PORT3); // not on the ring, so it only gets what is moved
+
+        int writers = 3;
+        Map<String, String> acknowledged = new ConcurrentHashMap<>(); // "null" for a delete
+        List<KVStore> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch go = new CountDownLatch(1);
+        for (int w = 0; w < writers; w++) {
+            KVStore kvClient = new KVStore("localhost", PORT1);
+            kvClient.connect();
+            clients.add(kvClient);
+            int first = w;
+            Thread writer = new Thread(() -> {
+                try {
+                    go.await();
+                    for (int i = first; ; i += writers) {
+                        // new keys first, so they are written while the copy starts
+                        String key = keys.get((2000 + i) % keys.size());
+                        String value = i % 5 == 0 ? "null" : "new" + i;
+                        KVMessage.StatusType status = kvClient.put(key, value).getStatus();
+                        if (status == KVMessage.StatusType.SERVER_WRITE_LOCK) {
+                            return;
+                        }
+                        acknowledged.put(key, value);
+                    }
+                } catch (Exception e) {
+                    acknowledged.put("failed", e.toString());
+                }
+            });
+            writer.start();
+            threads.add(writer);
+        }
+
+        go.countDown();
+        boolean ok = server1.rebalance("localhost:" + PORT3, metadata.getHashRange(owner).toString());
+        for (Thread writer : threads) {
+            writer.join();
+        }
+        for (KVStore kvClient : clients) {
+            kvClient.disconnect();
+        }
+        server1.setServerStatus(IKVServer.ServerStatus.ACTIVE);
+
+        ok &= !acknowledged.isEmpty() && !acknowledged.containsKey("failed");
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            String expected = acknowledged.getOrDefault(key, i < 2000 ? "old" + new String(filler) : "null");
+            ok &= Objects.equals(expected.equals("null") ? null : expected, server3.getKV(key));
+        }
+        server3.close();
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 9: a transfer or bootstrap the destination cannot store is reported as failed, and the source takes
+    // writes again
+    public void testFailedTransfer() throws Exception {
+        LogDatabase broken = new LogDatabase("disk/storage_test", "batch_" + PORT4, FsyncPolicy.OS, 0) {
+            @Override
+            public boolean[] writeBatch(List<KVPair> pairs) {
+                throw new IllegalStateException("disk unavailable");
+            }
+
+            @Override
+            public int installSnapshot(File file) throws IOException {
+                throw new IOException("disk unavailable");
+            }
+        };
+        broken.eraseDisk();
+        KVServer server4 = new KVServer(PORT4, 10, "LRU", broken, "localhost", null);
+        server4.start();
+        server1.putKVBatch(List.of(new KVPair("unmoved", "value")));
+
+        boolean ok = server1.transferKVPairs("localhost:" + PORT4, "0,ffffffffffffffffffffffffffffffff");
+        ok |= server1.bootstrapKVPairs("localhost:" + PORT4, "0,ffffffffffffffffffffffffffffffff");
+        server4.close();
+
+        assertFalse(ok);
+        assertEquals(IKVServer.ServerStatus.ACTIVE, server1.getServerStatus());
+        assertEquals("value", server1.getKV("unmoved"));
+    }
+}
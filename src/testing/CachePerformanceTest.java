@@ -0,0 +1,92 @@
+package testing;
+
+import app_kvServer.IKVServer.CacheStrategy;
+import cache.KVCache;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Hit rates of the cache strategies on a trace of skewed point reads of hot
+ * keys interleaved with full table scans, the access pattern of GETs mixed
+ * with TableManager.selectQuery.
+ */
+public class CachePerformanceTest extends TestCase {
+    static final int CACHE_SIZE = 500;
+    static final int HOT_KEYS = 400;
+    static final int TABLE_ROWS = 5000;
+    static final int POINT_READS = 200000;
+    static final int SCAN_EVERY = 2000;
+
+    /**
+     * Build a trace of point reads where key i of the hot set is read with a
+     * probability of about 1/i, with a scan over every table row after each
+     * scanEvery point reads.
+     */
+    public static List<String> scanTrace(int hotKeys, int tableRows, int pointReads, int scanEvery, long seed) {
+        Random random = new Random(seed);
+        double[] cumulative = new double[hotKeys];
+        double sum = 0;
+        for (int i = 0; i < hotKeys; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+
+        List<String> trace = new ArrayList<>();
+        for (int i = 1; i <= pointReads; i++) {
+            double target = random.nextDouble() * sum;
+            int index = 0;
+            while (cumulative[index] < target) {
+                index++;
+            }
+            trace.add("hot" + index);
+            if (i % scanEvery == 0) {
+                trace.add("table@columns");
+                trace.add("table@id");
+                for (int row = 1; row <= tableRows; row++) {
+                    trace.add("table@" + row);
+                }
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Replay a trace read-through: a miss loads the key into the cache.
+     * @return the hit rate of the point reads of hot keys
+     */
+    public static double replay(KVCache cache, List<String> trace) {
+        int pointReads = 0;
+        int pointHits = 0;
+        for (String key : trace) {
+            boolean hit = cache.get(key) != null;
+            if (!hit) {
+                cache.put(key, "value");
+            }
+            if (key.startsWith("hot")) {
+                pointReads++;
+                pointHits += hit ? 1 : 0;
+            }
+        }
+        return (double) pointHits / pointReads;
+    }
+
+    @Test
+    public void testScanHitRate() {
+        List<String> trace = scanTrace(HOT_KEYS, TABLE_ROWS, POINT_READS, SCAN_EVERY, 42);
+        System.out.println(String.format("Trace of %d accesses, cache of %d entries", trace.size(), CACHE_SIZE));
+
+        for (CacheStrategy strategy : new CacheStrategy[]{
+                CacheStrategy.FIFO, CacheStrategy.LRU, CacheStrategy.LFU, CacheStrategy.TinyLFU}) {
+            KVCache cache = KVCache.create(strategy, CACHE_SIZE);
+            long start = System.nanoTime();
+            double pointHitRate = replay(cache, trace);
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("%-8s point read hit rate %.3f, overall %.3f, %d ns/access",
+                    strategy, pointHitRate, cache.getHitRate(), elapsed / trace.size()));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package testing;
+
+import app_kvServer.IKVServer;
+import app_kvServer.KVServer;
+import cache.FIFOCache;
+import cache.KVCache;
+import cache.LFUCache;
+import cache.LRUCache;
+import cache.TinyLFUCache;
+import database.FsyncPolicy;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.List;
+
+public class CacheTest extends TestCase {
+
+    @Test
+    // Test 1: FIFO evicts the oldest insert even if it was read recently
+    public void testFIFOEviction() {
+        KVCache cache = new FIFOCache(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertTrue(!cache.contains("a") && cache.contains("b") && cache.contains("c")
+                && cache.getEvictions() == 1);
+    }
+
+    @Test
+    // Test 2: LRU evicts the entry that was not used for the longest time
+    public void testLRUEviction() {
+        KVCache cache = new LRUCache(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertTrue(cache.contains("a") && !cache.contains("b") && cache.contains("c"));
+    }
+
+    @Test
+    // Test 3: LFU evicts the least used entry, the oldest one on a tie
+    public void testLFUEviction() {
+        KVCache cache = new LFUCache(3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.get("a");
+        cache.get("c");
+        cache.put("d", "4");
+        cache.remove("c");
+        cache.put("e", "5");
+        cache.put("f", "6");
+
+        assertTrue(cache.contains("a") && !cache.contains("b") && !cache.contains("d")
+                && cache.contains("e") && cache.contains("f") && cache.size() == 3);
+        assertEquals(3, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    // Test 4: the server cache follows puts and deletes and counts hits and misses
+    public void testServerCacheCoherence() {
+        Exception ex = null;
+        String value1 = null;
+        String value2 = null;
+        String value3 = null;
+        KVServer server = null;
+
+        try {
+            LogDatabase db = new LogDatabase("disk/storage_test", "cache", FsyncPolicy.OS, 0);
+            db.eraseDisk();
+            db.put("cold", "disk");
+            server = new KVServer(50011, 2, "lru", db, "localhost", null);
+
+            value1 = server.getKV("cold");
+            server.putKV("cold", "updated");
+            value2 = server.getKV("cold");
+            server.putKV("cold", null);
+            value3 = server.getKV("cold");
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && "disk".equals(value1) && "updated".equals(value2) && value3 == null
+                && server.getCacheStrategy() == IKVServer.CacheStrategy.LRU && !server.inCache("cold"));
+        assertEquals(1, server.getCache().getHits());
+        assertEquals(2, server.getCache().getMisses());
+    }
+
+    @Test
+    // Test 5: table scans do not flush the hot keys out of a TinyLFU cache
+    public void testTinyLFUScanResistance() {
+        List<String> trace = CachePerformanceTest.scanTrace(100, 1000, 20000, 500, 7);
+        double lruHitRate = CachePerformanceTest.replay(new LRUCache(200), trace);
+        KVCache tinyLFU = new TinyLFUCache(200);
+        double tinyLFUHitRate = CachePerformanceTest.replay(tinyLFU, trace);
+
+        assertTrue(tinyLFUHitRate > lruHitRate + 0.1);
+        assertTrue(tinyLFU.size() <= 200 && tinyLFU.contains("hot0"));
+    }
+}
@@ -0,0 +1,131 @@
+package testing;
+
+import app_kvServer.FrontEndMode;
+import app_kvServer.KVServer;
+import database.FsyncPolicy;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cost of holding many open client connections with each front end: live
+ * threads, resident memory per connection and GET latency while all of them
+ * are connected. Set -Dconnections=50000 (and raise ulimit -n) for the full
+ * size run.
+ */
+public class ConnectionPerformanceTest extends TestCase {
+    static final String DIR = "disk/connection_test";
+    static final int CONNECTIONS = Integer.getInteger("connections", 2000);
+    static final int GETS = 5000;
+
+    private static class Client {
+        final Socket socket;
+        final OutputStream output;
+        final BufferedReader reader;
+
+        Client(int port) throws Exception {
+            socket = new Socket("localhost", port);
+            output = socket.getOutputStream();
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            reader.readLine(); // CONNECTED greeting
+        }
+
+        String request(String line) throws Exception {
+            output.write(line.getBytes());
+            output.flush();
+            return reader.readLine();
+        }
+    }
+
+    /**
+     * @return resident set size of this process in kB, or used heap where /proc is missing
+     */
+    private static long residentKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (Exception e) {
+            // not on Linux
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024;
+    }
+
+    private void measure(FrontEndMode mode, int port, int connections, boolean print) throws Exception {
+        LogDatabase db = new LogDatabase(DIR, "connections_" + mode, FsyncPolicy.OS, 0);
+        db.eraseDisk();
+        KVServer server = new KVServer(port, 0, "None", db, "localhost", null);
+        server.setFrontEnd(mode, 2, Runtime.getRuntime().availableProcessors() * 4);
+        server.start();
+        Thread.sleep(200);
+
+        System.gc();
+        int threadsBefore = Thread.activeCount();
+        long rssBefore = residentKb();
+        List<Client> clients = new ArrayList<>();
+        int opened = 0;
+        try {
+            for (; opened < connections; opened++) {
+                clients.add(new Client(port));
+            }
+        } catch (Exception e) {
+            System.out.println(mode + ": stopped opening connections at " + opened + ": " + e.getMessage());
+        }
+        System.gc();
+        int threads = Thread.activeCount() - threadsBefore;
+        long rssPerConnection = opened == 0 ? 0 : (residentKb() - rssBefore) * 1024 / opened;
+
+        clients.get(0).request("PUT bench value\r\n");
+        Random random = new Random(1);
+        long[] latency = new long[GETS];
+        for (int i = 0; i < GETS; i++) {
+            Client client = clients.get(random.nextInt(clients.size()));
+            long start = System.nanoTime();
+            client.request("GET bench\r\n");
+            latency[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latency);
+
+        if (print) {
+            System.out.println(String.format("%-8s connections=%d threads=+%d rss=%d bytes/conn GET p50=%d us p99=%d us",
+                    mode, opened, threads, rssPerConnection, latency[GETS / 2] / 1000, latency[GETS * 99 / 100] / 1000));
+        }
+
+        for (Client client : clients) {
+            client.socket.close();
+        }
+        server.kill();
+        Thread.sleep(500);
+    }
+
+    @Test
+    public void testConnectionCost() throws Exception {
+        Logger.getRootLogger().setLevel(Level.OFF);
+        new File(DIR).mkdirs();
+        if (!KVServer.isVirtualThreadSupported()) {
+            System.out.println("No virtual threads on this JDK, VIRTUAL runs on platform threads");
+        }
+        // warm up the JIT and heap so the first mode is not charged for it
+        measure(FrontEndMode.THREAD, 30199, CONNECTIONS / 4, false);
+        measure(FrontEndMode.THREAD, 30200, CONNECTIONS, true);
+        measure(FrontEndMode.VIRTUAL, 30201, CONNECTIONS, true);
+        measure(FrontEndMode.NIO, 30202, CONNECTIONS, true);
+    }
+}
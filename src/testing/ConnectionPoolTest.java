@@ -0,0 +1,93 @@
+package testing;
+
+import app_kvServer.KVServer;
+import client.ConnectionPool;
+import client.KVStore;
+import database.FsyncPolicy;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.Metadata;
+import shared.messages.KVMessage;
+
+public class ConnectionPoolTest extends TestCase {
+    private static final int PORT1 = 30019;
+    private static final int PORT2 = 30020;
+    private static KVServer server1;
+    private static KVServer server2;
+
+    private static KVServer startServer(int port) throws Exception {
+        LogDatabase db = new LogDatabase("disk/storage_test", "pool_" + port, FsyncPolicy.OS, 0);
+        db.eraseDisk();
+        KVServer server = new KVServer(port, 10, "LRU", db, "localhost", null);
+        server.start();
+        return server;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        if (server1 == null) {
+            server1 = startServer(PORT1);
+            server2 = startServer(PORT2);
+            Thread.sleep(100);
+            Metadata metadata = new Metadata();
+            metadata.addServer("localhost", PORT1);
+            metadata.addServer("localhost", PORT2);
+            server1.updateMetadata(metadata.toString());
+            server2.updateMetadata(metadata.toString());
+        }
+    }
+
+    @Test
+    // Test 1: keys of both servers in random order reuse one connection per server
+    public void testConnectionsAreReused() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORT1);
+        kvClient.connect();
+        boolean ok = true;
+        for (int i = 0; i < 200; i++) {
+            ok &= kvClient.put("pool" + i, "value " + i).getStatus() != KVMessage.StatusType.PUT_ERROR;
+        }
+        for (int i = 0; i < 200; i++) {
+            ok &= ("value " + i).equals(kvClient.get("pool" + i).getValue());
+        }
+        int opened = kvClient.getConnectionPool().getOpenedCount();
+        kvClient.disconnect();
+
+        assertTrue(ok && kvClient.getMetadata().getSize() == 2 && opened == 2);
+    }
+
+    @Test
+    // Test 2: connections idle for longer than the idle timeout are closed
+    public void testIdleEviction() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORT1);
+        kvClient.getConnectionPool().setIdleTimeout(200);
+        kvClient.connect();
+        int before = kvClient.getConnectionPool().getIdleCount("localhost:" + PORT1);
+
+        Thread.sleep(1000);
+        int after = kvClient.getConnectionPool().getIdleCount("localhost:" + PORT1);
+        KVMessage reply = kvClient.put("evicted", "value");
+        kvClient.disconnect();
+
+        assertTrue(before == 1 && after == 0 && reply.getStatus() != KVMessage.StatusType.PUT_ERROR);
+    }
+
+    @Test
+    // Test 3: a broken idle connection fails the health check and is replaced
+    public void testHealthCheck() throws Exception {
+        ConnectionPool pool = new ConnectionPool();
+        pool.setHealthCheckInterval(0);
+        String server = "localhost:" + PORT1;
+        ConnectionPool.Connection broken = pool.borrow(server);
+        broken.close();
+        pool.release(broken);
+
+        ConnectionPool.Connection connection = pool.borrow(server);
+        KVMessage reply = connection.request(KVMessage.StatusType.IS_ALIVE, null, null);
+        pool.release(connection);
+        pool.close();
+
+        assertTrue(connection != broken && reply.getStatus() == KVMessage.StatusType.ALIVE
+                && pool.getOpenedCount() == 2);
+    }
+}
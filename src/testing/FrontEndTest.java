@@ -0,0 +1,97 @@
+package testing;
+
+import app_kvServer.FrontEndMode;
+import app_kvServer.KVServer;
+import client.KVStore;
+import database.FsyncPolicy;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.messages.KVMessage;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FrontEndTest extends TestCase {
+    private static final int PORT = 50014;
+    private static KVServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        if (server == null) {
+            LogDatabase db = new LogDatabase("disk/storage_test", "frontend", FsyncPolicy.OS, 0);
+            db.eraseDisk();
+            server = new KVServer(PORT, 10, "LRU", db, "localhost", null);
+            server.setFrontEnd(FrontEndMode.NIO, 2, 4);
+            server.start();
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    // Test 1: many text and binary clients at once are served by a handful of threads
+    public void testManyClients() throws Exception {
+        int clients = 64;
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            final int id = c;
+            Thread thread = new Thread(() -> {
+                KVStore kvClient = new KVStore("localhost", PORT);
+                kvClient.setBinaryProtocol(id % 2 == 0);
+                try {
+                    kvClient.connect();
+                    for (int i = 0; i < 20; i++) {
+                        String key = "c" + id + "_" + i;
+                        kvClient.put(key, "value " + i);
+                        KVMessage get = kvClient.get(key);
+                        if (get.getStatus() != KVMessage.StatusType.GET_SUCCESS
+                                || !("value " + i).equals(get.getValue())) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    kvClient.disconnect();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+    }
+
+    @Test
+    // Test 2: requests pipelined on one connection are answered in order
+    public void testPipelinedRequests() throws Exception {
+        int requests = 50;
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < requests; i++) {
+            batch.append("PUT pipe ").append(i).append("\r\n");
+            batch.append("GET pipe\r\n");
+        }
+
+        try (Socket socket = new Socket("localhost", PORT)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream output = socket.getOutputStream();
+            String greeting = reader.readLine();
+            output.write(batch.toString().getBytes());
+            output.flush();
+
+            assertTrue(greeting.startsWith("CONNECTED"));
+            for (int i = 0; i < requests; i++) {
+                assertTrue(reader.readLine().startsWith("PUT_"));
+                assertEquals("GET_SUCCESS pipe " + i, reader.readLine().trim());
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package testing;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import database.FsyncPolicy;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.Metadata;
+import shared.messages.KVMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class HedgedReadTest extends TestCase {
+    private static final int[] PORTS = {30026, 30027, 30028};
+    private static final long PAUSE_MS = 500;
+    private static KVServer[] servers;
+    private static PausingDatabase[] databases;
+    private static Metadata metadata;
+
+    /**
+     * Reads stall while paused, like a server in a long garbage collection
+     */
+    private static class PausingDatabase extends LogDatabase {
+        volatile boolean paused;
+
+        PausingDatabase(String name) {
+            super("disk/storage_test", name, FsyncPolicy.OS, 0);
+        }
+
+        @Override
+        public String get(String key) throws Exception {
+            if (paused) {
+                Thread.sleep(PAUSE_MS);
+            }
+            return super.get(key);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        if (servers == null) {
+            servers = new KVServer[PORTS.length];
+            databases = new PausingDatabase[PORTS.length];
+            metadata = new Metadata();
+            for (int i = 0; i < PORTS.length; i++) {
+                databases[i] = new PausingDatabase("hedged_" + PORTS[i]);
+                databases[i].eraseDisk();
+                // no cache, every read reaches the database
+                servers[i] = new KVServer(PORTS[i], 0, "None", databases[i], "localhost", null);
+                servers[i].start();
+                metadata.addServer("localhost", PORTS[i]);
+            }
+            Thread.sleep(100);
+            for (KVServer server : servers) {
+                server.updateMetadata(metadata.toString());
+            }
+        }
+    }
+
+    private static PausingDatabase coordinatorOf(String key) {
+        String coordinator = metadata.findResponsibleServer(key);
+        for (int i = 0; i < PORTS.length; i++) {
+            if (coordinator.equals("localhost:" + PORTS[i])) {
+                return databases[i];
+            }
+        }
+        return null;
+    }
+
+    private static KVStore hedgingClient() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.setHedgedReads(90);
+        kvClient.connect();
+        for (int i = 0; i < 50; i++) {
+            kvClient.put("hedged" + i, "value " + i);
+        }
+        // enough reads for the hedge delay to follow the measured latencies
+        for (int i = 0; i < 200; i++) {
+            kvClient.get("hedged" + (i % 50));
+        }
+        return kvClient;
+    }
+
+    @Test
+    // Test 1: a read from a paused coordinator is answered by a replica long before the pause ends
+    public void testPausedCoordinator() throws Exception {
+        KVStore kvClient = hedgingClient();
+        PausingDatabase coordinator = coordinatorOf("hedged0");
+        long hedgedBefore = kvClient.getHedgedReads();
+
+        coordinator.paused = true;
+        long start = System.nanoTime();
+        KVMessage reply;
+        try {
+            reply = kvClient.get("hedged0");
+        } finally {
+            coordinator.paused = false;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        kvClient.disconnect();
+
+        assertTrue("value 0".equals(reply.getValue()) && millis < PAUSE_MS / 2
+                && kvClient.getHedgedReads() > hedgedBefore);
+    }
+
+    @Test
+    // Test 2: async hedged reads all get their own value while one server is paused
+    public void testAsyncWithPausedServer() throws Exception {
+        KVStore kvClient = hedgingClient();
+        databases[1].paused = true;
+        boolean ok = true;
+        try {
+            List<CompletableFuture<KVMessage>> gets = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                gets.add(kvClient.getAsync("hedged" + i));
+            }
+            for (int i = 0; i < gets.size(); i++) {
+                ok &= ("value " + i).equals(gets.get(i).get(10, TimeUnit.SECONDS).getValue());
+            }
+        } finally {
+            databases[1].paused = false;
+        }
+        kvClient.disconnect();
+
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 3: once a read was hedged away from a paused server, later reads of its keys go elsewhere at once
+    // instead of queueing behind that read and waiting for the hedge delay again
+    public void testReadsAvoidSlowServer() throws Exception {
+        KVStore kvClient = hedgingClient();
+        PausingDatabase coordinator = coordinatorOf("hedged0");
+        List<Integer> sameServer = new ArrayList<>();
+        for (int i = 1; i < 50; i++) {
+            if (coordinatorOf("hedged" + i) == coordinator) {
+                sameServer.add(i);
+            }
+        }
+        long hedgedBefore = kvClient.getHedgedReads();
+
+        coordinator.paused = true;
+        boolean ok;
+        long start = System.nanoTime();
+        try {
+            ok = "value 0".equals(kvClient.get("hedged0").getValue());
+            for (int i : sameServer) {
+                ok &= ("value " + i).equals(kvClient.get("hedged" + i).getValue());
+            }
+        } finally {
+            coordinator.paused = false;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long hedged = kvClient.getHedgedReads() - hedgedBefore;
+        kvClient.disconnect();
+
+        // queueing behind the paused read would hedge every one of them; a stray hedge from jitter is fine
+        assertTrue(ok && sameServer.size() > 4 && millis < PAUSE_MS / 2 && hedged <= 1 + sameServer.size() / 2);
+    }
+}
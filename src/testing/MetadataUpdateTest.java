@@ -0,0 +1,101 @@
+package testing;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import database.FsyncPolicy;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.Metadata;
+import shared.messages.KVMessage;
+
+public class MetadataUpdateTest extends TestCase {
+    private static final int PORT1 = 30021;
+    private static final int PORT2 = 30022;
+    private static KVServer server1;
+    private static KVServer server2;
+
+    private static KVServer startServer(int port) throws Exception {
+        LogDatabase db = new LogDatabase("disk/storage_test", "metadata_" + port, FsyncPolicy.OS, 0);
+        db.eraseDisk();
+        KVServer server = new KVServer(port, 10, "LRU", db, "localhost", null);
+        server.start();
+        return server;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        if (server1 == null) {
+            server1 = startServer(PORT1);
+            server2 = startServer(PORT2);
+            Thread.sleep(100);
+        }
+        // every test starts with server1 alone in the ring
+        setRing(PORT1);
+    }
+
+    private static void setRing(int... ports) {
+        Metadata metadata = new Metadata();
+        for (int port : ports) {
+            metadata.addServer("localhost", port);
+        }
+        server1.updateMetadata(metadata.toString());
+        server2.updateMetadata(metadata.toString());
+    }
+
+    private static boolean waitForRingSize(KVStore kvClient, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && kvClient.getMetadata().getSize() != size; i++) {
+            Thread.sleep(20);
+        }
+        return kvClient.getMetadata().getSize() == size;
+    }
+
+    @Test
+    // Test 1: the version sent with any reply makes the client fetch the new ring before a key is turned down
+    public void testVersionInReply() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORT1);
+        kvClient.connect();
+        kvClient.put("version", "1");
+        int before = kvClient.getMetadata().getVersion();
+
+        setRing(PORT1, PORT2);
+        KVMessage reply = kvClient.keyrangeRead();
+        Metadata after = kvClient.getMetadata();
+        kvClient.disconnect();
+
+        assertTrue(reply.getStatus() == KVMessage.StatusType.KEYRANGE_READ_SUCCESS && after.getSize() == 2
+                && after.getVersion() == server1.getMetadataVersion() && after.getVersion() > before);
+    }
+
+    @Test
+    // Test 2: a subscribed client gets the new ring without sending a request
+    public void testSubscription() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORT1);
+        kvClient.connect();
+        kvClient.subscribeMetadata();
+        boolean single = kvClient.getMetadata().getSize() == 1;
+
+        setRing(PORT1, PORT2);
+        boolean pushed = waitForRingSize(kvClient, 2);
+        setRing(PORT1);
+        boolean pushedAgain = waitForRingSize(kvClient, 1);
+        kvClient.disconnect();
+
+        assertTrue(single && pushed && pushedAgain);
+    }
+
+    @Test
+    // Test 3: pushes also reach clients on the text protocol
+    public void testSubscriptionOverText() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORT1);
+        kvClient.setBinaryProtocol(false);
+        kvClient.connect();
+        kvClient.subscribeMetadata();
+
+        setRing(PORT1, PORT2);
+        boolean pushed = waitForRingSize(kvClient, 2);
+        kvClient.disconnect();
+
+        assertTrue(pushed);
+    }
+}
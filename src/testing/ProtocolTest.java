@@ -0,0 +1,170 @@
+package testing;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import database.FsyncPolicy;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.messages.KVMessage;
+import shared.messages.KVMessageEntity;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProtocolTest extends TestCase {
+    private static final int PORT = 50012;
+    private static KVServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        if (server == null) {
+            LogDatabase db = new LogDatabase("disk/storage_test", "protocol", FsyncPolicy.OS, 0);
+            db.eraseDisk();
+            server = new KVServer(PORT, 10, "LRU", db, "localhost", null);
+            server.start();
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    // Test 1: a client that upgraded to binary frames can send values with spaces and line breaks
+    public void testBinaryRoundTrip() {
+        Exception ex = null;
+        String value = "line one\r\nline two with spaces";
+        KVStore kvClient = new KVStore("localhost", PORT);
+        KVMessage put = null;
+        KVMessage get = null;
+        KVMessage delete = null;
+        KVMessage missing = null;
+        boolean binary = false;
+
+        try {
+            kvClient.connect();
+            binary = kvClient.isBinaryProtocol();
+            put = kvClient.put("binary", value);
+            get = kvClient.get("binary");
+            delete = kvClient.put("binary", "null");
+            missing = kvClient.get("binary");
+            kvClient.disconnect();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && binary && put.getStatus() == KVMessage.StatusType.PUT_SUCCESS
+                && value.equals(get.getValue()) && delete.getStatus() == KVMessage.StatusType.DELETE_SUCCESS
+                && missing.getStatus() == KVMessage.StatusType.GET_ERROR);
+    }
+
+    @Test
+    // Test 2: text and binary clients share the same server and see each other's writes
+    public void testTextClient() {
+        Exception ex = null;
+        KVStore textClient = new KVStore("localhost", PORT);
+        textClient.setBinaryProtocol(false);
+        KVStore binaryClient = new KVStore("localhost", PORT);
+        KVMessage get1 = null;
+        KVMessage get2 = null;
+
+        try {
+            textClient.connect();
+            binaryClient.connect();
+            textClient.put("shared", "from text");
+            get1 = binaryClient.get("shared");
+            binaryClient.put("shared", "from binary");
+            get2 = textClient.get("shared");
+            textClient.disconnect();
+            binaryClient.disconnect();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && !textClient.isBinaryProtocol() && "from text".equals(get1.getValue())
+                && "from binary".equals(get2.getValue()));
+    }
+
+    @Test
+    // Test 3: a server that only speaks text refuses the upgrade and the client falls back to text
+    public void testFallbackToText() {
+        Exception ex = null;
+        KVMessage get = null;
+        KVStore kvClient = new KVStore("localhost", PORT + 1);
+
+        try (ServerSocket oldServer = new ServerSocket(PORT + 1)) {
+            Thread thread = new Thread(() -> {
+                try (Socket socket = oldServer.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    OutputStream out = socket.getOutputStream();
+                    out.write("CONNECTED status successful\r\n".getBytes());
+                    in.readLine();
+                    out.write("FAILED message format unknown\r\n".getBytes());
+                    String request = in.readLine();
+                    out.write(("GET_SUCCESS " + request.split(" ")[1] + " old value\r\n").getBytes());
+                    out.flush();
+                    in.readLine();
+                } catch (Exception e) {
+                    // client went away
+                }
+            });
+            thread.start();
+
+            kvClient.connect();
+            get = kvClient.get("key");
+            kvClient.disconnect();
+            thread.join(1000);
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && !kvClient.isBinaryProtocol() && "old value".equals(get.getValue()));
+    }
+
+    private List<KVMessage> pipelineRoundTrip(boolean binary, String prefix, int count) throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORT);
+        kvClient.setBinaryProtocol(binary);
+        kvClient.connect();
+        List<KVMessage> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new KVMessageEntity(KVMessage.StatusType.PUT, prefix + i, "value " + i));
+        }
+        for (int i = 0; i < count; i++) {
+            requests.add(new KVMessageEntity(KVMessage.StatusType.GET, prefix + i, null));
+        }
+        List<KVMessage> replies = kvClient.pipeline(requests);
+        kvClient.disconnect();
+        return replies;
+    }
+
+    private boolean repliesMatch(List<KVMessage> replies, String prefix, int count) {
+        for (int i = 0; i < count; i++) {
+            KVMessage put = replies.get(i);
+            KVMessage get = replies.get(count + i);
+            if (put.getStatus() != KVMessage.StatusType.PUT_SUCCESS || !(prefix + i).equals(get.getKey())
+                    || !("value " + i).equals(get.getValue())) {
+                return false;
+            }
+        }
+        return replies.size() == 2 * count;
+    }
+
+    @Test
+    // Test 4: many requests in flight on one binary connection get their own replies
+    public void testPipelinedBinary() throws Exception {
+        List<KVMessage> replies = pipelineRoundTrip(true, "pb", 500);
+
+        assertTrue(repliesMatch(replies, "pb", 500));
+    }
+
+    @Test
+    // Test 5: on the text protocol replies are matched by their order
+    public void testPipelinedText() throws Exception {
+        List<KVMessage> replies = pipelineRoundTrip(false, "pt", 500);
+
+        assertTrue(repliesMatch(replies, "pt", 500));
+    }
+}
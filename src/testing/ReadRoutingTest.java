@@ -0,0 +1,170 @@
+package testing;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import client.ReadPolicy;
+import database.FsyncPolicy;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.Metadata;
+import shared.messages.KVMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ReadRoutingTest extends TestCase {
+    private static final int[] PORTS = {30023, 30024, 30025};
+    private static KVServer[] servers;
+    private static Metadata metadata;
+
+    private static KVServer startServer(int port) throws Exception {
+        LogDatabase db = new LogDatabase("disk/storage_test", "read_" + port, FsyncPolicy.OS, 0);
+        db.eraseDisk();
+        KVServer server = new KVServer(port, 10, "LRU", db, "localhost", null);
+        server.start();
+        return server;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        if (servers == null) {
+            servers = new KVServer[PORTS.length];
+            metadata = new Metadata();
+            for (int i = 0; i < PORTS.length; i++) {
+                servers[i] = startServer(PORTS[i]);
+                metadata.addServer("localhost", PORTS[i]);
+            }
+            Thread.sleep(100);
+            for (KVServer server : servers) {
+                server.updateMetadata(metadata.toString());
+            }
+        }
+    }
+
+    private static long[] getsServed() {
+        long[] gets = new long[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            gets[i] = servers[i].getRequestStats().getReplies(KVMessage.StatusType.GET_SUCCESS);
+        }
+        return gets;
+    }
+
+    /**
+     * Servers count a reply after sending it, so wait until all of them are counted
+     */
+    private static long[] since(long[] before, int expected) throws InterruptedException {
+        long[] now = getsServed();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            long total = 0;
+            for (int i = 0; i < now.length; i++) {
+                total += now[i] - before[i];
+            }
+            if (total >= expected) {
+                break;
+            }
+            Thread.sleep(10);
+            now = getsServed();
+        }
+        for (int i = 0; i < now.length; i++) {
+            now[i] -= before[i];
+        }
+        return now;
+    }
+
+    private static boolean readAll(KVStore kvClient, String key, String value, int count) throws Exception {
+        boolean ok = true;
+        for (int i = 0; i < count; i++) {
+            ok &= value.equals(kvClient.get(key).getValue());
+        }
+        return ok;
+    }
+
+    @Test
+    // Test 1: by default every read goes to the coordinator
+    public void testCoordinatorOnly() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.connect();
+        kvClient.put("coordinated", "value");
+        long[] before = getsServed();
+
+        boolean ok = readAll(kvClient, "coordinated", "value", 90);
+        long[] served = since(before, 90);
+        kvClient.disconnect();
+
+        String coordinator = metadata.findResponsibleServer("coordinated");
+        for (int i = 0; i < PORTS.length; i++) {
+            ok &= served[i] == (coordinator.equals("localhost:" + PORTS[i]) ? 90 : 0);
+        }
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 2: round robin spreads the reads of one key evenly over coordinator and replicas
+    public void testRoundRobin() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.setReadPolicy(ReadPolicy.ROUND_ROBIN);
+        kvClient.connect();
+        kvClient.put("spread", "value");
+        long[] before = getsServed();
+
+        boolean ok = readAll(kvClient, "spread", "value", 300);
+        long[] served = since(before, 300);
+        kvClient.disconnect();
+
+        for (long gets : served) {
+            ok &= gets == 100;
+        }
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 3: async reads by fewest outstanding requests reach every server and get the right values
+    public void testLeastOutstandingAsync() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.setReadPolicy(ReadPolicy.LEAST_OUTSTANDING);
+        kvClient.connect();
+        for (int i = 0; i < 20; i++) {
+            kvClient.put("least" + i, "value " + i);
+        }
+        long[] before = getsServed();
+
+        List<CompletableFuture<KVMessage>> gets = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            gets.add(kvClient.getAsync("least" + (i % 20)));
+        }
+        boolean ok = true;
+        for (int i = 0; i < gets.size(); i++) {
+            ok &= ("value " + (i % 20)).equals(gets.get(i).get(30, TimeUnit.SECONDS).getValue());
+        }
+        long[] served = since(before, 600);
+        kvClient.disconnect();
+
+        for (long count : served) {
+            ok &= count > 0;
+        }
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 4: latency weighted reads use more than one server and get the right value
+    public void testLatencyWeighted() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.setReadPolicy(ReadPolicy.LATENCY_WEIGHTED);
+        kvClient.connect();
+        kvClient.put("weighted", "value");
+        long[] before = getsServed();
+
+        boolean ok = readAll(kvClient, "weighted", "value", 300);
+        long[] served = since(before, 300);
+        kvClient.disconnect();
+
+        int used = 0;
+        for (long count : served) {
+            used += count > 0 ? 1 : 0;
+        }
+        assertTrue(ok && used > 1);
+    }
+}
@@ -0,0 +1,253 @@
+package testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.ReplicationAck;
+import app_kvServer.ReplicationLog;
+import client.KVStore;
+import database.FsyncPolicy;
+import database.KVPair;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.Metadata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ReplicationTest extends TestCase {
+    private static final int[] PORTS = {30029, 30030, 30031};
+    private static KVServer[] servers;
+    private static Metadata metadata;
+    private static FailingDatabase failing;
+
+    /**
+     * Storage whose writes fail while broken, like a replica having a hiccup
+     */
+    private static class FailingDatabase extends LogDatabase {
+        volatile boolean broken;
+
+        FailingDatabase(String name) {
+            super("disk/storage_test", name, FsyncPolicy.OS, 0);
+        }
+
+        @Override
+        public boolean[] writeBatch(List<KVPair> pairs) throws IOException {
+            if (broken) {
+                throw new IOException("disk unavailable");
+            }
+            return super.writeBatch(pairs);
+        }
+    }
+
+    private static KVServer startServer(int port) throws Exception {
+        LogDatabase db = port == PORTS[2] ? (failing = new FailingDatabase("replication_" + port))
+                : new LogDatabase("disk/storage_test", "replication_" + port, FsyncPolicy.OS, 0);
+        db.eraseDisk();
+        KVServer server = new KVServer(port, 10, "LRU", db, "localhost", null);
+        server.start();
+        return server;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        if (servers == null) {
+            servers = new KVServer[PORTS.length];
+            metadata = new Metadata();
+            for (int i = 0; i < PORTS.length; i++) {
+                servers[i] = startServer(PORTS[i]);
+                metadata.addServer("localhost", PORTS[i]);
+            }
+            Thread.sleep(100);
+            for (KVServer server : servers) {
+                server.updateMetadata(metadata.toString());
+            }
+        }
+    }
+
+    private static void setReplicationAck(ReplicationAck ack) {
+        for (KVServer server : servers) {
+            server.setReplicationAck(ack);
+        }
+    }
+
+    /**
+     * With three servers every server holds every key
+     */
+    private static boolean everywhere(String key, String value) throws Exception {
+        for (KVServer server : servers) {
+            String stored = server.getKV(key);
+            if (value == null ? stored != null : !value.equals(stored)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean eventuallyEverywhere(String key, String value) throws Exception {
+        for (int attempt = 0; attempt < 200; attempt++) {
+            if (everywhere(key, value)) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    @Test
+    // Test 1: with ALL both replicas hold a write as soon as the client has its reply
+    public void testAckAll() throws Exception {
+        setReplicationAck(ReplicationAck.ALL);
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.connect();
+        boolean ok = true;
+        for (int i = 0; i < 20; i++) {
+            kvClient.put("all" + i, "value " + i);
+            ok &= everywhere("all" + i, "value " + i);
+        }
+        kvClient.put("all0", "null");
+        ok &= everywhere("all0", null);
+        kvClient.disconnect();
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 2: with NONE the replicas apply overwrites of a key in the coordinator's order
+    public void testAckNoneKeepsOrder() throws Exception {
+        setReplicationAck(ReplicationAck.NONE);
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.connect();
+        for (int i = 0; i < 200; i++) {
+            kvClient.put("ordered", "value " + i);
+        }
+        kvClient.disconnect();
+        setReplicationAck(ReplicationAck.ALL);
+        assertTrue(eventuallyEverywhere("ordered", "value 199"));
+    }
+
+    @Test
+    // Test 3: with ONE a batch reaches both replicas
+    public void testAckOneBatch() throws Exception {
+        setReplicationAck(ReplicationAck.ONE);
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.connect();
+        Map<String, String> pairs = new HashMap<>();
+        for (int i = 0; i < 30; i++) {
+            pairs.put("one" + i, "value " + i);
+        }
+        kvClient.putAll(pairs);
+        kvClient.disconnect();
+        setReplicationAck(ReplicationAck.ALL);
+
+        boolean ok = true;
+        for (int i = 0; i < 30; i++) {
+            ok &= eventuallyEverywhere("one" + i, "value " + i);
+        }
+        assertTrue(ok);
+    }
+
+    /**
+     * Keys the failing server only holds as a replica, so that clients can still write them
+     */
+    private static List<String> replicatedKeys(String prefix, int count) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < count; i++) {
+            if (!metadata.findResponsibleServer(prefix + i).equals("localhost:" + PORTS[2])) {
+                keys.add(prefix + i);
+            }
+        }
+        return keys;
+    }
+
+    private static long catchUps() {
+        long total = 0;
+        for (KVServer server : servers) {
+            total += server.getRequestStats().getReplicaCatchUps();
+        }
+        return total;
+    }
+
+    private static long resyncs() {
+        long total = 0;
+        for (KVServer server : servers) {
+            total += server.getRequestStats().getReplicaResyncs();
+        }
+        return total;
+    }
+
+    @Test
+    // Test 4: a replica that missed writes gets them from the replication log, not a full copy
+    public void testCatchUpFromLog() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.connect();
+        long catchUpsBefore = catchUps();
+        long resyncsBefore = resyncs();
+
+        List<String> keys = replicatedKeys("gap", 20);
+        failing.broken = true;
+        for (String key : keys) {
+            kvClient.put(key, "value of " + key);
+        }
+        failing.broken = false;
+        kvClient.disconnect();
+
+        boolean ok = true;
+        for (String key : keys) {
+            ok &= eventuallyEverywhere(key, "value of " + key);
+        }
+        assertTrue(ok && catchUps() > catchUpsBefore && resyncs() == resyncsBefore);
+    }
+
+    @Test
+    // Test 5: a replica that missed more writes than the log holds gets a full copy, deletes included
+    public void testResyncBeyondLog() throws Exception {
+        KVStore kvClient = new KVStore("localhost", PORTS[0]);
+        kvClient.connect();
+        List<String> keys = replicatedKeys("far", 21);
+        String deleted = keys.remove(20);
+        kvClient.put(deleted, "deleted later");
+        boolean ok = eventuallyEverywhere(deleted, "deleted later");
+        long resyncsBefore = resyncs();
+
+        for (KVServer server : servers) {
+            server.getReplicationLog().setLimits(5, ReplicationLog.DEFAULT_MAX_BYTES);
+        }
+        failing.broken = true;
+        kvClient.put(deleted, "null");
+        for (String key : keys) {
+            kvClient.put(key, "value of " + key);
+        }
+        failing.broken = false;
+        kvClient.disconnect();
+
+        for (String key : keys) {
+            ok &= eventuallyEverywhere(key, "value of " + key);
+        }
+        ok &= eventuallyEverywhere(deleted, null);
+        for (KVServer server : servers) {
+            server.getReplicationLog().setLimits(ReplicationLog.DEFAULT_MAX_RECORDS, ReplicationLog.DEFAULT_MAX_BYTES);
+        }
+        assertTrue(ok && resyncs() > resyncsBefore);
+    }
+
+    @Test
+    // Test 6: a write the replica could not store is refused and does not count as applied
+    public void testRefuseUnstoredWrite() throws Exception {
+        KVServer replica = servers[2];
+        List<KVPair> pairs = List.of(new KVPair("unstored", "value"));
+        boolean ok = replica.putKVReplicated("refuse-test", 1, pairs);
+
+        failing.broken = true;
+        boolean refused;
+        try {
+            refused = !replica.putKVReplicated("refuse-test", 2, pairs);
+        } finally {
+            failing.broken = false;
+        }
+        ok &= replica.getAppliedSequence("refuse-test") == 1;
+        ok &= replica.putKVReplicated("refuse-test", 2, pairs) && replica.getAppliedSequence("refuse-test") == 2;
+        assertTrue(ok && refused);
+    }
+}
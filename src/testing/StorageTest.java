@@ -0,0 +1,587 @@
+package testing;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import database.BitcaskDatabase;
+import database.FsyncPolicy;
+import database.IDatabase;
+import database.KVPair;
+import database.LogDatabase;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.HashRange;
+import shared.MD5Generator;
+import shared.messages.KVMessage;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+public class StorageTest extends TestCase {
+    private static final String DIR = "disk/storage_test";
+
+    private void removeFiles(String name) {
+        File dir = new File(DIR);
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().startsWith(name)) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    // Test 1: puts and deletes survive a restart through log replay
+    public void testLogReplay() {
+        removeFiles("replay");
+        Exception ex = null;
+        String value1 = null;
+        String value2 = null;
+        String value3 = null;
+
+        try {
+            LogDatabase db = new LogDatabase(DIR, "replay", FsyncPolicy.ALWAYS, 0);
+            db.put("a", "1");
+            db.put("b", "2");
+            db.put("a", "3");
+            db.delete("b");
+            db.put("c", "with spaces and\nnewline");
+            db.close();
+
+            LogDatabase reopened = new LogDatabase(DIR, "replay", FsyncPolicy.ALWAYS, 0);
+            value1 = reopened.get("a");
+            value2 = reopened.get("b");
+            value3 = reopened.get("c");
+            reopened.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && "3".equals(value1) && value2 == null
+                && "with spaces and\nnewline".equals(value3));
+    }
+
+    @Test
+    // Test 2: a torn record at the tail of the log is dropped on replay
+    public void testTornTail() {
+        removeFiles("torn");
+        Exception ex = null;
+        String value1 = null;
+        String value2 = null;
+
+        try {
+            LogDatabase db = new LogDatabase(DIR, "torn", FsyncPolicy.OS, 0);
+            db.put("kept", "value");
+            db.put("lost", "value");
+            db.close();
+
+            File log = new File(DIR, "torn.log");
+            try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+                file.setLength(file.length() - 3);
+            }
+
+            LogDatabase reopened = new LogDatabase(DIR, "torn", FsyncPolicy.OS, 0);
+            value1 = reopened.get("kept");
+            value2 = reopened.get("lost");
+            reopened.put("after", "crash");
+            reopened.close();
+
+            reopened = new LogDatabase(DIR, "torn", FsyncPolicy.OS, 0);
+            assertEquals("crash", reopened.get("after"));
+            reopened.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && "value".equals(value1) && value2 == null);
+    }
+
+    @Test
+    // Test 3: a database file written by DatabaseManager is imported on first start
+    public void testLegacyImport() {
+        removeFiles("legacy");
+        Exception ex = null;
+        String value = null;
+
+        try {
+            new File(DIR).mkdirs();
+            Properties properties = new Properties();
+            properties.setProperty("old", "data");
+            try (FileOutputStream out = new FileOutputStream(new File(DIR, "legacy"))) {
+                properties.store(out, null);
+            }
+
+            LogDatabase db = new LogDatabase(DIR, "legacy", FsyncPolicy.INTERVAL, 10);
+            value = db.get("old");
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && "data".equals(value));
+    }
+
+    @Test
+    // Test 4: compaction folds the log into a snapshot and keeps the data intact
+    public void testCompaction() {
+        removeFiles("compact");
+        Exception ex = null;
+        long reclaimed = 0;
+        long logBytes = -1;
+        String value1 = null;
+        String value2 = null;
+
+        try {
+            LogDatabase db = new LogDatabase(DIR, "compact", FsyncPolicy.OS, 0);
+            for (int i = 0; i < 100; i++) {
+                db.put("key", "value" + i);
+                db.put("gone" + i, "x");
+                db.delete("gone" + i);
+            }
+            db.put("other", "kept");
+            reclaimed = db.compact();
+            logBytes = db.getLogBytes();
+            db.put("after", "compaction");
+            db.close();
+
+            LogDatabase reopened = new LogDatabase(DIR, "compact", FsyncPolicy.OS, 0);
+            value1 = reopened.get("key");
+            value2 = reopened.get("other");
+            assertEquals("compaction", reopened.get("after"));
+            assertEquals(reopened.getDiskBytes(), reopened.getLiveBytes());
+            reopened.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && reclaimed > 0 && logBytes == 0
+                && "value99".equals(value1) && "kept".equals(value2));
+    }
+
+    @Test
+    // Test 5: an interrupted compaction is finished on startup
+    public void testInterruptedCompaction() {
+        removeFiles("interrupted");
+        Exception ex = null;
+        String value1 = null;
+        String value2 = null;
+
+        try {
+            LogDatabase db = new LogDatabase(DIR, "interrupted", FsyncPolicy.OS, 0);
+            db.put("a", "old");
+            db.put("b", "sealed");
+            db.close();
+            // simulate a crash right after the log was sealed
+            new File(DIR, "interrupted.log").renameTo(new File(DIR, "interrupted.log.compacting"));
+            db = new LogDatabase(DIR, "interrupted", FsyncPolicy.OS, 0);
+            db.put("a", "new");
+            db.close();
+
+            LogDatabase reopened = new LogDatabase(DIR, "interrupted", FsyncPolicy.OS, 0);
+            value1 = reopened.get("a");
+            value2 = reopened.get("b");
+            reopened.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && "new".equals(value1) && "sealed".equals(value2)
+                && !new File(DIR, "interrupted.log.compacting").exists());
+    }
+
+    @Test
+    // Test 6: the bitcask store reads values from its data files across segments and restarts
+    public void testBitcaskReadWrite() {
+        removeFiles("bitcask");
+        Exception ex = null;
+        String bigValue = new String(new char[10000]).replace('\0', 'v');
+        String value1 = null;
+        String value2 = null;
+        String value3 = null;
+
+        try {
+            BitcaskDatabase db = new BitcaskDatabase(DIR, "bitcask", FsyncPolicy.OS, 0, 4096);
+            for (int i = 0; i < 20; i++) {
+                db.put("key" + i, bigValue + i);
+            }
+            db.put("key3", "small");
+            db.delete("key4");
+            assertEquals(bigValue + 7, db.get("key7"));
+            db.close();
+
+            BitcaskDatabase reopened = new BitcaskDatabase(DIR, "bitcask", FsyncPolicy.OS, 0, 4096);
+            value1 = reopened.get("key3");
+            value2 = reopened.get("key4");
+            value3 = reopened.get("key19");
+            reopened.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && "small".equals(value1) && value2 == null && (bigValue + 19).equals(value3));
+    }
+
+    @Test
+    // Test 7: merging the bitcask data files drops dead records and keeps the live ones
+    public void testBitcaskMerge() {
+        removeFiles("merge");
+        Exception ex = null;
+        long reclaimed = 0;
+        String value1 = null;
+        String value2 = null;
+
+        try {
+            BitcaskDatabase db = new BitcaskDatabase(DIR, "merge", FsyncPolicy.OS, 0, 1024);
+            for (int i = 0; i < 200; i++) {
+                db.put("hot", "value" + i);
+                db.put("cold" + (i % 10), "value" + i);
+            }
+            db.delete("cold0");
+            reclaimed = db.compact();
+            db.put("hot", "after merge");
+            db.close();
+
+            BitcaskDatabase reopened = new BitcaskDatabase(DIR, "merge", FsyncPolicy.OS, 0, 1024);
+            value1 = reopened.get("hot");
+            value2 = reopened.get("cold9");
+            assertNull(reopened.get("cold0"));
+            assertEquals(10, reopened.getALlKeys().size());
+            reopened.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && reclaimed > 0 && "after merge".equals(value1) && "value199".equals(value2));
+    }
+
+    @Test
+    // Test 8: values served from mapped data files reach the client intact
+    public void testMappedValueOverSocket() {
+        removeFiles("mapped");
+        Exception ex = null;
+        String bigValue = new String(new char[50000]).replace('\0', 'm');
+        KVMessage response1 = null;
+        KVMessage response2 = null;
+
+        try {
+            BitcaskDatabase db = new BitcaskDatabase(DIR, "mapped", FsyncPolicy.OS, 0, 64 * 1024);
+            db.put("sealed", bigValue);
+            db.put("filler", bigValue);
+            db.put("active", "small value");
+
+            KVServer server = new KVServer(50010, 10, "FIFO", db, "localhost", null);
+            server.start();
+            Thread.sleep(100);
+
+            KVStore kvClient = new KVStore("localhost", 50010);
+            kvClient.connect();
+            response1 = kvClient.get("sealed");
+            response2 = kvClient.get("active");
+            kvClient.disconnect();
+            server.kill();
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && response1.getStatus() == KVMessage.StatusType.GET_SUCCESS
+                && bigValue.equals(response1.getValue()) && "small value".equals(response2.getValue()));
+    }
+
+    private boolean[] batchAndReopen(IDatabase db, IDatabase[] reopened, String name) throws Exception {
+        db.put("old", "value");
+        List<KVPair> batch = new ArrayList<>();
+        batch.add(new KVPair("a", "1"));
+        batch.add(new KVPair("old", null));
+        batch.add(new KVPair("a", "2"));
+        batch.add(new KVPair("missing", null));
+        batch.add(new KVPair("b", "with spaces"));
+        boolean[] applied = db.writeBatch(batch);
+        if (db instanceof LogDatabase) {
+            ((LogDatabase) db).close();
+            reopened[0] = new LogDatabase(DIR, name, FsyncPolicy.ALWAYS, 0);
+        } else {
+            ((BitcaskDatabase) db).close();
+            reopened[0] = new BitcaskDatabase(DIR, name, FsyncPolicy.ALWAYS, 0, 64 * 1024);
+        }
+        return applied;
+    }
+
+    @Test
+    // Test 10: a batch is applied in order with one append and survives a restart on both engines
+    public void testWriteBatch() throws Exception {
+        removeFiles("batch");
+        IDatabase[] log = new IDatabase[1];
+        IDatabase[] bitcask = new IDatabase[1];
+
+        boolean[] logApplied = batchAndReopen(new LogDatabase(DIR, "batch_log", FsyncPolicy.ALWAYS, 0), log,
+                "batch_log");
+        boolean[] bitcaskApplied = batchAndReopen(new BitcaskDatabase(DIR, "batch_bitcask", FsyncPolicy.ALWAYS, 0,
+                64 * 1024), bitcask, "batch_bitcask");
+
+        boolean[] expected = {true, true, true, false, true};
+        for (IDatabase db : new IDatabase[]{log[0], bitcask[0]}) {
+            assertTrue("2".equals(db.get("a")) && db.get("old") == null && "with spaces".equals(db.get("b"))
+                    && db.getALlKeys().size() == 2);
+        }
+        assertTrue(Arrays.equals(expected, logApplied) && Arrays.equals(expected, bitcaskApplied));
+        ((LogDatabase) log[0]).close();
+        ((BitcaskDatabase) bitcask[0]).close();
+    }
+
+    private void writeConcurrently(IDatabase db, int threads, int keysPerThread) throws Exception {
+        List<Thread> writers = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            writers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        db.put("own" + id + "_" + i, "value" + i);
+                        db.put("shared" + (i % 10), "writer" + id);
+                        db.get("shared" + (i % 10));
+                        if (i % 3 == 0) {
+                            db.delete("own" + id + "_" + i);
+                        }
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+
+    @Test
+    // Test 9: concurrent writers of the same and of different keys leave a log that replays to the same state
+    public void testConcurrentWriters() {
+        removeFiles("concurrent");
+        Exception ex = null;
+        int threads = 8;
+        int keysPerThread = 300;
+        boolean logConsistent = true;
+        boolean bitcaskConsistent = true;
+
+        try {
+            LogDatabase log = new LogDatabase(DIR, "concurrent_log", FsyncPolicy.OS, 0);
+            writeConcurrently(log, threads, keysPerThread);
+            String[] shared = new String[10];
+            for (int i = 0; i < 10; i++) {
+                shared[i] = log.get("shared" + i);
+            }
+            int size = log.getALlKeys().size();
+            log.close();
+            LogDatabase reopenedLog = new LogDatabase(DIR, "concurrent_log", FsyncPolicy.OS, 0);
+            for (int i = 0; i < 10; i++) {
+                logConsistent &= shared[i].equals(reopenedLog.get("shared" + i));
+            }
+            logConsistent &= size == reopenedLog.getALlKeys().size() && size == 10 + threads * 200;
+            reopenedLog.close();
+
+            BitcaskDatabase bitcask = new BitcaskDatabase(DIR, "concurrent_bitcask", FsyncPolicy.OS, 0, 8192);
+            writeConcurrently(bitcask, threads, keysPerThread);
+            for (int i = 0; i < 10; i++) {
+                shared[i] = bitcask.get("shared" + i);
+            }
+            bitcask.close();
+            BitcaskDatabase reopenedBitcask = new BitcaskDatabase(DIR, "concurrent_bitcask", FsyncPolicy.OS, 0, 8192);
+            for (int i = 0; i < 10; i++) {
+                bitcaskConsistent &= shared[i].equals(reopenedBitcask.get("shared" + i));
+            }
+            bitcaskConsistent &= "value299".equals(reopenedBitcask.get("own7_299"))
+                    && reopenedBitcask.getALlKeys().size() == 10 + threads * 200;
+            reopenedBitcask.close();
+        } catch (Exception e) {
+            ex = e;
+        }
+
+        assertTrue(ex == null && logConsistent && bitcaskConsistent);
+    }
+
+    private void close(IDatabase db) {
+        if (db instanceof LogDatabase) {
+            ((LogDatabase) db).close();
+        } else {
+            ((BitcaskDatabase) db).close();
+        }
+    }
+
+    @Test
+    // Test 11: a snapshot of some keys is installed on both engines over their own keys and survives a restart
+    public void testSnapshotInstall() throws Exception {
+        removeFiles("snapshot");
+        BitcaskDatabase source = new BitcaskDatabase(DIR, "snapshot_source", FsyncPolicy.OS, 0, 4096);
+        for (int i = 0; i < 500; i++) {
+            source.put("key" + i, "value " + i);
+        }
+        source.delete("key2");
+        HashRange range = new HashRange("c0000000000000000000000000000000,3fffffffffffffffffffffffffffffff");
+        List<String> inRange = source.keysInRange(range);
+        File file = new File(DIR, "snapshot_file");
+        int exported = source.exportSnapshot(range, file);
+        source.close();
+
+        IDatabase[] targets = {new LogDatabase(DIR, "snapshot_log", FsyncPolicy.OS, 0),
+                new BitcaskDatabase(DIR, "snapshot_bitcask", FsyncPolicy.OS, 0, 4096)};
+        String[] names = {"snapshot_log", "snapshot_bitcask"};
+        String first = inRange.get(0);
+        String second = inRange.get(1);
+        String last = inRange.get(inRange.size() - 1);
+        boolean ok = exported == inRange.size() && exported > 200 && exported < 300;
+        for (int t = 0; t < targets.length; t++) {
+            File copy = new File(DIR, names[t] + "_incoming");
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            targets[t].put(first, "old value");
+            targets[t].put("own", "kept");
+            ok &= targets[t].installSnapshot(copy) == exported;
+            targets[t].put(second, "newer value");
+
+            close(targets[t]);
+            IDatabase reopened = t == 0 ? new LogDatabase(DIR, names[t], FsyncPolicy.OS, 0)
+                    : new BitcaskDatabase(DIR, names[t], FsyncPolicy.OS, 0, 4096);
+            ok &= ("value " + first.substring(3)).equals(reopened.get(first))
+                    && "newer value".equals(reopened.get(second))
+                    && ("value " + last.substring(3)).equals(reopened.get(last)) && reopened.get("key2") == null
+                    && "kept".equals(reopened.get("own")) && reopened.getALlKeys().size() == exported + 1;
+            close(reopened);
+        }
+        file.delete();
+        assertTrue(ok);
+    }
+
+    private static boolean sameKeys(List<String> indexed, IDatabase db, HashRange range) {
+        List<String> scanned = new ArrayList<>();
+        for (String key : db.getALlKeys()) {
+            if (range.isInRange(MD5Generator.generateHash(key))) {
+                scanned.add(key);
+            }
+        }
+        return indexed.size() == scanned.size() && new HashSet<>(indexed).equals(new HashSet<>(scanned));
+    }
+
+    @Test
+    // Test 12: the hash ordered key index finds the same keys as hashing every key, after deletes and a restart
+    public void testKeysInRange() throws Exception {
+        removeFiles("index");
+        IDatabase[] engines = {new LogDatabase(DIR, "index_log", FsyncPolicy.OS, 0),
+                new BitcaskDatabase(DIR, "index_bitcask", FsyncPolicy.OS, 0, 4096)};
+        HashRange[] ranges = {
+                new HashRange("40000000000000000000000000000000,bfffffffffffffffffffffffffffffff"),
+                new HashRange("f0000000000000000000000000000000,0fffffffffffffffffffffffffffffff"),
+                new HashRange("123456789abcdef0123456789abcdef0,9876543210fedcba9876543210fedcba"),
+                new HashRange()};
+        boolean ok = true;
+        for (int t = 0; t < engines.length; t++) {
+            IDatabase db = engines[t];
+            List<KVPair> batch = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                batch.add(new KVPair("key" + i, "value"));
+                batch.add(new KVPair(i + "@table", "row")); // rows of a table hash alike
+            }
+            db.writeBatch(batch);
+            for (int i = 0; i < 300; i += 3) {
+                db.delete("key" + i);
+                db.delete(i + "@table");
+            }
+            db.put("key0", "back");
+            for (HashRange range : ranges) {
+                ok &= sameKeys(db.keysInRange(range), db, range);
+            }
+            close(db);
+            IDatabase reopened = t == 0 ? new LogDatabase(DIR, "index_log", FsyncPolicy.OS, 0)
+                    : new BitcaskDatabase(DIR, "index_bitcask", FsyncPolicy.OS, 0, 4096);
+            for (HashRange range : ranges) {
+                ok &= sameKeys(reopened.keysInRange(range), reopened, range);
+            }
+            ok &= reopened.keysInRange(ranges[3]).size() == 401;
+            close(reopened);
+        }
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 13: a snapshot with a torn record is refused by both engines, which keep their own data
+    public void testCorruptSnapshotRefused() throws Exception {
+        removeFiles("torn_snapshot");
+        BitcaskDatabase source = new BitcaskDatabase(DIR, "torn_snapshot_source", FsyncPolicy.OS, 0, 4096);
+        for (int i = 0; i < 100; i++) {
+            source.put("key" + i, "value " + i);
+        }
+        File file = new File(DIR, "torn_snapshot_file");
+        source.exportSnapshot(new HashRange(), file);
+        source.close();
+        try (RandomAccessFile torn = new RandomAccessFile(file, "rw")) {
+            torn.setLength(torn.length() - 3);
+        }
+
+        IDatabase[] targets = {new LogDatabase(DIR, "torn_snapshot_log", FsyncPolicy.OS, 0),
+                new BitcaskDatabase(DIR, "torn_snapshot_bitcask", FsyncPolicy.OS, 0, 4096)};
+        String[] names = {"torn_snapshot_log", "torn_snapshot_bitcask"};
+        boolean ok = true;
+        for (int t = 0; t < targets.length; t++) {
+            targets[t].put("own", "kept");
+            boolean refused = false;
+            try {
+                targets[t].installSnapshot(file);
+            } catch (IOException e) {
+                refused = true;
+            }
+            close(targets[t]);
+            IDatabase reopened = t == 0 ? new LogDatabase(DIR, names[t], FsyncPolicy.OS, 0)
+                    : new BitcaskDatabase(DIR, names[t], FsyncPolicy.OS, 0, 4096);
+            ok &= refused && file.exists() && "kept".equals(reopened.get("own"))
+                    && reopened.get("key1") == null && reopened.getALlKeys().size() == 1;
+            close(reopened);
+        }
+        file.delete();
+        assertTrue(ok);
+    }
+
+    @Test
+    // Test 14: a garbage record header at the tail of the log is dropped on replay without reading its lengths
+    public void testGarbageHeader() throws Exception {
+        removeFiles("garbage");
+        LogDatabase db = new LogDatabase(DIR, "garbage", FsyncPolicy.OS, 0);
+        db.put("kept", "value");
+        db.close();
+
+        File log = new File(DIR, "garbage.log");
+        long length = log.length();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(log, true))) {
+            out.writeInt(0);
+            out.writeByte(1);
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+
+        LogDatabase reopened = new LogDatabase(DIR, "garbage", FsyncPolicy.OS, 0);
+        boolean ok = "value".equals(reopened.get("kept")) && log.length() == length;
+        reopened.put("after", "garbage");
+        reopened.close();
+
+        reopened = new LogDatabase(DIR, "garbage", FsyncPolicy.OS, 0);
+        ok &= "value".equals(reopened.get("kept")) && "garbage".equals(reopened.get("after"));
+        reopened.close();
+        assertTrue(ok);
+    }
+}
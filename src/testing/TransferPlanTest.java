@@ -0,0 +1,97 @@
+package testing;
+
+import ecs.TransferPlan;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TransferPlanTest extends TestCase {
+
+    /**
+     * A move that takes a while and records how many moves were running with it
+     */
+    private static TransferPlan.Step slowStep(AtomicInteger running, AtomicInteger peak, boolean ok) {
+        return () -> {
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+            return ok;
+        };
+    }
+
+    @Test
+    // Test 1: moves of different nodes run at the same time, so the plan takes about as long as one move
+    public void testNodesInParallel() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        TransferPlan plan = new TransferPlan("parallel");
+        for (int i = 0; i < 3; i++) {
+            plan.add("node" + i, "move " + i, slowStep(running, peak, true));
+        }
+
+        long start = System.currentTimeMillis();
+        boolean ok = plan.execute(executor);
+        long millis = System.currentTimeMillis() - start;
+        executor.shutdown();
+
+        assertTrue(ok && plan.remaining() == 0 && peak.get() == 3 && millis < 500);
+    }
+
+    @Test
+    // Test 2: no more moves run at once than the executor has threads
+    public void testBoundedParallelism() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        TransferPlan plan = new TransferPlan("bounded");
+        for (int i = 0; i < 5; i++) {
+            plan.add("node" + i, "move " + i, slowStep(running, peak, true));
+        }
+
+        boolean ok = plan.execute(executor);
+        executor.shutdown();
+
+        assertTrue(ok && peak.get() == 2);
+    }
+
+    @Test
+    // Test 3: moves of one node keep their order, and a failure skips the later moves of that node only
+    public void testOrderAndFailurePerNode() {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        TransferPlan plan = new TransferPlan("failure");
+        plan.add("node0", "first", () -> order.add("first"));
+        plan.add("node0", "second", () -> order.add("second"));
+        plan.add("node1", "broken", () -> false);
+        TransferPlan.Move skipped = plan.add("node1", "after broken", () -> order.add("after broken"));
+        plan.add("node2", "lost", () -> {
+            throw new IOException("connection lost");
+        });
+
+        boolean ok = plan.execute(executor);
+        executor.shutdown();
+
+        List<TransferPlan.State> states = new ArrayList<>();
+        for (TransferPlan.Move move : plan.getMoves()) {
+            states.add(move.getState());
+        }
+        assertFalse(ok);
+        assertEquals(List.of("first", "second"), order);
+        assertEquals(List.of(TransferPlan.State.DONE, TransferPlan.State.DONE, TransferPlan.State.FAILED,
+                TransferPlan.State.SKIPPED, TransferPlan.State.FAILED), states);
+        assertEquals(TransferPlan.State.SKIPPED, skipped.getState());
+    }
+}